@@ -38,6 +38,8 @@ import org.icescrum.atmosphere.AtmosphereUser
 import org.icescrum.core.app.AppDefinitionArtefactHandler
 import org.icescrum.core.cache.IsControllerWebKeyGenerator
 import org.icescrum.core.cors.CorsFilter
+import org.icescrum.core.domain.security.Authority
+import org.icescrum.core.event.IceScrumEventDispatcher
 import org.icescrum.core.event.IceScrumEventPublisher
 import org.icescrum.core.event.IceScrumEventType
 import org.icescrum.core.event.IceScrumListener
@@ -48,10 +50,13 @@ import org.icescrum.core.security.rest.TokenAuthenticationFilter
 import org.icescrum.core.security.rest.TokenAuthenticationProvider
 import org.icescrum.core.security.rest.TokenStorageService
 import org.icescrum.core.services.AppDefinitionService
+import org.icescrum.core.services.MetricsService
 import org.icescrum.core.services.UiDefinitionService
 import org.icescrum.core.support.ApplicationSupport
 import org.icescrum.core.support.ProgressSupport
 import org.icescrum.core.ui.UiDefinitionArtefactHandler
+import org.icescrum.core.utils.ActivityTimelineMarshaller
+import org.icescrum.core.utils.JSONIceScrumCollectionMarshaller
 import org.icescrum.core.utils.JSONIceScrumDomainClassMarshaller
 import org.icescrum.core.utils.RollbackAlwaysTransactionAttribute
 import org.icescrum.plugins.attachmentable.domain.Attachment
@@ -99,6 +104,7 @@ class IcescrumCoreGrailsPlugin {
     }
 
     def controllersWithDownloadAndPreview = ['story', 'task', 'feature', 'sprint', 'release', 'project']
+    def controllersWithMetrics = ['scrumOS']
 
     def doWithSpring = {
         println 'Configuring iceScrum...'
@@ -194,6 +200,7 @@ ERROR: iceScrum v7 has detected that you attempt to run it on an existing R6 ins
         JasperService jasperService = ctx.getBean('jasperService')
         UiDefinitionService uiDefinitionService = ctx.getBean('uiDefinitionService')
         AppDefinitionService appDefinitionService = ctx.getBean('appDefinitionService')
+        MetricsService metricsService = ctx.getBean('metricsService')
         uiDefinitionService.loadDefinitions()
         appDefinitionService.loadAppDefinitions()
         application.controllerClasses.each {
@@ -202,6 +209,9 @@ ERROR: iceScrum v7 has detected that you attempt to run it on an existing R6 ins
             if (it.logicalPropertyName in controllersWithDownloadAndPreview) {
                 addDownloadAndPreviewMethods(it, attachmentableService, hdImageService)
             }
+            if (it.logicalPropertyName in controllersWithMetrics) {
+                addMetricsMethod(it, metricsService)
+            }
         }
         application.serviceClasses.each {
             addListenerSupport(it, ctx)
@@ -216,7 +226,10 @@ ERROR: iceScrum v7 has detected that you attempt to run it on an existing R6 ins
 
     def doWithApplicationContext = { applicationContext ->
         Map properties = application.config?.icescrum?.marshaller
-        JSON.registerObjectMarshaller(new JSONIceScrumDomainClassMarshaller(application, properties), 1)
+        def domainClassMarshaller = new JSONIceScrumDomainClassMarshaller(application, properties)
+        JSON.registerObjectMarshaller(domainClassMarshaller, 1)
+        JSON.registerObjectMarshaller(new JSONIceScrumCollectionMarshaller(domainClassMarshaller), 1)
+        JSON.registerObjectMarshaller(new ActivityTimelineMarshaller(), 2)
         JSON.registerObjectMarshaller(AtmosphereUser) {
             def marshalledUser = [:]
             marshalledUser['id'] = it.id
@@ -282,6 +295,10 @@ ERROR: iceScrum v7 has detected that you attempt to run it on an existing R6 ins
         ((AppDefinitionService) event.application.mainContext.appDefinitionService).reloadAppDefinitions()
     }
 
+    def onShutdown = { event ->
+        IceScrumEventDispatcher.shutdown()
+    }
+
     private addDownloadAndPreviewMethods(clazz, attachmentableService, hdImageService) {
         def mc = clazz.metaClass
         def dynamicActions = [
@@ -400,6 +417,22 @@ ERROR: iceScrum v7 has detected that you attempt to run it on an existing R6 ins
         }
     }
 
+    private addMetricsMethod(clazz, metricsService) {
+        def metricsAction = { ->
+            if (!SpringSecurityUtils.ifAllGranted(Authority.ROLE_ADMIN)) {
+                render(status: HttpServletResponse.SC_FORBIDDEN)
+                return
+            }
+            render(status: 200, contentType: 'application/json', text: metricsService.metricsJson)
+        }
+        clazz.metaClass."${GrailsClassUtils.getGetterName('metrics')}" = { ->
+            metricsAction.delegate = delegate
+            metricsAction.resolveStrategy = Closure.DELEGATE_FIRST
+            metricsAction
+        }
+        clazz.registerMapping('metrics')
+    }
+
     private void addJasperMethod(source, springSecurityService, jasperService) {
         try {
             //Only for DEV, Compile reports when changing jrxml for subreports without install ireport designer...
@@ -516,14 +549,15 @@ ERROR: iceScrum v7 has detected that you attempt to run it on an existing R6 ins
                     def publisherService = domain != '*' ? ctx.getBean(domain + 'Service') : ctx.getBean('projectService')
                     if (publisherService && publisherService instanceof IceScrumEventPublisher) {
                         def serviceName = serviceGrailsClass.propertyName
+                        def listenerName = serviceName + '.' + method.name
                         if (listener.eventType() == IceScrumEventType.UGLY_HACK_BECAUSE_ANNOTATION_CANT_BE_NULL) {
 //                            println 'Add listener on all ' + domain + ' events: ' + serviceGrailsClass.propertyName + '.' + method.name
-                            publisherService.registerListener(domain) { eventType, object, dirtyProperties ->
+                            publisherService.registerListener(domain, listener.mode(), listenerName) { eventType, object, dirtyProperties ->
                                 ctx.getBean(serviceName)."$method.name"(eventType, object, dirtyProperties) // Service bean must be loaded in the callback, not extracted above, because we need the freshest one
                             }
                         } else {
 //                            println 'Add listener on ' + domain + ' ' + listener.eventType().toString() + ' events: ' + serviceGrailsClass.propertyName + '.' + method.name
-                            publisherService.registerListener(domain, listener.eventType()) { eventType, object, dirtyProperties ->
+                            publisherService.registerListener(domain, listener.eventType(), listener.mode(), listenerName) { eventType, object, dirtyProperties ->
                                 ctx.getBean(serviceName)."$method.name"(object, dirtyProperties)  // Service bean must be loaded in the callback, not extracted above, because we need the freshest one
                             }
                         }
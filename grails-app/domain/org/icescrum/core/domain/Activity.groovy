@@ -62,8 +62,9 @@ class Activity implements Serializable, Comparable {
         beforeValue type: "text" // TODO check if relevant
         afterValue type: "text" // TODO check if relevant
         afterLabel type: "text"
-        parentRef index: 'activity_parent_ref_index'
-        parentType index: 'activity_parent_type_index'
+        parentRef index: 'activity_parent_ref_index,activity_parent_index'
+        parentType index: 'activity_parent_type_index,activity_parent_index'
+        dateCreated index: 'activity_parent_index'
         code index: 'activity_code_index'
         cache true
         table 'is_activity'
@@ -83,8 +84,39 @@ class Activity implements Serializable, Comparable {
         code in Holders.grailsApplication.config.icescrum.activities.important
     }
 
-    static List<List> importantStoryActivities(User user) {
-        def projects = Project.findAllByRole(user, [BasePermission.WRITE, BasePermission.READ], [cache: true], true, false, false)
+    // Latest important activities of the stories of the projects of the user, read from their inbox (see ActivityInboxService)
+    // Pass the last activity of a page to get the next one
+    static List<List> importantStoryActivities(User user, Activity after = null, int max = 15) {
+        def activityInboxService = Holders.grailsApplication.mainContext.activityInboxService
+        if (!activityInboxService.enabled || !activityInboxService.ready) {
+            return importantStoryActivitiesFromProjects(user)
+        }
+        def vars = [uid: user.id]
+        def keyset = ''
+        if (after) {
+            keyset = "AND (e.activityDate < :afterDate OR (e.activityDate = :afterDate AND e.activityId < :afterId))"
+            vars.afterDate = after.dateCreated
+            vars.afterId = after.id
+        }
+        return executeQuery("""SELECT a, s
+                               FROM InboxEntry e, Activity a, Story s
+                               WHERE e.userId = :uid
+                               AND a.id = e.activityId
+                               AND s.id = e.storyId
+                               $keyset
+                               ORDER BY e.activityDate DESC, e.activityId DESC""", vars, [max: max])
+    }
+
+    static Integer countNewImportantStoryActivities(User user) {
+        def activityInboxService = Holders.grailsApplication.mainContext.activityInboxService
+        if (!activityInboxService.enabled || !activityInboxService.ready) {
+            return countNewImportantStoryActivitiesFromProjects(user)
+        }
+        return activityInboxService.countUnread(user)
+    }
+
+    private static List<List> importantStoryActivitiesFromProjects(User user) {
+        def projects = Project.findAllIdsByRole(user, [BasePermission.WRITE, BasePermission.READ], [cache: true], true, false, false)
         def activitiesAndStories = []
         if (projects) {
             activitiesAndStories = executeQuery("""SELECT a, s
@@ -96,13 +128,13 @@ class Activity implements Serializable, Comparable {
                                                    AND s.backlog.id in (:projects)
                                                    ORDER BY a.dateCreated DESC""", [uid     : user.id,
                                                                                     codes   : Holders.grailsApplication.config.icescrum.activities.important,
-                                                                                    projects: projects*.id], [cache: true, max: 15])
+                                                                                    projects: projects], [cache: true, max: 15])
         }
         activitiesAndStories
     }
 
-    static Integer countNewImportantStoryActivities(User user) {
-        def projects = Project.findAllByRole(user, [BasePermission.WRITE, BasePermission.READ], [cache: true], true, false, false)
+    private static Integer countNewImportantStoryActivitiesFromProjects(User user) {
+        def projects = Project.findAllIdsByRole(user, [BasePermission.WRITE, BasePermission.READ], [cache: true], true, false, false)
         if (projects) {
             return executeQuery("""SELECT COUNT(*)
                                    FROM Activity a, Story s
@@ -113,13 +145,31 @@ class Activity implements Serializable, Comparable {
                                    AND a.dateCreated > :lastReadActivity
                                    AND s.backlog.id in (:projects)""", [uid             : user.id,
                                                                         codes           : Holders.grailsApplication.config.icescrum.activities.important,
-                                                                        projects        : projects*.id,
+                                                                        projects        : projects,
                                                                         lastReadActivity: user.preferences.lastReadActivities,], [cache: true])[0]
         } else {
             return 0
         }
     }
 
+    // Activities of the story, its tasks and its acceptance tests, latest first, older than the given activity if any
+    static List<Activity> findAllInStoryTimeline(Long storyId, Activity after = null, int max = 20) {
+        def vars = [storyId: storyId]
+        def keyset = ''
+        if (after) {
+            keyset = "AND (a.dateCreated < :afterDate OR (a.dateCreated = :afterDate AND a.id < :afterId))"
+            vars.afterDate = after.dateCreated
+            vars.afterId = after.id
+        }
+        return executeQuery("""SELECT a
+                               FROM Activity a
+                               WHERE ((a.parentType = 'story' AND a.parentRef = :storyId)
+                                   OR (a.parentType = 'task' AND a.parentRef IN (SELECT t.id FROM Task t WHERE t.parentStory.id = :storyId))
+                                   OR (a.parentType = 'acceptanceTest' AND a.parentRef IN (SELECT at.id FROM AcceptanceTest at WHERE at.parentStory.id = :storyId)))
+                               $keyset
+                               ORDER BY a.dateCreated DESC, a.id DESC""", vars, [max: max])
+    }
+
     static recentProjectActivity(Project project) {
         executeQuery("""SELECT a
                         FROM org.icescrum.core.domain.Activity as a
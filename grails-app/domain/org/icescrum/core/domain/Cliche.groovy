@@ -24,6 +24,10 @@
 
 package org.icescrum.core.domain
 
+import groovy.json.JsonOutput
+import groovy.json.JsonSlurper
+import groovy.xml.StreamingMarkupBuilder
+
 class Cliche implements Serializable {
 
     static final long serialVersionUID = -5768284779953609803L
@@ -31,12 +35,16 @@ class Cliche implements Serializable {
     static belongsTo = [parentTimeBox: TimeBox]
 
     Date datePrise
-    String data  // Beware of distinct, it won't work in MSSQL since this attribute is TEXT
+    String storedData  // Data column: JSON object of values by key (legacy rows are XML until migrated). Beware of distinct, it won't work in MSSQL since this attribute is TEXT
     int type = Cliche.TYPE_ACTIVATION
 
+    private transient Map<String, Object> parsedValues
+
+    static transients = ['values', 'data']
+
     static mapping = {
         cache true
-        data type: 'text'
+        storedData column: 'data', type: 'text'
         table 'is_cliche'
         sort:
         datePrise: 'asc'
@@ -130,6 +138,65 @@ class Cliche implements Serializable {
     // ******************
 
 
+    void setStoredData(String storedData) {
+        this.storedData = storedData
+        parsedValues = null
+    }
+
+    // Values by key, parsed once per instance. Keys may also be contributed by plugins
+    Map<String, Object> getValues() {
+        if (parsedValues == null) {
+            parsedValues = parseData(storedData).asImmutable()
+        }
+        return parsedValues
+    }
+
+    void setValues(Map<String, Object> values) {
+        setStoredData(JsonOutput.toJson(values))
+    }
+
+    // Former XML form of the values, for the plugins that still read it with XmlSlurper: prefer getValues(), which doesn't parse each time
+    String getData() {
+        return isXmlData(storedData) ? storedData : toXmlData(getValues())
+    }
+
+    // Accepts both the former XML form and JSON, the values are stored as JSON
+    void setData(String data) {
+        setStoredData(isXmlData(data) ? JsonOutput.toJson(parseXmlData(data)) : data)
+    }
+
+    static Map<String, Object> parseData(String data) {
+        if (!data) {
+            return [:]
+        } else if (isXmlData(data)) {
+            return parseXmlData(data)
+        } else {
+            return (Map<String, Object>) new JsonSlurper().parseText(data)
+        }
+    }
+
+    static boolean isXmlData(String data) {
+        return data?.trim()?.startsWith('<')
+    }
+
+    // Legacy format, still used in exports and in rows that have not been migrated yet
+    static Map<String, Object> parseXmlData(String data) {
+        return new XmlSlurper().parseText(data).children().collectEntries {
+            String text = it.text()
+            [(it.name()): text.isBigDecimal() ? text.toBigDecimal() : text]
+        }
+    }
+
+    static String toXmlData(Map<String, Object> values) {
+        return new StreamingMarkupBuilder().bind {
+            cliche {
+                values.each { key, value ->
+                    "$key"(value)
+                }
+            }
+        }.toString()
+    }
+
     boolean equals(o) {
         if (this.is(o)) return true
 
@@ -137,7 +204,7 @@ class Cliche implements Serializable {
 
         Cliche cliche = (Cliche) o
         if (datePrise != cliche.datePrise) return false
-        if (data != cliche.data) return false
+        if (storedData != cliche.storedData) return false
         if (parentTimeBox != cliche.parentTimeBox) return false
 
         return true
@@ -156,7 +223,7 @@ class Cliche implements Serializable {
             builder.id(this.id)
             builder.type(this.type)
             builder.datePrise(this.datePrise)
-            builder.data { builder.mkp.yieldUnescaped("<![CDATA[${this.data}]]>") }
+            builder.data { builder.mkp.yieldUnescaped("<![CDATA[${toXmlData(this.values)}]]>") }
             exportDomainsPlugins(builder)
         }
     }
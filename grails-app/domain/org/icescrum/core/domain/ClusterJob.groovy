@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2020 Kagilum SAS.
+ *
+ * This file is part of iceScrum.
+ *
+ * iceScrum is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * iceScrum is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with iceScrum.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.icescrum.core.domain
+
+// Background job that must run on a single node at a time when several nodes share the database (indexes, snapshots...)
+// The lock is taken with a conditional update, like hook deliveries, and expires if it is not released (e.g. crash)
+class ClusterJob implements Serializable {
+
+    String name
+    Date lockedUntil
+    Date completed // Last time the job has been completed, e.g. for jobs that must be completed once
+
+    static constraints = {
+        name blank: false, unique: true
+        lockedUntil nullable: true
+        completed nullable: true
+    }
+
+    static mapping = {
+        table 'is_cluster_job'
+        version false
+    }
+
+    /**
+     * Runs the job if no other node is running it, returns false otherwise.
+     * With release = false the lock is kept until it expires, so the job runs at most once per lockDuration on the whole cluster.
+     */
+    static boolean runLocked(String name, long lockDuration, boolean release = true, Closure job) {
+        if (!tryLock(name, lockDuration)) {
+            return false
+        }
+        boolean done = false
+        try {
+            job()
+            done = true
+        } finally {
+            withNewTransaction {
+                executeUpdate("UPDATE ClusterJob j SET j.lockedUntil = :lockedUntil, j.completed = :completed WHERE j.name = :name",
+                        [name: name, lockedUntil: release ? null : new Date(System.currentTimeMillis() + lockDuration), completed: done ? new Date() : findCompleted(name)])
+            }
+        }
+        return true
+    }
+
+    static boolean isCompleted(String name) {
+        return withNewTransaction {
+            findCompleted(name) != null
+        }
+    }
+
+    private static Date findCompleted(String name) {
+        return executeQuery("SELECT j.completed FROM ClusterJob j WHERE j.name = :name", [name: name])[0]
+    }
+
+    private static boolean tryLock(String name, long lockDuration) {
+        Date now = new Date()
+        try {
+            withNewTransaction {
+                if (!executeQuery("SELECT j.id FROM ClusterJob j WHERE j.name = :name", [name: name])) {
+                    new ClusterJob(name: name).save(flush: true)
+                }
+            }
+        } catch (Exception e) { // Created by another node meanwhile
+            if (log.debugEnabled) {
+                log.debug("Cluster job $name already created: $e.message")
+            }
+        }
+        return withNewTransaction {
+            executeUpdate("""UPDATE ClusterJob j
+                             SET j.lockedUntil = :lockedUntil
+                             WHERE j.name = :name
+                             AND (j.lockedUntil IS NULL OR j.lockedUntil < :now)""", [name: name, lockedUntil: new Date(now.time + lockDuration), now: now]) == 1
+        }
+    }
+}
@@ -333,8 +333,17 @@ class Feature extends BacklogElement implements Serializable {
             }
             if (options.term || options.feature) {
                 if (options.term) {
+                    def matchingIds = !options.term.isInteger() ? SearchToken.findAllParentRefsByTerms(project, 'feature', options.term) : null
                     or {
-                        if (options.term?.isInteger()) {
+                        if (matchingIds != null) {
+                            if (matchingIds) {
+                                matchingIds.collate(1000).each {
+                                    'in' 'id', it
+                                }
+                            } else {
+                                isNull 'id' // Nothing matches
+                            }
+                        } else if (options.term?.isInteger()) {
                             eq 'uid', options.term.toInteger()
                         } else {
                             ilike 'name', '%' + options.term + '%'
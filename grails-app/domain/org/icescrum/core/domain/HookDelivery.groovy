@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2020 Kagilum SAS.
+ *
+ * This file is part of iceScrum.
+ *
+ * iceScrum is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * iceScrum is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with iceScrum.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.icescrum.core.domain
+
+// Outbox entry: a hook request waiting to be sent (or retried) by HookDeliveryService
+class HookDelivery implements Serializable {
+
+    Long hookId
+    String event
+    String payload
+
+    int attempts = 0
+    String lastError
+    Date nextAttempt
+    Date lockedUntil
+
+    Date dateCreated
+
+    static constraints = {
+        event blank: false
+        lastError nullable: true
+        lockedUntil nullable: true
+    }
+
+    static mapping = {
+        table 'is_hook_delivery'
+        version false
+        payload type: 'text'
+        lastError type: 'text'
+        hookId index: 'hook_delivery_hook_index'
+        nextAttempt index: 'hook_delivery_due_index'
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) 2020 Kagilum SAS.
+ *
+ * This file is part of iceScrum.
+ *
+ * iceScrum is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * iceScrum is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with iceScrum.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.icescrum.core.domain
+
+// Number of inbox entries of a user newer than lastRead (time of UserPreferences.lastReadActivities when it was counted)
+class InboxCounter implements Serializable {
+
+    Long userId
+    int unread = 0
+    Long lastRead
+
+    static constraints = {
+        userId unique: true
+        lastRead nullable: true
+    }
+
+    static mapping = {
+        table 'is_inbox_counter'
+        version false
+    }
+}
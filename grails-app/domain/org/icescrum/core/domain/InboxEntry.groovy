@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2020 Kagilum SAS.
+ *
+ * This file is part of iceScrum.
+ *
+ * iceScrum is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * iceScrum is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with iceScrum.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.icescrum.core.domain
+
+// Important story activity in the inbox of a member of its project, written by ActivityInboxService when the activity is created
+class InboxEntry implements Serializable {
+
+    Long userId
+    Long activityId
+    Long storyId
+    Long projectId
+    Date activityDate
+
+    static constraints = {
+        activityId unique: 'userId' // Unique key, not checked on save by ActivityInboxService
+    }
+
+    static mapping = {
+        table 'is_inbox_entry'
+        version false
+        userId index: 'inbox_entry_user_index'
+        activityDate index: 'inbox_entry_user_index'
+        activityId index: 'inbox_entry_user_index'
+        storyId index: 'inbox_entry_story_index'
+        projectId index: 'inbox_entry_project_index'
+    }
+}
@@ -99,6 +99,19 @@ class Portfolio {
     }
 
     static findAllByUser(User user, Map params = [:], String term = '%%') {
+        def enable = Holders.grailsApplication.config.icescrum.workspaceMembership.enable
+        if (enable instanceof Boolean ? enable : true) {
+            return executeQuery("""SELECT portfolio
+                                   FROM Portfolio portfolio
+                                   WHERE portfolio.id IN (
+                                       SELECT wm.workspaceId
+                                       FROM WorkspaceMembership wm
+                                       WHERE wm.userId = :uid
+                                       AND wm.workspaceType = :workspaceType
+                                       AND wm.role IN (:roles)
+                                   )
+                                   AND lower(portfolio.name) LIKE lower(:term)""", [uid: user.id, workspaceType: WorkspaceType.PORTFOLIO, roles: [WorkspaceMembership.BUSINESS_OWNER, WorkspaceMembership.PORTFOLIO_STAKE_HOLDER], term: term], params)
+        }
         executeQuery("""SELECT portfolio
                         FROM Portfolio portfolio,
                              grails.plugin.springsecurity.acl.AclObjectIdentity aoi,
@@ -207,6 +207,49 @@ class Project extends TimeBox implements Serializable, Attachmentable {
     }
 
     static findAllByRole(User user, List<BasePermission> permission, params, members = true, archived = true, owner = true, String term = '%%') {
+        if (!isMembershipIndexEnabled()) {
+            return findAllByRoleInAcl(user, permission, params, members, archived, owner, term)
+        }
+        executeQuery("SELECT p " + membershipQuery(archived), membershipQueryVars(user, permission, members, owner, term), params ?: [:])
+    }
+
+    static List<Long> findAllIdsByRole(User user, List<BasePermission> permission, params, members = true, archived = true, owner = true) {
+        if (!isMembershipIndexEnabled()) {
+            return findAllByRoleInAcl(user, permission, params, members, archived, owner)*.id
+        }
+        executeQuery("SELECT p.id " + membershipQuery(archived), membershipQueryVars(user, permission, members, owner, '%%'), params ?: [:])
+    }
+
+    private static boolean isMembershipIndexEnabled() {
+        def enable = Holders.grailsApplication.config.icescrum.workspaceMembership.enable
+        return enable instanceof Boolean ? enable : true
+    }
+
+    private static String membershipQuery(archived) {
+        return """FROM org.icescrum.core.domain.Project as p
+                  WHERE p.id IN (
+                      SELECT wm.workspaceId
+                      FROM org.icescrum.core.domain.WorkspaceMembership as wm
+                      WHERE wm.userId = :uid
+                      AND wm.workspaceType = :workspaceType
+                      AND wm.role IN (:roles)
+                  )
+                  AND lower(p.name) LIKE lower(:term) """ + (archived ? '' : "AND p.preferences.archived = false ")
+    }
+
+    private static Map membershipQueryVars(User user, List<BasePermission> permission, members, owner, String term) {
+        def roles = permission.collect { WorkspaceMembership.getProjectRole(it.mask) }.findAll()
+        if (members) {
+            roles << WorkspaceMembership.TEAM_MEMBER
+        }
+        if (owner) {
+            roles << WorkspaceMembership.OWNER
+        }
+        return [uid: user?.id ?: 0L, workspaceType: WorkspaceType.PROJECT, roles: roles ?: [''], term: term]
+    }
+
+    // Source of truth for the WorkspaceMembership index, only used when the index is disabled
+    private static findAllByRoleInAcl(User user, List<BasePermission> permission, params, members = true, archived = true, owner = true, String term = '%%') {
         def vars = [sid: user?.username ?: '', p: permission*.mask, term: term]
         if (members) {
             vars.uid = user?.id ?: 0L
@@ -348,7 +391,14 @@ class Project extends TimeBox implements Serializable, Attachmentable {
         return (id && team) ? team.owner : null
     }
 
-    User getUserByUidOrOwner(String uid) {
+    // usersByUid keeps the users already resolved, e.g. during an import where the same users are resolved for each element
+    User getUserByUidOrOwner(String uid, Map<String, User> usersByUid = null) {
+        if (usersByUid != null) {
+            if (!usersByUid.containsKey(uid)) {
+                usersByUid[uid] = getUserByUidOrOwner(uid)
+            }
+            return usersByUid[uid]
+        }
         return getAllUsersAndOwnerAndStakeholders().find { it.uid == uid } ?: (User.findByUid(uid) ?: owner)
     }
 
@@ -442,7 +492,15 @@ class Project extends TimeBox implements Serializable, Attachmentable {
         return acl
     }
 
-    def xml(builder) {
+    // eachByChunks(domainClass, ids, closure) reads the largest sections by chunks (see ProjectService.export), otherwise they are read from the collections
+    def xml(builder, Closure eachByChunks = null) {
+        Closure eachElement = { Class domainClass, Closure<Collection> elements, Closure<List<Long>> ids, Closure closure ->
+            if (eachByChunks) {
+                eachByChunks(domainClass, ids(), closure)
+            } else {
+                elements().each(closure)
+            }
+        }
         builder.project(id: this.id) {
             builder.pkey(this.pkey)
             builder.endDate(this.endDate)
@@ -472,7 +530,9 @@ class Project extends TimeBox implements Serializable, Attachmentable {
                 }
             }
             builder.features() {
-                this.features.each { _feature ->
+                eachElement(Feature, { this.features }, {
+                    Feature.executeQuery("SELECT f.id FROM Feature f WHERE f.backlog.id = :projectId ORDER BY f.rank", [projectId: this.id])
+                }) { _feature ->
                     _feature.xml(builder)
                 }
             }
@@ -483,18 +543,23 @@ class Project extends TimeBox implements Serializable, Attachmentable {
             }
             builder.stories() {
                 // To preserve groupby & sort order and be able to insert dependsOn on the import flow..
-                this.stories.findAll {
-                    it.parentSprint == null
-                }.sort { a, b ->
+                Comparator exportOrder = { a, b ->
                     def stateA = a.state == Story.STATE_ESTIMATED ? Story.STATE_ACCEPTED : a.state
                     def stateB = b.state == Story.STATE_ESTIMATED ? Story.STATE_ACCEPTED : b.state
                     return stateB <=> stateA ?: a.rank <=> b.rank
-                }.each { _story ->
+                } as Comparator
+                eachElement(Story, {
+                    this.stories.findAll { it.parentSprint == null }.sort(exportOrder)
+                }, {
+                    Story.executeQuery("SELECT new map(s.id AS id, s.state AS state, s.rank AS rank) FROM Story s WHERE s.backlog.id = :projectId AND s.parentSprint IS NULL", [projectId: this.id]).sort(exportOrder)*.id
+                }) { _story ->
                     _story.xml(builder)
                 }
             }
             builder.releases() {
-                this.releases.each { _release ->
+                eachElement(Release, { this.releases }, {
+                    Release.executeQuery("SELECT r.id FROM Release r WHERE r.parentProject.id = :projectId ORDER BY r.orderNumber", [projectId: this.id])
+                }) { _release ->
                     _release.xml(builder)
                 }
             }
@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2020 Kagilum SAS.
+ *
+ * This file is part of iceScrum.
+ *
+ * iceScrum is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * iceScrum is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with iceScrum.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.icescrum.core.domain
+
+// Notification email waiting to be sent by NotificationEmailService, alone or in a digest with the other ones of the same recipient
+class QueuedEmail implements Serializable {
+
+    String email
+    String locale
+    String subject
+    String view
+    String model
+
+    int attempts = 0
+    String lastError
+    Date nextAttempt
+
+    Date dateCreated
+
+    static constraints = {
+        email blank: false
+        locale nullable: true
+        lastError nullable: true
+    }
+
+    static mapping = {
+        table 'is_queued_email'
+        version false
+        subject length: 1000
+        model type: 'text'
+        lastError type: 'text'
+        email index: 'queued_email_index'
+        nextAttempt index: 'queued_email_index'
+    }
+}
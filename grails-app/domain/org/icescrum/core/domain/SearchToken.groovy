@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2020 Kagilum SAS.
+ *
+ * This file is part of iceScrum.
+ *
+ * iceScrum is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * iceScrum is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with iceScrum.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.icescrum.core.domain
+
+import grails.util.Holders
+
+// Full-text index entry: one row per distinct word of the name, description, notes, tags and uid of a story, feature or task
+class SearchToken implements Serializable {
+
+    static final int MAX_TOKEN_LENGTH = 64
+
+    String token
+    String parentType
+    Long parentRef
+    Long projectId
+
+    static constraints = {
+        token blank: false, maxSize: MAX_TOKEN_LENGTH, unique: ['parentType', 'parentRef'] // Unique key, not checked on save by SearchIndexService
+        parentType blank: false, shared: 'keyMaxSize'
+    }
+
+    static mapping = {
+        table 'is_search_token'
+        version false
+        projectId index: 'search_token_term_index'
+        parentType index: 'search_token_term_index,search_token_parent_index'
+        token index: 'search_token_term_index'
+        parentRef index: 'search_token_parent_index'
+    }
+
+    static Set<String> tokenize(String text) {
+        Set<String> tokens = new LinkedHashSet<String>()
+        text?.toLowerCase()?.split(/[^\p{L}\p{N}]+/)?.each { String token ->
+            if (token) {
+                tokens << (token.length() > MAX_TOKEN_LENGTH ? token.substring(0, MAX_TOKEN_LENGTH) : token)
+            }
+        }
+        return tokens
+    }
+
+    // Ids of the objects matching any of the terms, each word of a term being matched as a word prefix
+    // Returns null if the index cannot be used, in which case the caller must fallback to a plain text search
+    static List<Long> findAllParentRefsByTerms(projectId, String parentType, terms) {
+        def searchIndexService = Holders.grailsApplication.mainContext.searchIndexService
+        if (!searchIndexService.ready) {
+            return null
+        }
+        Set<Long> parentRefs = new HashSet<Long>()
+        for (term in (terms instanceof List ? terms : [terms])) {
+            Set<String> tokens = tokenize(term?.toString())
+            if (!tokens) {
+                return null
+            }
+            Set<Long> termParentRefs = null
+            for (token in tokens) {
+                def tokenParentRefs = executeQuery("""SELECT DISTINCT st.parentRef
+                                                      FROM SearchToken st
+                                                      WHERE st.projectId = :projectId
+                                                      AND st.parentType = :parentType
+                                                      AND st.token LIKE :token""", [projectId: projectId as Long, parentType: parentType, token: token + '%'])
+                if (termParentRefs == null) {
+                    termParentRefs = new HashSet<Long>(tokenParentRefs)
+                } else {
+                    termParentRefs.retainAll(tokenParentRefs)
+                }
+                if (!termParentRefs) {
+                    break
+                }
+            }
+            parentRefs.addAll(termParentRefs)
+        }
+        return parentRefs.toList()
+    }
+}
@@ -30,6 +30,7 @@ import groovy.time.TimeCategory
 import org.grails.comments.Comment
 import org.hibernate.ObjectNotFoundException
 import org.icescrum.core.domain.AcceptanceTest.AcceptanceTestState
+import org.icescrum.core.utils.ActivityTimeline
 import org.icescrum.core.utils.DateUtils
 
 class Story extends BacklogElement implements Cloneable, Serializable {
@@ -132,9 +133,9 @@ class Story extends BacklogElement implements Cloneable, Serializable {
         origin(nullable: true)
     }
 
-    def getActivity() {
-        def activities = this.activities + this.tasks*.activities.flatten() + this.acceptanceTests*.activities.flatten()
-        return activities.sort { a, b -> b.dateCreated <=> a.dateCreated }
+    // Activities of the story and its children, latest first, read lazily by pages
+    ActivityTimeline getActivity() {
+        return new ActivityTimeline(this.id)
     }
 
     def getDeliveredVersion() {
@@ -482,8 +483,17 @@ class Story extends BacklogElement implements Cloneable, Serializable {
             }
             if (options.story) {
                 if (options.story.term) {
+                    def matchingIds = options.story.term instanceof List || !options.story.term.isInteger() ? SearchToken.findAllParentRefsByTerms(project, 'story', options.story.term) : null
                     or {
-                        if (options.story.term instanceof List) {
+                        if (matchingIds != null) {
+                            if (matchingIds) {
+                                matchingIds.collate(1000).each {
+                                    'in' 'id', it
+                                }
+                            } else {
+                                isNull 'id' // Nothing matches
+                            }
+                        } else if (options.story.term instanceof List) {
                             options.story.term.each {
                                 ilike 'name', '%' + it + '%'
                                 ilike 'description', '%' + it + '%'
@@ -257,8 +257,17 @@ class Task extends BacklogElement implements Serializable {
             }
             if (options.task) {
                 if (options.task.term) {
+                    def matchingIds = options.task.term instanceof List || !options.task.term.isInteger() ? SearchToken.findAllParentRefsByTerms(project, 'task', options.task.term) : null
                     or {
-                        if (options.task.term instanceof List) {
+                        if (matchingIds != null) {
+                            if (matchingIds) {
+                                matchingIds.collate(1000).each {
+                                    'in' 'id', it
+                                }
+                            } else {
+                                isNull 'id' // Nothing matches
+                            }
+                        } else if (options.task.term instanceof List) {
                             options.task.term.each {
                                 ilike 'name', '%' + it + '%'
                                 ilike 'description', '%' + it + '%'
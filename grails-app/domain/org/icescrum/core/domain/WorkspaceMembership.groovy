@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2020 Kagilum SAS.
+ *
+ * This file is part of iceScrum.
+ *
+ * iceScrum is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * iceScrum is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with iceScrum.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.icescrum.core.domain
+
+import org.springframework.security.acls.domain.BasePermission
+
+// Denormalized view of the ACL and team membership tables, maintained by WorkspaceMembershipService
+class WorkspaceMembership implements Serializable {
+
+    static final String OWNER = 'owner'
+    static final String PRODUCT_OWNER = 'productOwner'
+    static final String STAKE_HOLDER = 'stakeHolder'
+    static final String TEAM_MEMBER = 'teamMember'
+    static final String SCRUM_MASTER = 'scrumMaster'
+    static final String BUSINESS_OWNER = 'businessOwner'
+    static final String PORTFOLIO_STAKE_HOLDER = 'portfolioStakeHolder'
+
+    Long userId
+    String workspaceType
+    Long workspaceId
+    String role
+
+    static constraints = {
+        workspaceType blank: false
+        role blank: false, unique: ['userId', 'workspaceType', 'workspaceId']
+    }
+
+    static mapping = {
+        table 'is_workspace_membership'
+        version false
+        userId index: 'ws_membership_user_index'
+        workspaceType index: 'ws_membership_user_index,ws_membership_workspace_index'
+        workspaceId index: 'ws_membership_workspace_index'
+    }
+
+    static String getProjectRole(int mask) {
+        return mask == BasePermission.WRITE.mask ? PRODUCT_OWNER : mask == BasePermission.READ.mask ? STAKE_HOLDER : null
+    }
+
+    static String getPortfolioRole(int mask) {
+        return mask == BasePermission.WRITE.mask ? BUSINESS_OWNER : mask == BasePermission.READ.mask ? PORTFOLIO_STAKE_HOLDER : null
+    }
+
+    static List<Long> findAllWorkspaceIdsByUser(Long userId, String workspaceType, List<String> roles) {
+        if (!userId || !roles) {
+            return []
+        }
+        return executeQuery("""SELECT DISTINCT wm.workspaceId
+                               FROM WorkspaceMembership wm
+                               WHERE wm.userId = :userId
+                               AND wm.workspaceType = :workspaceType
+                               AND wm.role IN (:roles)""", [userId: userId, workspaceType: workspaceType, roles: roles])
+    }
+
+    static Map<String, List<String>> findAllRolesByUser(Long userId) {
+        def rolesByWorkspace = [:]
+        executeQuery("""SELECT wm.workspaceType, wm.workspaceId, wm.role
+                        FROM WorkspaceMembership wm
+                        WHERE wm.userId = :userId""", [userId: userId]).each { row ->
+            def key = "${row[0]}-${row[1]}".toString()
+            rolesByWorkspace[key] = (rolesByWorkspace[key] ?: []) << row[2]
+        }
+        return rolesByWorkspace
+    }
+}
@@ -124,7 +124,7 @@ class AcceptanceTestService extends IceScrumEventPublisher {
         Project project = options.project
         Story story = options.story
         AcceptanceTest.withTransaction(readOnly: !options.save) { transaction ->
-            User creator = project ? project.getUserByUidOrOwner(acceptanceTestXml.creator.@uid.text()) : null
+            User creator = project ? project.getUserByUidOrOwner(acceptanceTestXml.creator.@uid.text(), options.usersByUid) : null
             def acceptanceTest = new AcceptanceTest(
                     name: acceptanceTestXml."${'name'}".text(),
                     description: acceptanceTestXml.description.text() ?: null,
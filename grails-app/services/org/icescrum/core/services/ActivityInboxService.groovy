@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2020 Kagilum SAS.
+ *
+ * This file is part of iceScrum.
+ *
+ * iceScrum is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * iceScrum is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with iceScrum.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.icescrum.core.services
+
+import grails.transaction.Transactional
+import org.icescrum.core.domain.*
+import org.icescrum.core.event.IceScrumEventType
+import org.icescrum.core.event.IceScrumListener
+import org.icescrum.core.event.IceScrumListenerMode
+
+/**
+ * Maintains the activity inbox of the users: when an important story activity is created, an InboxEntry is written
+ * for each member of the project (except the poster) and their unread InboxCounter is incremented, in batches and after commit.
+ * Reading the latest important activities is then an index scan on the inbox of the user and counting the new ones a single row read.
+ * Entries are removed with their story, their project (or when it is archived) and when a user leaves the project.
+ * On the first start, the inbox is filled in background from the recent activities by a single node, reads use the activity tables meanwhile.
+ */
+@Transactional
+class ActivityInboxService {
+
+    private static final int BATCH_SIZE = 100
+    private static final String BACKFILL_JOB = 'activityInbox.backfill'
+    private static final List<String> MEMBER_ROLES = [WorkspaceMembership.PRODUCT_OWNER, WorkspaceMembership.STAKE_HOLDER, WorkspaceMembership.TEAM_MEMBER]
+
+    def grailsApplication
+
+    volatile boolean ready = false
+
+    @IceScrumListener(domain = 'activity', eventType = IceScrumEventType.CREATE, mode = IceScrumListenerMode.ASYNCHRONOUS)
+    void activityCreated(Activity activity, Map dirtyProperties) {
+        if (isEnabled() && activity.parentType == 'story' && activity.important) {
+            Story story = Story.get(activity.parentRef)
+            if (story && (ready || !InboxEntry.countByActivityId(activity.id))) { // May have been filled by the backfill meanwhile
+                fanOut(activity, story)
+            }
+        }
+    }
+
+    @IceScrumListener(domain = 'story', eventType = IceScrumEventType.DELETE)
+    void storyDeleted(Story story, Map dirtyProperties) {
+        removeEntries("e.storyId = :storyId", [storyId: dirtyProperties?.id ?: story.id])
+    }
+
+    @IceScrumListener(domain = 'project', eventType = IceScrumEventType.UPDATE)
+    void projectUpdated(Project project, Map dirtyProperties) {
+        if (project.preferences.archived) {
+            removeEntries("e.projectId = :projectId", [projectId: project.id])
+        }
+    }
+
+    @IceScrumListener(domain = 'project', eventType = IceScrumEventType.DELETE)
+    void projectDeleted(Project project, Map dirtyProperties) {
+        removeEntries("e.projectId = :projectId", [projectId: dirtyProperties?.id ?: project.id])
+    }
+
+    @IceScrumListener(domain = 'user', eventType = IceScrumEventType.DELETE)
+    void userDeleted(User user, Map dirtyProperties) {
+        Long userId = dirtyProperties?.id ?: user.id
+        InboxEntry.executeUpdate("DELETE FROM InboxEntry e WHERE e.userId = :userId", [userId: userId])
+        InboxCounter.executeUpdate("DELETE FROM InboxCounter c WHERE c.userId = :userId", [userId: userId])
+    }
+
+    // Called by WorkspaceMembershipService when memberships of the project have been removed
+    void removeFormerMembers(Long projectId) {
+        removeEntries("""e.projectId = :projectId
+                         AND e.userId NOT IN (
+                             SELECT wm.userId
+                             FROM WorkspaceMembership wm
+                             WHERE wm.workspaceType = :workspaceType
+                             AND wm.workspaceId = :projectId
+                             AND wm.role IN (:roles)
+                         )""", [projectId: projectId, workspaceType: WorkspaceType.PROJECT, roles: MEMBER_ROLES])
+    }
+
+    void fanOut(Activity activity, Story story, Map<Long, List<Long>> memberIdsByProject = null) {
+        Project project = story.backlog
+        if (project.preferences.archived) {
+            return
+        }
+        List<Long> memberIds = memberIdsByProject != null ? memberIdsByProject.get(project.id) : null
+        if (memberIds == null) {
+            memberIds = findMemberIds(project)
+            memberIdsByProject?.put(project.id, memberIds)
+        }
+        List<Long> userIds = memberIds.findAll { it != activity.poster?.id }
+        userIds.collate(BATCH_SIZE).each { List<Long> batch ->
+            batch.each { Long userId ->
+                new InboxEntry(userId: userId, activityId: activity.id, storyId: story.id, projectId: project.id, activityDate: activity.dateCreated).save(validate: false)
+            }
+            InboxCounter.executeUpdate("""UPDATE InboxCounter c
+                                          SET c.unread = c.unread + 1
+                                          WHERE c.userId IN (:userIds)
+                                          AND (c.lastRead IS NULL OR c.lastRead < :activityTime)""", [userIds: batch, activityTime: activity.dateCreated.time])
+            InboxEntry.withSession { session ->
+                session.flush()
+            }
+        }
+    }
+
+    /**
+     * Recounted from the inbox only when the user has read their activities since the last count or when the counter has been invalidated.
+     * The recount is only stored if the counter hasn't changed since it was read: an increment committed by fanOut between
+     * the COUNT and the update would be lost otherwise, in that case the counter is recounted next time.
+     */
+    Integer countUnread(User user) {
+        Long lastRead = user.preferences.lastReadActivities?.time ?: 0L
+        def counter = InboxCounter.executeQuery("SELECT c.unread, c.lastRead FROM InboxCounter c WHERE c.userId = :userId", [userId: user.id])
+        if (counter && counter[0][1] == lastRead) {
+            return counter[0][0]
+        }
+        Integer unread = InboxEntry.executeQuery("SELECT COUNT(*) FROM InboxEntry e WHERE e.userId = :userId AND e.activityDate > :lastRead", [userId: user.id, lastRead: new Date(lastRead)])[0] as Integer
+        try {
+            InboxCounter.withNewTransaction {
+                if (!counter) { // Created invalidated for the same reason, so it is counted again before being trusted
+                    new InboxCounter(userId: user.id, unread: 0, lastRead: null).save(flush: true)
+                } else {
+                    Map params = [unread: unread, lastRead: lastRead, userId: user.id, previousUnread: counter[0][0]]
+                    String previousLastRead = counter[0][1] != null ? 'c.lastRead = :previousLastRead' : 'c.lastRead IS NULL'
+                    if (counter[0][1] != null) {
+                        params.previousLastRead = counter[0][1]
+                    }
+                    InboxCounter.executeUpdate("""UPDATE InboxCounter c
+                                                  SET c.unread = :unread, c.lastRead = :lastRead
+                                                  WHERE c.userId = :userId
+                                                  AND c.unread = :previousUnread
+                                                  AND $previousLastRead""", params)
+                }
+            }
+        } catch (Exception e) { // Concurrent creation of the counter, it will be recounted next time
+            if (log.debugEnabled) {
+                log.debug("Unable to save the inbox counter of user ${user.id}", e)
+            }
+        }
+        return unread
+    }
+
+    void backfill() {
+        ready = false
+        long start = System.currentTimeMillis()
+        Date since = new Date() - ((grailsApplication.config.icescrum.activities.inbox.backfillDays ?: 30) as int)
+        def activityIds = Activity.executeQuery("""SELECT a.id
+                                                   FROM Activity a
+                                                   WHERE a.parentType = 'story'
+                                                   AND a.code IN (:codes)
+                                                   AND a.dateCreated >= :since
+                                                   ORDER BY a.id""", [codes: grailsApplication.config.icescrum.activities.important, since: since])
+        Map<Long, List<Long>> memberIdsByProject = [:]
+        activityIds.collate(BATCH_SIZE).each { List<Long> batch ->
+            try {
+                Activity.withNewTransaction {
+                    // Activities already in the inbox: fanned out since the start or by a previous backfill that has been interrupted
+                    List<Long> filledIds = InboxEntry.executeQuery("SELECT DISTINCT e.activityId FROM InboxEntry e WHERE e.activityId IN (:activityIds)", [activityIds: batch])
+                    List<Long> remainingIds = batch - filledIds
+                    if (remainingIds) {
+                        Activity.getAll(remainingIds).each { Activity activity ->
+                            Story story = activity ? Story.get(activity.parentRef) : null
+                            if (story) {
+                                fanOut(activity, story, memberIdsByProject)
+                            }
+                        }
+                    }
+                    Activity.withSession { session ->
+                        session.flush()
+                        session.clear()
+                    }
+                }
+            } catch (Exception e) { // Unique key violation: an activity of the batch has been fanned out concurrently
+                log.warn("Unable to fill the activity inbox with activities ${batch.first()} to ${batch.last()}: $e.message")
+            }
+        }
+        ready = true
+        if (log.infoEnabled) {
+            log.info("Activity inbox filled with ${activityIds.size()} activities in ${System.currentTimeMillis() - start}ms")
+        }
+    }
+
+    void start() {
+        if (!isEnabled()) {
+            return
+        }
+        if (ClusterJob.isCompleted(BACKFILL_JOB)) {
+            ready = true
+        } else { // First start with the inbox: fill it in background, reads use the activity tables meanwhile
+            Thread thread = new Thread({
+                try {
+                    // Filled by a single node, the other ones wait for it to be completed
+                    while (!ClusterJob.isCompleted(BACKFILL_JOB)) {
+                        boolean locked = ClusterJob.runLocked(BACKFILL_JOB, 3600000L) {
+                            if (!ClusterJob.isCompleted(BACKFILL_JOB)) {
+                                backfill()
+                            }
+                        }
+                        if (!locked) {
+                            Thread.sleep(60000L)
+                        }
+                    }
+                    ready = true
+                } catch (Exception e) {
+                    log.error("Error while filling the activity inbox", e)
+                }
+            } as Runnable, 'icescrum-activity-inbox')
+            thread.daemon = true
+            thread.start()
+        }
+    }
+
+    boolean isEnabled() {
+        def enable = grailsApplication.config.icescrum.activities.inbox.enable
+        return enable instanceof Boolean ? enable : true
+    }
+
+    // The counters of the users losing entries are invalidated first (they are recounted on next read), a decrement per user would cost more
+    private static void removeEntries(String condition, Map params) {
+        InboxCounter.executeUpdate("UPDATE InboxCounter c SET c.lastRead = NULL WHERE c.userId IN (SELECT DISTINCT e.userId FROM InboxEntry e WHERE $condition)", params)
+        InboxEntry.executeUpdate("DELETE FROM InboxEntry e WHERE $condition", params)
+    }
+
+    private List<Long> findMemberIds(Project project) {
+        def enable = grailsApplication.config.icescrum.workspaceMembership.enable
+        if (!(enable instanceof Boolean ? enable : true)) {
+            return ((project.allUsers ?: []) + (project.stakeHolders ?: []))*.id.unique()
+        }
+        return WorkspaceMembership.executeQuery("""SELECT DISTINCT wm.userId
+                                                   FROM WorkspaceMembership wm
+                                                   WHERE wm.workspaceType = :workspaceType
+                                                   AND wm.workspaceId = :projectId
+                                                   AND wm.role IN (:roles)""", [workspaceType: WorkspaceType.PROJECT, projectId: project.id, roles: MEMBER_ROLES])
+    }
+}
@@ -54,7 +54,7 @@ class ActivityService extends IceScrumEventPublisher {
         def parent = options.parent
         Project project = options.project
         Activity.withTransaction(readOnly: !options.save) { transaction ->
-            User poster = project ? project.getUserByUidOrOwner(activityXml.poster.@uid.text()) : null
+            User poster = project ? project.getUserByUidOrOwner(activityXml.poster.@uid.text(), options.usersByUid) : null
             def activity = new Activity(
                     code: activityXml.code.text(),
                     label: activityXml.label.text(),
@@ -77,7 +77,11 @@ class ActorService extends IceScrumEventPublisher {
                     uid: actorXml.@uid.text().toInteger()
             )
             if (project) {
-                project.addToActors(actor)
+                if (options.clearSession) {
+                    actor.parentProject = project // Only the owning side, so the actors of the project aren't loaded again after each batch
+                } else {
+                    project.addToActors(actor)
+                }
             }
             if (options.save) {
                 actor.save()
@@ -32,6 +32,16 @@ class BootStrapService {
     def pluginManager
     def grailsApplication
     def authorityService
+    def pushService
+    def securityService
+    def workspaceMembershipService
+    def searchIndexService
+    def clicheService
+    def hookService
+    def hookDeliveryService
+    def notificationEmailService
+    def activityInboxService
+    def metricsService
 
     void start() {
         def dev = Environment.current == Environment.DEVELOPMENT && !System.properties['icescrum.noDummyze']
@@ -57,6 +67,21 @@ class BootStrapService {
             ApplicationSupport.checkForUpdateAndReportUsage(config)
         }
 
+        if (config.icescrum.push.enable) {
+            pushService.registerInvalidationHandler('roles', securityService.&invalidateRolesFromPeer)
+            pushService.registerInvalidationHandler('charts', clicheService.&invalidateChartsFromPeer)
+            pushService.registerInvalidationHandler('hooks', hookService.&indexHooksFromPeer)
+            pushService.startCluster()
+        }
+
+        workspaceMembershipService.start()
+        searchIndexService.start()
+        clicheService.start()
+        hookDeliveryService.start()
+        notificationEmailService.start()
+        activityInboxService.start()
+        metricsService.start()
+
         config.grails.attachmentable.baseDir = config.icescrum.baseDir.toString()
         config.grails.mail.default.from = config.icescrum.alerts.default.from
 
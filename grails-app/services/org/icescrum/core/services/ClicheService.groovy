@@ -25,34 +25,149 @@
 
 package org.icescrum.core.services
 
+import grails.transaction.NotTransactional
 import grails.transaction.Transactional
-import groovy.xml.StreamingMarkupBuilder
+import groovy.json.JsonOutput
 import org.icescrum.core.domain.*
+import org.icescrum.core.utils.ChartSeriesCache
 import org.icescrum.core.utils.DateUtils
+import org.springframework.beans.factory.DisposableBean
+import org.springframework.beans.factory.InitializingBean
+import org.springframework.transaction.support.TransactionSynchronizationAdapter
+import org.springframework.transaction.support.TransactionSynchronizationManager
+
+import java.util.concurrent.atomic.AtomicLong
 
 @Transactional
-class ClicheService {
+class ClicheService implements InitializingBean, DisposableBean {
+
+    private static final int MIGRATION_BATCH_SIZE = 200
+    private static final int SNAPSHOT_BATCH_SIZE = 20
 
     def grailsApplication
+    def pushService
+
+    ChartSeriesCache chartSeriesCache
+
+    private Timer snapshotTimer
+    private final AtomicLong snapshotRuns = new AtomicLong()
+    private final AtomicLong snapshotErrors = new AtomicLong()
+    private volatile Map lastSnapshotRun = [:]
+
+    @Override
+    void afterPropertiesSet() {
+        def config = grailsApplication.config.icescrum.charts.cache
+        if (config.enable instanceof Boolean ? config.enable : true) {
+            chartSeriesCache = new ChartSeriesCache((config.maximumSize ?: 2000) as long, (config.expireAfterWrite ?: 60) as long)
+        }
+    }
+
+    /**
+     * Series with one point per release cliche (first activation then closes) and a last point for the sprint in progress, if any.
+     * Points of persisted cliches are cached until cliches change, the in progress point until stories or tasks change.
+     * toPoint is called with the cliche values, the index of the point and whether it is the in progress point, it returns null to skip a cliche.
+     */
+    List releaseSeries(String chart, Release release, Closure toPoint) {
+        Long projectId = release.parentProject.id
+        List points = getHistoricalSeries(chart, projectId, release.id) {
+            def cliches = []
+            def firstClicheActivation = Cliche.findByParentTimeBoxAndType(release, Cliche.TYPE_ACTIVATION, [sort: "datePrise", order: "asc"])
+            if (firstClicheActivation) {
+                cliches.add(firstClicheActivation)
+            }
+            cliches.addAll(Cliche.findAllByParentTimeBoxAndType(release, Cliche.TYPE_CLOSE, [sort: "datePrise", order: "asc"]))
+            def historicalPoints = []
+            cliches.eachWithIndex { Cliche cliche, int index ->
+                def point = cliche.values ? toPoint(cliche.values, index, false) : null
+                if (point != null) {
+                    historicalPoints << point
+                }
+            }
+            return historicalPoints
+        }
+        if (release.state == Release.STATE_INPROGRESS) {
+            Sprint sprint = release.sprints.find { it.state == Sprint.STATE_INPROGRESS }
+            if (sprint) {
+                int index = points.size()
+                points.addAll(getCurrentSeries(chart, projectId, release.id) {
+                    def point = toPoint(generateSprintClicheValues(sprint, Cliche.TYPE_CLOSE), index, true)
+                    return point != null ? [point] : []
+                })
+            }
+        }
+        return points
+    }
+
+    // Series of a sprint, cached for good once the sprint is done
+    List sprintSeries(String chart, Sprint sprint, Closure<List> compute) {
+        Long projectId = sprint.parentRelease.parentProject.id
+        return sprint.state == Sprint.STATE_DONE ? getHistoricalSeries(chart, projectId, sprint.id, compute) : getCurrentSeries(chart, projectId, sprint.id, compute)
+    }
+
+    List getHistoricalSeries(String chart, Long projectId, Long timeboxId, Closure<List> compute) {
+        return chartSeriesCache ? chartSeriesCache.getHistorical(chart, projectId, timeboxId, compute) : compute()
+    }
+
+    List getCurrentSeries(String chart, Long projectId, Long timeboxId, Closure<List> compute) {
+        return chartSeriesCache ? chartSeriesCache.getCurrent(chart, projectId, timeboxId, compute) : compute()
+    }
+
+    // Invalidate right away and once again after completion, so that series computed by concurrent requests before the commit are not kept.
+    // The other nodes of the cluster are sent the same invalidation after completion
+    @NotTransactional
+    void invalidateCharts(Long projectId, boolean currentOnly) {
+        if (!chartSeriesCache) {
+            return
+        }
+        chartSeriesCache.invalidateProject(projectId, currentOnly)
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                void afterCompletion(int status) {
+                    chartSeriesCache?.invalidateProject(projectId, currentOnly)
+                }
+            })
+        }
+        pushService.publishInvalidation('charts', [projectId + (currentOnly ? ':current' : ':all')])
+    }
+
+    // Keys are <project id>:current or <project id>:all
+    @NotTransactional
+    void invalidateChartsFromPeer(List<String> keys) {
+        keys.each { String key ->
+            List<String> parts = key.tokenize(':')
+            chartSeriesCache?.invalidateProject(parts[0].toLong(), parts[1] == 'current')
+        }
+    }
+
+    Map getChartCacheStats() {
+        return chartSeriesCache?.stats ?: [:]
+    }
 
     private static void save(Cliche cliche, TimeBox timeBox) {
         timeBox.addToCliches(cliche)
         cliche.save()
     }
 
-    private Map getPointsByType(stories) {
-        int allTotal = 0
-        int remainingTotal = 0
+    // Points of the stories matching the condition, summed by type by the database
+    private Map getPointsByType(String condition, Long id) {
+        BigDecimal allTotal = 0
+        BigDecimal remainingTotal = 0
         def storyTypes = grailsApplication.config.icescrum.resourceBundles.storyTypes.keySet()
         def allPointsByType = storyTypes.collectEntries { storyType -> [(storyType): 0] }
         def remainingPointsByType = storyTypes.collectEntries { storyType -> [(storyType): 0] }
-        stories.each { Story story ->
-            if (story.effort > 0) {
-                allPointsByType[story.type] += story.effort
-                allTotal += story.effort
-                if (story.state != Story.STATE_DONE) {
-                    remainingPointsByType[story.type] += story.effort
-                    remainingTotal += story.effort
+        Story.executeQuery("""SELECT s.type, s.state, SUM(s.effort)
+                              FROM Story s
+                              WHERE $condition
+                              AND s.effort > 0
+                              GROUP BY s.type, s.state""", [id: id]).each { row ->
+            def (type, state, BigDecimal points) = row
+            if (allPointsByType.containsKey(type)) {
+                allPointsByType[type] += points
+                allTotal += points
+                if (state != Story.STATE_DONE) {
+                    remainingPointsByType[type] += points
+                    remainingTotal += points
                 }
             }
         }
@@ -62,9 +177,9 @@ class ClicheService {
     void createSprintCliche(Sprint s, Date d, int type) {
         Cliche c = new Cliche(
                 type: type,
-                datePrise: d,
-                data: generateSprintClicheData(s, type)
+                datePrise: d
         )
+        c.values = generateSprintClicheValues(s, type)
         save(c, s.parentRelease)
     }
 
@@ -76,66 +191,66 @@ class ClicheService {
         }
     }
 
-    def generateSprintClicheData(Sprint sprint, int clicheType) {
+    String generateSprintClicheData(Sprint sprint, int clicheType) {
+        return JsonOutput.toJson(generateSprintClicheValues(sprint, clicheType))
+    }
+
+    Map<String, Object> generateSprintClicheValues(Sprint sprint, int clicheType) {
         def storyTypes = grailsApplication.config.icescrum.resourceBundles.storyTypes.keySet()
         // Retrieve the current release and the current sprint
         Release release = sprint.parentRelease
         Project project = release.parentProject
         // Browse the stories and add their estimated velocity to the corresponding counter
-        def sprintPoints = getPointsByType(sprint.stories)
-        def releasePoints = getPointsByType(Story.storiesByRelease(release).list())
-        def projectPoints = getPointsByType(project.stories)
+        def sprintPoints = getPointsByType('s.parentSprint.id = :id', sprint.id)
+        def releasePoints = getPointsByType('s.parentSprint.parentRelease.id = :id', release.id)
+        def projectPoints = getPointsByType('s.backlog.id = :id', project.id)
         // Stories by state
         def storyStates = [Story.STATE_SUGGESTED, Story.STATE_ACCEPTED, Story.STATE_ESTIMATED, Story.STATE_PLANNED, Story.STATE_INPROGRESS, Story.STATE_DONE]
         def countByState = storyStates.collectEntries { storyState -> [(storyState): 0] }
-        project.stories.each { story ->
-            if (story.state in storyStates) {
-                countByState[story.state]++
+        Story.executeQuery("SELECT s.state, COUNT(s.id) FROM Story s WHERE s.backlog.id = :projectId GROUP BY s.state", [projectId: project.id]).each { row ->
+            if (row[0] in storyStates) {
+                countByState[row[0]] = row[1] as int
             }
         }
         // Data
-        def clicheData = {
-            cliche {
-                "${Cliche.SPRINT_ID}"("R${release.orderNumber}S${sprint.orderNumber}")
-                if (clicheType == Cliche.TYPE_ACTIVATION) {
-                    "${Cliche.INPROGRESS_DATE}"(sprint.inProgressDate) // TODO NOT USED
-                    "${Cliche.SPRINT_CAPACITY}"(sprintPoints.allTotal)
-                    "${Cliche.FUNCTIONAL_STORY_CAPACITY}"(sprintPoints.all[Story.TYPE_USER_STORY]) // TODO NOT USED
-                    "${Cliche.TECHNICAL_STORY_CAPACITY}"(sprintPoints.all[Story.TYPE_TECHNICAL_STORY]) // TODO NOT USED
-                    "${Cliche.DEFECT_STORY_CAPACITY}"(sprintPoints.all[Story.TYPE_DEFECT]) // TODO NOT USED
-                }
-                if (clicheType == Cliche.TYPE_CLOSE) {
-                    "${Cliche.DONE_DATE}"(sprint.doneDate) // TODO NOT USED
-                    "${Cliche.SPRINT_VELOCITY}"(sprintPoints.allTotal)
-                    "${Cliche.FUNCTIONAL_STORY_VELOCITY}"(sprintPoints.all[Story.TYPE_USER_STORY])
-                    "${Cliche.TECHNICAL_STORY_VELOCITY}"(sprintPoints.all[Story.TYPE_TECHNICAL_STORY])
-                    "${Cliche.DEFECT_STORY_VELOCITY}"(sprintPoints.all[Story.TYPE_DEFECT])
-                }
-                // Project points
-                "${Cliche.FUNCTIONAL_STORY_PROJECT_POINTS}"(projectPoints.all[Story.TYPE_USER_STORY]) // TODO NOT USED
-                "${Cliche.TECHNICAL_STORY_PROJECT_POINTS}"(projectPoints.all[Story.TYPE_TECHNICAL_STORY]) // TODO NOT USED
-                "${Cliche.DEFECT_STORY_PROJECT_POINTS}"(projectPoints.all[Story.TYPE_DEFECT]) // TODO NOT USED
-                "${Cliche.PROJECT_POINTS}"(projectPoints.allTotal)
-                // Project remaining points
-                storyTypes.each { storyType ->
-                    "${grailsApplication.config.icescrum.resourceBundles.storyTypesCliche[storyType]}"(projectPoints.remaining[storyType])
-                }
-                "${Cliche.PROJECT_REMAINING_POINTS}"(projectPoints.remainingTotal)
-                // Release remaining points
-                "${Cliche.FUNCTIONAL_STORY_RELEASE_REMAINING_POINTS}"(releasePoints.remaining[Story.TYPE_USER_STORY]) // TODO NOT USED
-                "${Cliche.TECHNICAL_STORY_RELEASE_REMAINING_POINTS}"(releasePoints.remaining[Story.TYPE_TECHNICAL_STORY]) // TODO NOT USED
-                "${Cliche.DEFECT_STORY_RELEASE_REMAINING_POINTS}"(releasePoints.remaining[Story.TYPE_DEFECT]) // TODO NOT USED
-                // Stories points by states
-                "${Cliche.FINISHED_STORIES}"(countByState[Story.STATE_DONE])
-                "${Cliche.INPROGRESS_STORIES}"(countByState[Story.STATE_INPROGRESS])
-                "${Cliche.PLANNED_STORIES}"(countByState[Story.STATE_PLANNED])
-                "${Cliche.ESTIMATED_STORIES}"(countByState[Story.STATE_ESTIMATED])
-                "${Cliche.ACCEPTED_STORIES}"(countByState[Story.STATE_ACCEPTED])
-                "${Cliche.SUGGESTED_STORIES}"(countByState[Story.STATE_SUGGESTED])
-            }
+        Map<String, Object> clicheValues = [:]
+        clicheValues[Cliche.SPRINT_ID] = "R${release.orderNumber}S${sprint.orderNumber}".toString()
+        if (clicheType == Cliche.TYPE_ACTIVATION) {
+            clicheValues[Cliche.INPROGRESS_DATE] = sprint.inProgressDate // TODO NOT USED
+            clicheValues[Cliche.SPRINT_CAPACITY] = sprintPoints.allTotal
+            clicheValues[Cliche.FUNCTIONAL_STORY_CAPACITY] = sprintPoints.all[Story.TYPE_USER_STORY] // TODO NOT USED
+            clicheValues[Cliche.TECHNICAL_STORY_CAPACITY] = sprintPoints.all[Story.TYPE_TECHNICAL_STORY] // TODO NOT USED
+            clicheValues[Cliche.DEFECT_STORY_CAPACITY] = sprintPoints.all[Story.TYPE_DEFECT] // TODO NOT USED
+        }
+        if (clicheType == Cliche.TYPE_CLOSE) {
+            clicheValues[Cliche.DONE_DATE] = sprint.doneDate // TODO NOT USED
+            clicheValues[Cliche.SPRINT_VELOCITY] = sprintPoints.allTotal
+            clicheValues[Cliche.FUNCTIONAL_STORY_VELOCITY] = sprintPoints.all[Story.TYPE_USER_STORY]
+            clicheValues[Cliche.TECHNICAL_STORY_VELOCITY] = sprintPoints.all[Story.TYPE_TECHNICAL_STORY]
+            clicheValues[Cliche.DEFECT_STORY_VELOCITY] = sprintPoints.all[Story.TYPE_DEFECT]
         }
-        StreamingMarkupBuilder xmlBuilder = new StreamingMarkupBuilder()
-        return xmlBuilder.bind(clicheData).toString()
+        // Project points
+        clicheValues[Cliche.FUNCTIONAL_STORY_PROJECT_POINTS] = projectPoints.all[Story.TYPE_USER_STORY] // TODO NOT USED
+        clicheValues[Cliche.TECHNICAL_STORY_PROJECT_POINTS] = projectPoints.all[Story.TYPE_TECHNICAL_STORY] // TODO NOT USED
+        clicheValues[Cliche.DEFECT_STORY_PROJECT_POINTS] = projectPoints.all[Story.TYPE_DEFECT] // TODO NOT USED
+        clicheValues[Cliche.PROJECT_POINTS] = projectPoints.allTotal
+        // Project remaining points
+        storyTypes.each { storyType ->
+            clicheValues[grailsApplication.config.icescrum.resourceBundles.storyTypesCliche[storyType]] = projectPoints.remaining[storyType]
+        }
+        clicheValues[Cliche.PROJECT_REMAINING_POINTS] = projectPoints.remainingTotal
+        // Release remaining points
+        clicheValues[Cliche.FUNCTIONAL_STORY_RELEASE_REMAINING_POINTS] = releasePoints.remaining[Story.TYPE_USER_STORY] // TODO NOT USED
+        clicheValues[Cliche.TECHNICAL_STORY_RELEASE_REMAINING_POINTS] = releasePoints.remaining[Story.TYPE_TECHNICAL_STORY] // TODO NOT USED
+        clicheValues[Cliche.DEFECT_STORY_RELEASE_REMAINING_POINTS] = releasePoints.remaining[Story.TYPE_DEFECT] // TODO NOT USED
+        // Stories points by states
+        clicheValues[Cliche.FINISHED_STORIES] = countByState[Story.STATE_DONE]
+        clicheValues[Cliche.INPROGRESS_STORIES] = countByState[Story.STATE_INPROGRESS]
+        clicheValues[Cliche.PLANNED_STORIES] = countByState[Story.STATE_PLANNED]
+        clicheValues[Cliche.ESTIMATED_STORIES] = countByState[Story.STATE_ESTIMATED]
+        clicheValues[Cliche.ACCEPTED_STORIES] = countByState[Story.STATE_ACCEPTED]
+        clicheValues[Cliche.SUGGESTED_STORIES] = countByState[Story.STATE_SUGGESTED]
+        return clicheValues
     }
 
     void createOrUpdateDailyTasksCliche(Sprint sprint) {
@@ -148,102 +263,214 @@ class ClicheService {
         def tasksByType = taskTypes.collectEntries { taskType -> [(taskType): 0] }
         float spentTime = 0
         float remainingTime = 0
-        sprint.tasks.each { task ->
-            tasksByState[task.state]++
-            tasksByType[task.type]++
-            spentTime += task.spent ?: 0
-            remainingTime += task.estimation ?: 0
+        Task.executeQuery("""SELECT t.state, t.type, COUNT(t.id), SUM(t.spent), SUM(t.estimation)
+                             FROM Task t
+                             WHERE t.backlog.id = :sprintId
+                             GROUP BY t.state, t.type""", [sprintId: sprint.id]).each { row ->
+            def (state, type, count, spent, estimation) = row
+            tasksByState[state] += count as int
+            tasksByType[type] += count as int
+            spentTime += (spent ?: 0) as float
+            remainingTime += (estimation ?: 0) as float
         }
+        int storiesCount = 0
         int storiesDoneCount = 0
         int storiesInProgressCount = 0
         int storiesInReviewCount = 0
         def totalPointsStories = 0
         def pointsDoneStories = 0
-        sprint.stories.each { story ->
-            switch (story.state) {
+        Story.executeQuery("""SELECT s.state, COUNT(s.id), SUM(s.effort)
+                              FROM Story s
+                              WHERE s.parentSprint.id = :sprintId
+                              GROUP BY s.state""", [sprintId: sprint.id]).each { row ->
+            def (state, count, points) = row
+            int storiesInState = count as int
+            storiesCount += storiesInState
+            switch (state) {
                 case Story.STATE_DONE:
-                    storiesDoneCount++
-                    pointsDoneStories += story.effort
+                    storiesDoneCount += storiesInState
+                    pointsDoneStories += points ?: 0
                     break
                 case Story.STATE_INPROGRESS:
-                    storiesInProgressCount++
+                    storiesInProgressCount += storiesInState
                     break
                 case Story.STATE_INREVIEW:
-                    storiesInReviewCount++
+                    storiesInReviewCount += storiesInState
                     break
             }
-            totalPointsStories += story.effort
-        }
-        def clicheData = {
-            cliche {
-                "${Cliche.TOTAL_STORIES}"(sprint.stories.size())
-                "${Cliche.STORIES_INPROGRESS}"(storiesInProgressCount) // TODO NOT USED
-                "${Cliche.STORIES_INREVIEW}"(storiesInReviewCount) // TODO NOT USED
-                "${Cliche.STORIES_DONE}"(storiesDoneCount)
-                "${Cliche.STORIES_TOTAL_POINTS}"(totalPointsStories)
-                "${Cliche.STORIES_POINTS_DONE}"(pointsDoneStories)
-                "${Cliche.TOTAL_TASKS}"(tasksByState[Task.STATE_WAIT] + tasksByState[Task.STATE_BUSY] + tasksByState[Task.STATE_DONE])
-                "${Cliche.TASKS_WAIT}"(tasksByState[Task.STATE_WAIT]) // TODO NOT USED
-                "${Cliche.TASKS_INPROGRESS}"(tasksByState[Task.STATE_BUSY]) // TODO NOT USED
-                "${Cliche.TASKS_DONE}"(tasksByState[Task.STATE_DONE])
-                "${Cliche.TASKS_SPRINT}"(tasksByType[Task.TYPE_RECURRENT] + tasksByType[Task.TYPE_URGENT]) // TODO NOT USED
-                "${Cliche.TASKS_RECURRENT}"(tasksByType[Task.TYPE_RECURRENT]) // TODO NOT USED
-                "${Cliche.TASKS_URGENT}"(tasksByType[Task.TYPE_URGENT]) // TODO NOT USED
-                "${Cliche.TASKS_STORY}"(tasksByType[null]) // TODO NOT USED
-                "${Cliche.REMAINING_TIME}"(remainingTime)
-                "${Cliche.TIME_SPENT}"(spentTime)
-            }
+            totalPointsStories += points ?: 0
         }
-        StreamingMarkupBuilder xmlBuilder = new StreamingMarkupBuilder()
+        Map<String, Object> clicheValues = [
+                (Cliche.TOTAL_STORIES)       : storiesCount,
+                (Cliche.STORIES_INPROGRESS)  : storiesInProgressCount, // TODO NOT USED
+                (Cliche.STORIES_INREVIEW)    : storiesInReviewCount, // TODO NOT USED
+                (Cliche.STORIES_DONE)        : storiesDoneCount,
+                (Cliche.STORIES_TOTAL_POINTS): totalPointsStories,
+                (Cliche.STORIES_POINTS_DONE) : pointsDoneStories,
+                (Cliche.TOTAL_TASKS)         : tasksByState[Task.STATE_WAIT] + tasksByState[Task.STATE_BUSY] + tasksByState[Task.STATE_DONE],
+                (Cliche.TASKS_WAIT)          : tasksByState[Task.STATE_WAIT], // TODO NOT USED
+                (Cliche.TASKS_INPROGRESS)    : tasksByState[Task.STATE_BUSY], // TODO NOT USED
+                (Cliche.TASKS_DONE)          : tasksByState[Task.STATE_DONE],
+                (Cliche.TASKS_SPRINT)        : tasksByType[Task.TYPE_RECURRENT] + tasksByType[Task.TYPE_URGENT], // TODO NOT USED
+                (Cliche.TASKS_RECURRENT)     : tasksByType[Task.TYPE_RECURRENT], // TODO NOT USED
+                (Cliche.TASKS_URGENT)        : tasksByType[Task.TYPE_URGENT], // TODO NOT USED
+                (Cliche.TASKS_STORY)         : tasksByType[null], // TODO NOT USED
+                (Cliche.REMAINING_TIME)      : remainingTime,
+                (Cliche.TIME_SPENT)          : spentTime
+        ]
         def today = new Date()
         def lastCliche = sprint.cliches?.size() ? sprint.cliches.asList().sort { it.datePrise }.last() : null
         if (lastCliche) {
             def days = today - lastCliche.datePrise
             if (days < 1) {
-                // Horrible hack:
-                // Cliche data may be written outside of here from plugins
-                // That means that if there is already a cliche to update, we need to merge data instead of replacing thus preserving existing data we don't own
-                // There is no easy way to merge data with XML nodes so we convert them to maps to merge them, then convert them back to XML through the builder
-                def xmlToMap = { String data ->
-                    new XmlSlurper().parseText(data).children().collectEntries {
-                        [it.name(), it.text()]
-                    }
-                }
-                Map newData = xmlToMap(xmlBuilder.bind(clicheData).toString())
-                Map oldData = xmlToMap(lastCliche.data)
-                String mergedData = xmlBuilder.bind {
-                    cliche {
-                        (oldData + newData).each { k, v -> // The "+" operator merges newData into oldData
-                            "$k"(v)
-                        }
-                    }
-                }.toString()
-                if (mergedData.encodeAsMD5() != lastCliche.data.encodeAsMD5()) {
+                // Cliche values may be written outside of here from plugins
+                // That means that if there is already a cliche to update, we need to merge values instead of replacing thus preserving existing values we don't own
+                String mergedData = JsonOutput.toJson(lastCliche.values + clicheValues) // The "+" operator merges clicheValues into the existing values
+                if (mergedData != lastCliche.storedData) {
                     sprint.lastUpdated = new Date()
                     sprint.save()
-                    lastCliche.data = mergedData
+                    lastCliche.storedData = mergedData
                     lastCliche.save()
                 }
                 return
             } else {
                 for (def i = 1; i < days; i++) {
-                    Cliche cliche = new Cliche(type: Cliche.TYPE_DAILY, datePrise: lastCliche.datePrise + i, data: lastCliche.data)
+                    Cliche cliche = new Cliche(type: Cliche.TYPE_DAILY, datePrise: lastCliche.datePrise + i, storedData: lastCliche.storedData)
                     save(cliche, sprint)
                 }
             }
         }
-        Cliche cliche = new Cliche(type: Cliche.TYPE_DAILY, datePrise: today, data: xmlBuilder.bind(clicheData).toString())
+        Cliche cliche = new Cliche(type: Cliche.TYPE_DAILY, datePrise: today)
+        cliche.values = clicheValues
         save(cliche, sprint)
     }
 
+    // Converts the cliches still stored as XML to the JSON format, readers support both formats meanwhile
+    void migrateXmlData() {
+        def ids = Cliche.executeQuery("SELECT c.id FROM Cliche c WHERE c.storedData LIKE '<%'")
+        if (!ids) {
+            return
+        }
+        def start = System.currentTimeMillis()
+        int migrated = 0
+        ids.collate(MIGRATION_BATCH_SIZE).each { List<Long> batch ->
+            try {
+                Cliche.withNewTransaction {
+                    Cliche.getAll(batch).each { Cliche cliche ->
+                        if (cliche && Cliche.isXmlData(cliche.storedData)) {
+                            cliche.values = Cliche.parseXmlData(cliche.storedData)
+                            cliche.save()
+                            migrated++
+                        }
+                    }
+                }
+            } catch (Exception e) { // Concurrent update, the cliche will be migrated when rewritten or on next start
+                log.warn("Error while migrating cliches $batch: $e.message")
+            }
+        }
+        if (log.infoEnabled) {
+            log.info("$migrated cliches migrated from XML to JSON in ${System.currentTimeMillis() - start}ms")
+        }
+    }
+
+    /**
+     * Takes the daily snapshot of all the sprints in progress, one project after the other, so charts can be read without writing.
+     * Missing days since the last snapshot of a sprint are backfilled with copies of its last cliche.
+     */
+    @NotTransactional
+    Map snapshotSprintsInProgress() {
+        long start = System.currentTimeMillis()
+        def report = [sprints: 0, errors: 0, slowestProjectId: null, slowestDuration: 0L]
+        def rows = Sprint.executeQuery("SELECT s.id, s.parentRelease.parentProject.id FROM Sprint s WHERE s.state = :state", [state: Sprint.STATE_INPROGRESS])
+        rows.collate(SNAPSHOT_BATCH_SIZE).each { List batch ->
+            batch.each { row ->
+                Long sprintId = row[0]
+                Long projectId = row[1]
+                long projectStart = System.currentTimeMillis()
+                try {
+                    // One transaction per sprint: a failure marks the transaction as rollback-only, it must not prevent the snapshots of the other sprints
+                    boolean snapshotTaken = Sprint.withNewTransaction {
+                        Sprint sprint = Sprint.get(sprintId)
+                        if (sprint?.state == Sprint.STATE_INPROGRESS) {
+                            createOrUpdateDailyTasksCliche(sprint)
+                            return true
+                        }
+                        return false
+                    }
+                    if (snapshotTaken) { // Counted once committed
+                        report.sprints++
+                    }
+                } catch (Exception e) {
+                    report.errors++
+                    log.error("Error while taking the daily snapshot of sprint $sprintId", e)
+                }
+                long duration = System.currentTimeMillis() - projectStart
+                if (duration > report.slowestDuration) {
+                    report.slowestDuration = duration
+                    report.slowestProjectId = projectId
+                }
+            }
+            batch.each { row ->
+                invalidateCharts((Long) row[1], true)
+            }
+        }
+        report.duration = System.currentTimeMillis() - start
+        report.date = new Date()
+        snapshotRuns.incrementAndGet()
+        snapshotErrors.addAndGet(report.errors)
+        lastSnapshotRun = report
+        if (log.infoEnabled) {
+            log.info("Daily snapshot of ${report.sprints} sprints taken in ${report.duration}ms (slowest project: ${report.slowestProjectId} in ${report.slowestDuration}ms)")
+        }
+        return report
+    }
+
+    Map getSnapshotStats() {
+        return [runs: snapshotRuns.get(), errors: snapshotErrors.get(), lastRun: lastSnapshotRun]
+    }
+
+    void start() {
+        if (Cliche.executeQuery("SELECT c.id FROM Cliche c WHERE c.storedData LIKE '<%'", [], [max: 1])) {
+            Thread thread = new Thread({
+                try {
+                    migrateXmlData()
+                } catch (Exception e) {
+                    log.error("Error while migrating cliches", e)
+                }
+            } as Runnable, 'icescrum-cliche-migration')
+            thread.daemon = true
+            thread.start()
+        }
+        def config = grailsApplication.config.icescrum.cliche.snapshot
+        if (config.enable instanceof Boolean ? config.enable : true) {
+            long interval = ((config.interval ?: 60) as long) * 60000L
+            snapshotTimer = new Timer('icescrum-cliche-snapshot', true)
+            snapshotTimer.scheduleAtFixedRate({
+                try {
+                    // The lock is kept for most of the interval so the snapshots are taken once per interval whatever the number of nodes
+                    ClusterJob.runLocked('cliche.snapshot', (interval * 9).intdiv(10), false) {
+                        snapshotSprintsInProgress()
+                    }
+                } catch (Exception e) {
+                    log.error("Error while taking the daily snapshots", e)
+                }
+            } as TimerTask, 60000L, interval)
+        }
+    }
+
+    @Override
+    void destroy() {
+        snapshotTimer?.cancel()
+    }
+
     def unMarshall(def clicheXml, def options) {
         def timebox = options.timebox
         Cliche.withTransaction(readOnly: !options.save) { transaction ->
             def cliche = new Cliche(
                     type: clicheXml.type.text().toInteger(),
-                    datePrise: DateUtils.parseDateFromExport(clicheXml.datePrise.text()),
-                    data: clicheXml.data.text()
+                    datePrise: DateUtils.parseDateFromExport(clicheXml.datePrise.text())
             )
+            cliche.values = Cliche.parseData(clicheXml.data.text())
             if (timebox) {
                 timebox.addToCliches(cliche)
             }
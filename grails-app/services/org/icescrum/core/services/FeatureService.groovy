@@ -227,7 +227,11 @@ class FeatureService extends IceScrumEventPublisher {
             )
             // References on other objects
             if (project) {
-                project.addToFeatures(feature)
+                if (options.clearSession) {
+                    feature.backlog = project // Only the owning side, so the features of the project aren't loaded again after each batch
+                } else {
+                    project.addToFeatures(feature)
+                }
             }
             // Save before some hibernate stuff
             if (options.save) {
@@ -239,13 +243,13 @@ class FeatureService extends IceScrumEventPublisher {
                 if (project) {
                     featureXml.comments.comment.each { _commentXml ->
                         def uid = options.userUIDByImportedID?."${_commentXml.posterId.text().toInteger()}" ?: null
-                        User user = project.getUserByUidOrOwner(uid)
+                        User user = project.getUserByUidOrOwner(uid, options.usersByUid)
                         commentService.importComment(feature, user, _commentXml.body.text(), DateUtils.parseDateFromExport(_commentXml.dateCreated.text()))
                     }
                     feature.comments_count = featureXml.comments.comment.size() ?: 0
                     featureXml.attachments.attachment.each { _attachmentXml ->
                         def uid = options.userUIDByImportedID?."${_attachmentXml.posterId.text().toInteger()}" ?: null
-                        User user = project.getUserByUidOrOwner(uid)
+                        User user = project.getUserByUidOrOwner(uid, options.usersByUid)
                         ApplicationSupport.importAttachment(feature, user, options.path, _attachmentXml)
                     }
                     feature.attachments_count = featureXml.attachments.attachment.size() ?: 0
@@ -0,0 +1,369 @@
+/*
+ * Copyright (c) 2020 Kagilum SAS.
+ *
+ * This file is part of iceScrum.
+ *
+ * iceScrum is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * iceScrum is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with iceScrum.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.icescrum.core.services
+
+import grails.transaction.NotTransactional
+import grails.transaction.Transactional
+import org.icescrum.core.domain.Hook
+import org.icescrum.core.domain.HookDelivery
+import org.icescrum.core.hook.HookDeliveryClient
+import org.icescrum.core.support.ApplicationSupport
+import org.springframework.beans.factory.DisposableBean
+import org.springframework.beans.factory.InitializingBean
+import org.springframework.transaction.support.TransactionSynchronizationAdapter
+import org.springframework.transaction.support.TransactionSynchronizationManager
+
+import java.util.concurrent.*
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Sends the hook requests stored in the HookDelivery outbox: requests are stored in the transaction of the hook listener,
+ * so they are not lost on restart, and sent in background by a bounded pool sharing a pooled HTTP client.
+ * The due deliveries of a hook are sent one after the other by a single task (batch) over a kept-alive connection,
+ * the number of concurrent batches per host is limited and failed deliveries are retried with an exponential backoff.
+ * Deliveries are claimed with a lock date so that several nodes can share the outbox; a lock that is not released (e.g. crash) expires.
+ */
+@Transactional
+class HookDeliveryService implements InitializingBean, DisposableBean {
+
+    def grailsApplication
+    def hookService
+
+    HookDeliveryClient client
+
+    private Timer timer
+    private ThreadPoolExecutor executor
+    private final ConcurrentMap<String, Semaphore> hostPermits = new ConcurrentHashMap<String, Semaphore>()
+    private final AtomicBoolean pollScheduled = new AtomicBoolean()
+    private final AtomicLong enqueued = new AtomicLong()
+    private final AtomicLong delivered = new AtomicLong()
+    private final AtomicLong failed = new AtomicLong()
+    private final AtomicLong dropped = new AtomicLong()
+    private final AtomicLong hostBusy = new AtomicLong()
+
+    @Override
+    void afterPropertiesSet() {
+        def config = grailsApplication.config.icescrum.hooks
+        client = new HookDeliveryClient((config.delivery.maxConnections ?: 50) as int, getMaxPerHost(), (config.httpTimeout ?: 10000) as int, (config.socketTimeout ?: 10000) as int)
+    }
+
+    void enqueue(Hook hook, String event, String payload) {
+        new HookDelivery(hookId: hook.id, event: event, payload: payload, nextAttempt: new Date()).save()
+        enqueued.incrementAndGet()
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                void afterCommit() {
+                    wakeUp()
+                }
+            })
+        } else {
+            wakeUp()
+        }
+    }
+
+    // Polls as soon as possible instead of waiting for the next scheduled poll, wake ups are coalesced
+    void wakeUp() {
+        if (timer && pollScheduled.compareAndSet(false, true)) {
+            try {
+                timer.schedule(createPollTask(), 0L)
+            } catch (IllegalStateException e) { // Timer cancelled
+                pollScheduled.set(false)
+            }
+        }
+    }
+
+    // Due deliveries are selected hook by hook: a hook with a large backlog or a slow host only fills its own batch,
+    // and hooks whose host has no permit available are left for a next poll without reading their deliveries
+    @NotTransactional
+    void poll() {
+        def config = grailsApplication.config.icescrum.hooks.delivery
+        int maxHooks = (config.batchSize ?: 100) as int
+        int hookBatchSize = (config.hookBatchSize ?: 20) as int
+        Date now = new Date()
+        Date lockedUntil = new Date(now.time + ((config.lockTimeout ?: 300) as long) * 1000L)
+        List<Map> hooks = HookDelivery.withNewTransaction {
+            List<Long> hookIds = HookDelivery.executeQuery("""SELECT d.hookId
+                                                              FROM HookDelivery d
+                                                              WHERE d.nextAttempt <= :now
+                                                              AND (d.lockedUntil IS NULL OR d.lockedUntil < :now)
+                                                              GROUP BY d.hookId
+                                                              ORDER BY MIN(d.id)""", [now: now], [max: maxHooks])
+            List<Map> dueHooks = []
+            hookIds.each { Long hookId ->
+                Hook hook = Hook.get(hookId)
+                dueHooks << (hook ? [id: hook.id, url: hook.url, secret: hook.secret, ignoreSsl: hook.ignoreSsl, enabled: hook.enabled] : [id: hookId, enabled: false])
+            }
+            return dueHooks
+        }
+        boolean backlog = hooks.size() >= maxHooks
+        hooks.each { Map hook ->
+            if (!hook.enabled) { // Hook removed or disabled meanwhile
+                removeDeliveries(hook.id)
+                return
+            }
+            Semaphore permit = getHostPermit(hook.url)
+            if (!permit.tryAcquire()) { // Enough requests in progress for this host, left for a next poll
+                hostBusy.incrementAndGet()
+                return
+            }
+            List<Map> deliveries
+            try {
+                deliveries = claim(hook.id, hookBatchSize, now, lockedUntil)
+            } catch (Exception e) {
+                permit.release()
+                throw e
+            }
+            if (!deliveries) {
+                permit.release()
+                return
+            }
+            if (deliveries.size() >= hookBatchSize) {
+                backlog = true
+            }
+            try {
+                executor.execute({
+                    try {
+                        deliver(hook, deliveries)
+                    } catch (Exception e) {
+                        log.error("Error while delivering the requests of hook (id:$hook.id)", e)
+                        unlock(deliveries*.id) // Those already delivered have been deleted
+                    } finally {
+                        permit.release()
+                    }
+                    wakeUp() // Deliveries of this host may have waited for this batch
+                } as Runnable)
+            } catch (RejectedExecutionException e) {
+                permit.release()
+                unlock(deliveries*.id)
+            }
+        }
+        if (backlog) {
+            wakeUp()
+        }
+    }
+
+    Map getStats() {
+        def stats = [
+                enqueued: enqueued.get(),
+                delivered: delivered.get(),
+                failed: failed.get(),
+                dropped: dropped.get(),
+                hostBusy: hostBusy.get()
+        ]
+        if (executor) {
+            stats.executor = [poolSize: executor.poolSize, active: executor.activeCount, queued: executor.queue.size(), completed: executor.completedTaskCount]
+        }
+        return stats
+    }
+
+    void start() {
+        def config = grailsApplication.config.icescrum.hooks.delivery
+        int poolSize = (config.poolSize ?: 4) as int
+        AtomicInteger threadNumber = new AtomicInteger()
+        executor = new ThreadPoolExecutor(poolSize, poolSize, 60L, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>((config.queueSize ?: 100) as int), { Runnable runnable ->
+            Thread thread = new Thread(runnable, 'icescrum-hook-delivery-' + threadNumber.incrementAndGet())
+            thread.daemon = true
+            return thread
+        } as ThreadFactory)
+        executor.allowCoreThreadTimeOut(true)
+        long interval = ((config.pollInterval ?: 10) as long) * 1000L
+        timer = new Timer('icescrum-hook-delivery', true)
+        timer.schedule(createPollTask(), interval, interval)
+    }
+
+    @Override
+    void destroy() {
+        timer?.cancel()
+        executor?.shutdown()
+        client?.shutdown()
+    }
+
+    private void deliver(Map hook, List<Map> deliveries) {
+        Map result = [success: 0]
+        for (int i = 0; i < deliveries.size(); i++) {
+            Map delivery = deliveries[i]
+            Map<String, String> headers = ['x-icescrum-event': delivery.event]
+            if (hook.secret) {
+                def signature = ApplicationSupport.hmac(delivery.payload, hook.secret)
+                if (log.debugEnabled) {
+                    log.debug("hook (id:$hook.id) - secret set with ${signature}")
+                }
+                headers['x-icescrum-signature'] = signature
+            }
+            if (log.debugEnabled) {
+                log.debug("hook (id:$hook.id) - request sent ${hook.url} for $delivery.event")
+            }
+            HookDeliveryClient.Response response = null
+            String error = null
+            try {
+                response = client.post(hook.url, hook.ignoreSsl, headers, delivery.payload)
+                if (!response.success) {
+                    error = "StatusCode: $response.status - statusLine: $response.statusLine - data: $response.body"
+                }
+            } catch (Exception e) { // Network errors but also invalid URLs, the delivery must be retried or dropped rather than left locked
+                error = "${e.class.simpleName}: ${e.message}"
+            }
+            if (response?.status == 410) { // Case zapier or other restWebhook https://zapier.com/developer/documentation/v2/rest-hooks/#step-2-sending-hooks-a-call-from-your-app-to-zapier
+                if (log.debugEnabled) {
+                    log.debug("hook (id:$hook.id) - doesn't exist, delete it")
+                }
+                Hook.withNewTransaction {
+                    Hook hookToDelete = Hook.get(hook.id)
+                    if (hookToDelete) {
+                        hookService.delete(hookToDelete, true) // Removes its pending deliveries
+                    }
+                }
+                dropped.addAndGet(deliveries.size() - i)
+                return
+            } else if (error) {
+                if (log.debugEnabled) {
+                    log.debug("hook (id:$hook.id) - request failure $error")
+                }
+                failed.incrementAndGet()
+                recordFailure(hook.id, delivery.id, error)
+                unlock(deliveries.subList(i + 1, deliveries.size())*.id) // The endpoint is likely unavailable, don't insist during this batch
+                return
+            } else {
+                if (log.debugEnabled) {
+                    log.debug("hook (id:$hook.id) - request success")
+                }
+                HookDelivery.withNewTransaction {
+                    HookDelivery.executeUpdate("DELETE FROM HookDelivery d WHERE d.id = :id", [id: delivery.id])
+                    if (i == deliveries.size() - 1) { // Once per batch
+                        Hook hookToUpdate = Hook.get(hook.id)
+                        if (hookToUpdate) {
+                            hookToUpdate.dateLastRequest = new Date()
+                            if (hookToUpdate.countErrors) {
+                                hookToUpdate.countErrors = 0
+                                hookToUpdate.lastError = null
+                            }
+                            hookToUpdate.save()
+                        }
+                    }
+                }
+                delivered.incrementAndGet()
+            }
+        }
+    }
+
+    private void recordFailure(Long hookId, Long deliveryId, String error) {
+        def config = grailsApplication.config.icescrum
+        HookDelivery.withNewTransaction {
+            Hook hook = Hook.get(hookId)
+            if (hook) {
+                hook.countErrors += 1
+                hook.enabled = config.hooks.disableAfterErrors > 0 ? !(hook.countErrors >= config.hooks.disableAfterErrors) : true
+                hook.lastError = error
+                hook.save()
+            }
+            HookDelivery delivery = HookDelivery.get(deliveryId)
+            if (!hook?.enabled) {
+                dropped.addAndGet(HookDelivery.executeUpdate("DELETE FROM HookDelivery d WHERE d.hookId = :hookId", [hookId: hookId]))
+            } else if (delivery) {
+                delivery.attempts += 1
+                if (delivery.attempts >= ((config.hooks.delivery.maxAttempts ?: 8) as int)) {
+                    delivery.delete()
+                    dropped.incrementAndGet()
+                } else {
+                    delivery.lastError = error
+                    delivery.lockedUntil = null
+                    delivery.nextAttempt = new Date(System.currentTimeMillis() + getRetryDelay(delivery.attempts))
+                    delivery.save()
+                }
+            }
+        }
+    }
+
+    // Exponential backoff from retryDelay up to maxRetryDelay (seconds), with a bit of jitter so retries of the same host spread out
+    private long getRetryDelay(int attempts) {
+        def config = grailsApplication.config.icescrum.hooks.delivery
+        long retryDelay = ((config.retryDelay ?: 30) as long) * 1000L
+        long maxRetryDelay = ((config.maxRetryDelay ?: 3600) as long) * 1000L
+        long delay = Math.min(retryDelay * (1L << Math.min(attempts - 1, 20)), maxRetryDelay)
+        return delay + ThreadLocalRandom.current().nextLong(delay.intdiv(10) + 1)
+    }
+
+    private static List<Map> claim(Long hookId, int max, Date now, Date lockedUntil) {
+        return HookDelivery.withNewTransaction {
+            def rows = HookDelivery.executeQuery("""SELECT d.id, d.event, d.payload
+                                                    FROM HookDelivery d
+                                                    WHERE d.hookId = :hookId
+                                                    AND d.nextAttempt <= :now
+                                                    AND (d.lockedUntil IS NULL OR d.lockedUntil < :now)
+                                                    ORDER BY d.id""", [hookId: hookId, now: now], [max: max])
+            rows.findAll { row ->
+                HookDelivery.executeUpdate("""UPDATE HookDelivery d
+                                              SET d.lockedUntil = :lockedUntil
+                                              WHERE d.id = :id
+                                              AND (d.lockedUntil IS NULL OR d.lockedUntil < :now)""", [lockedUntil: lockedUntil, id: row[0], now: now]) == 1
+            }.collect { row ->
+                [id: row[0], event: row[1], payload: row[2]]
+            }
+        }
+    }
+
+    private static void unlock(List<Long> ids) {
+        if (ids) {
+            HookDelivery.withNewTransaction {
+                HookDelivery.executeUpdate("UPDATE HookDelivery d SET d.lockedUntil = NULL WHERE d.id IN (:ids)", [ids: ids])
+            }
+        }
+    }
+
+    private void removeDeliveries(Long hookId) {
+        HookDelivery.withNewTransaction {
+            dropped.addAndGet(HookDelivery.executeUpdate("DELETE FROM HookDelivery d WHERE d.hookId = :hookId", [hookId: hookId]))
+        }
+    }
+
+    private Semaphore getHostPermit(String url) {
+        String host
+        try {
+            URI uri = new URI(url)
+            host = uri.host + ':' + uri.port
+        } catch (URISyntaxException e) {
+            host = url
+        }
+        Semaphore permit = hostPermits[host]
+        if (permit == null) {
+            hostPermits.putIfAbsent(host, new Semaphore(getMaxPerHost()))
+            permit = hostPermits[host]
+        }
+        return permit
+    }
+
+    private int getMaxPerHost() {
+        return (grailsApplication.config.icescrum.hooks.delivery.maxPerHost ?: 4) as int
+    }
+
+    private TimerTask createPollTask() {
+        return {
+            pollScheduled.set(false)
+            try {
+                poll()
+            } catch (Exception e) {
+                log.error("Error while polling the hook deliveries", e)
+            }
+        } as TimerTask
+    }
+}
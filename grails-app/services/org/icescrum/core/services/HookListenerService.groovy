@@ -21,20 +21,27 @@
 
 package org.icescrum.core.services
 
-import groovyx.net.http.ContentType
-import groovyx.net.http.HTTPBuilder
-import groovyx.net.http.Method
 import org.icescrum.core.domain.Hook
 import org.icescrum.core.event.IceScrumEventType
 import org.icescrum.core.event.IceScrumListener
+import org.icescrum.core.hook.DefaultEventMessageRenderer
+import org.icescrum.core.hook.EventMessageRenderer
 import org.icescrum.core.support.ApplicationSupport
 
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentMap
+
 class HookListenerService {
 
+    private static final ConcurrentMap<String, EventMessageRenderer> renderers = new ConcurrentHashMap<String, EventMessageRenderer>()
+
     def grailsApplication
     def hookService
+    def hookDeliveryService
     def commentService
 
+    // Synchronous so the payload is rendered from the state of the object when the event is published (DELETE included):
+    // deliveries are saved in the same transaction and only sent after commit by HookDeliveryService
     @IceScrumListener(domains = ['*'])
     void hook(IceScrumEventType type, Object hookableObject, Map dirtyProperties) {
         def allHooks = []
@@ -50,6 +57,9 @@ class HookListenerService {
             } else if (type == IceScrumEventType.UPDATE && dirtyProperties.removedComment) {
                 events = [getEventName(hookableObject, "removedComment")]
             }
+            if (!hookService.hasSubscribers(events)) { // Most events
+                return
+            }
             String workspaceType = grailsApplication.config.icescrum.workspaces.find {
                 workspace -> workspace.value.hooks?.events?.find { hook -> hook == events[0] }
             }?.value?.type ?: null
@@ -58,10 +68,10 @@ class HookListenerService {
             } else if (workspaceType) {
                 Long workspaceId = findWorkspaceId(type == IceScrumEventType.DELETE ? dirtyProperties : hookableObject, workspaceType)
                 if (workspaceId) {
-                    allHooks = Hook.queryFindAllByWorkspaceTypeAndWorkspaceIdAndEventsFromList(workspaceType, workspaceId, events)
+                    allHooks = hookService.findAllSubscribed(workspaceType, workspaceId, events)
                 }
             } else if (grailsApplication.config.icescrum.hooks.enable) {
-                allHooks = Hook.queryFindAllByWorkspaceTypeNullAndWorkspaceIdNullAndEventsFromList(events)
+                allHooks = hookService.findAllSubscribed(null, null, events)
             }
         }
         if (allHooks) {
@@ -79,69 +89,25 @@ class HookListenerService {
                     objectToRender = IceScrumEventType.DELETE == type ? dirtyProperties.findAll { prop -> return !(prop.value instanceof Collection) } : hookableObject
                 }
                 // Find the renderer
-                def payload = Class.forName("${eventMessageRendererClass ?: 'org.icescrum.core.hook.DefaultEventMessageRenderer'}").newInstance().render(objectToRender, events, dirtyProperties)
+                def payload = getRenderer(eventMessageRendererClass ?: DefaultEventMessageRenderer.name).render(objectToRender, events, dirtyProperties)
                 hooks.each { hook ->
-                    Hook.async.task {
-                        def http = new HTTPBuilder(hook.url)
-                        if (hook.ignoreSsl) {
-                            http.ignoreSSLIssues()
-                        }
-                        http.getClient().getParams().setParameter("http.connection.timeout", grailsApplication.config.icescrum.hooks.httpTimeout)
-                        http.getClient().getParams().setParameter("http.socket.timeout", grailsApplication.config.icescrum.hooks.socketTimeout)
-                        http.request(Method.POST, ContentType.JSON) {
-                            def eventToDisplay = events.size() > 1 ? hook.events.contains(events[1]) ? events[1] : events[0] : events // If we have update and state send the correct one
-                            headers.'x-icescrum-event' = eventToDisplay
-                            if (hook.secret) {
-                                def signature = ApplicationSupport.hmac(payload, hook.secret)
-                                if (log.debugEnabled) {
-                                    log.debug("hook (id:$hook.id) - secret set with ${signature}")
-                                }
-                                headers.'x-icescrum-signature' = signature
-                            }
-                            if (log.debugEnabled) {
-                                log.debug("hook (id:$hook.id) - request sent ${hook.url} for $eventToDisplay")
-                            }
-                            body = payload
-                            response.failure = { resp ->
-                                withTransaction {
-                                    def hookToUpdate = Hook.get(hook.id)
-                                    if (resp.status == 410) { // Case zapier or other restWebhook https://zapier.com/developer/documentation/v2/rest-hooks/#step-2-sending-hooks-a-call-from-your-app-to-zapier
-                                        if (log.debugEnabled) {
-                                            log.debug("hook (id:$hook.id) - doesn't exist, delete it")
-                                        }
-                                        hookService.delete(hookToUpdate, true)
-                                    } else {
-                                        hookToUpdate.countErrors += 1
-                                        hookToUpdate.enabled = grailsApplication.config.icescrum.hooks.disableAfterErrors > 0 ? !(hookToUpdate.countErrors >= grailsApplication.config.icescrum.hooks.disableAfterErrors) : true
-                                        hookToUpdate.lastError = "StatusCode: $resp.status - statusLine: $resp.statusLine - data: $resp.data"
-                                        if (log.debugEnabled) {
-                                            log.debug("hook (id:$hook.id) - request failure $hookToUpdate.lastError")
-                                        }
-                                        hookToUpdate.save(flush: true)
-                                    }
-                                }
-                            }
-                            response.success = {
-                                withTransaction {
-                                    def hookToUpdate = Hook.get(hook.id)
-                                    if (log.debugEnabled) {
-                                        log.debug("hook (id:$hook.id) - request success")
-                                    }
-                                    hookToUpdate.dateLastRequest = new Date()
-                                    if (hookToUpdate.countErrors) {
-                                        hookToUpdate.countErrors = 0
-                                        hookToUpdate.lastError = null
-                                        hookToUpdate.save(flush: true)
-                                    }
-                                }
-                            }
-                        }
-                    }
+                    def eventToDisplay = events.size() > 1 && hook.events.contains(events[1]) ? events[1] : events[0] // If we have update and state send the correct one
+                    hookDeliveryService.enqueue(hook, eventToDisplay, payload)
                 }
             }
         }
     }
 
+    // Renderers are stateless, one instance per class is enough
+    private static EventMessageRenderer getRenderer(String className) {
+        EventMessageRenderer renderer = renderers[className]
+        if (renderer == null) {
+            renderers.putIfAbsent(className, (EventMessageRenderer) Class.forName(className).newInstance())
+            renderer = renderers[className]
+        }
+        return renderer
+    }
+
     private static String getEventName(Object object, IceScrumEventType type) {
         return getEventName(object, type.toString().toLowerCase())
     }
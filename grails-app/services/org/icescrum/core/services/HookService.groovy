@@ -21,22 +21,31 @@
 
 package org.icescrum.core.services
 
+import grails.transaction.NotTransactional
 import grails.transaction.Transactional
 import groovyx.net.http.HTTPBuilder
 import groovyx.net.http.Method
 import org.icescrum.core.domain.Hook
+import org.icescrum.core.domain.HookDelivery
 import org.icescrum.core.event.IceScrumEventPublisher
+import org.icescrum.core.hook.HookSubscriptionIndex
 import org.icescrum.core.utils.DateUtils
+import org.springframework.transaction.support.TransactionSynchronizationAdapter
+import org.springframework.transaction.support.TransactionSynchronizationManager
 
 @Transactional
 class HookService extends IceScrumEventPublisher {
 
     def grailsApplication
     def appService
+    def pushService
+
+    private final HookSubscriptionIndex subscriptionIndex = new HookSubscriptionIndex()
 
     def save(Hook hook) {
         manageAndCleanEvents(hook)
         hook.save(flush: true)
+        indexAfterCommit(hook)
     }
 
     def update(Hook hook) {
@@ -46,6 +55,7 @@ class HookService extends IceScrumEventPublisher {
             hook.countErrors = 0
         }
         hook.save(flush: true)
+        indexAfterCommit(hook)
     }
 
     def delete(Hook hook, boolean forceDelete = false) {
@@ -55,7 +65,43 @@ class HookService extends IceScrumEventPublisher {
             http.getClient().getParams().setParameter("http.socket.timeout", grailsApplication.config.icescrum.hooks.socketTimeout)
             http.request(Method.DELETE) {}
         }
+        HookDelivery.executeUpdate("DELETE FROM HookDelivery d WHERE d.hookId = :hookId", [hookId: hook.id])
         hook.delete(flush: true)
+        indexAfterCommit(hook, true)
+    }
+
+    boolean hasSubscribers(Collection<String> events) {
+        return getSubscriptionIndex().isSubscribed(events)
+    }
+
+    // Enabled hooks of the workspace (or global hooks if workspaceType is null) subscribed to any of the events
+    List<Hook> findAllSubscribed(String workspaceType, Long workspaceId, Collection<String> events) {
+        Set<Long> hookIds = getSubscriptionIndex().getHookIds(workspaceType, workspaceId, events)
+        if (!hookIds) {
+            return []
+        }
+        return Hook.getAll(hookIds.toList()).findAll { Hook hook -> // The index may be stale (hooks changed on another node or without HookService)
+            hook && hook.enabled && hook.workspaceType == workspaceType && hook.workspaceId == workspaceId && hook.events.any { it in events }
+        }
+    }
+
+    Map getSubscriptionIndexStats() {
+        return subscriptionIndex.stats
+    }
+
+    // Hooks created, updated or deleted on another node: their current state is read from the database
+    @NotTransactional
+    void indexHooksFromPeer(List<String> hookIds) {
+        Hook.withNewSession {
+            hookIds.each { String hookId ->
+                Hook hook = Hook.get(hookId.toLong())
+                if (hook?.enabled) {
+                    subscriptionIndex.put(hook.id, hook.workspaceType, hook.workspaceId, hook.events?.toList())
+                } else {
+                    subscriptionIndex.remove(hookId.toLong())
+                }
+            }
+        }
     }
 
     def unMarshall(hookXml, options) { // TODO add global export & workspace exports
@@ -78,11 +124,54 @@ class HookService extends IceScrumEventPublisher {
             )
             if (options.save) {
                 hook.save()
+                indexAfterCommit(hook)
             }
             return (Hook) importDomainsPlugins(hookXml, hook, options)
         }
     }
 
+    // Loaded on first use then reloaded periodically, in case an invalidation from another node has been lost
+    private HookSubscriptionIndex getSubscriptionIndex() {
+        long refreshInterval = ((grailsApplication.config.icescrum.hooks.index.refreshInterval ?: 5) as long) * 60000L
+        if (System.currentTimeMillis() - subscriptionIndex.loadedAt > refreshInterval) {
+            synchronized (subscriptionIndex) {
+                if (System.currentTimeMillis() - subscriptionIndex.loadedAt > refreshInterval) {
+                    subscriptionIndex.load(Hook.executeQuery("SELECT h.id, h.workspaceType, h.workspaceId, e FROM Hook h inner join h.events e WHERE h.enabled = :enabled", [enabled: true]))
+                }
+            }
+        }
+        return subscriptionIndex
+    }
+
+    private void indexAfterCommit(Hook hook, boolean deleted = false) {
+        if (!hook.id || hook.hasErrors()) {
+            return
+        }
+        Long hookId = hook.id
+        String workspaceType = hook.workspaceType
+        Long workspaceId = hook.workspaceId
+        List<String> events = hook.events?.toList()
+        boolean subscribed = !deleted && hook.enabled
+        Closure updateIndex = {
+            if (subscribed) {
+                subscriptionIndex.put(hookId, workspaceType, workspaceId, events)
+            } else {
+                subscriptionIndex.remove(hookId)
+            }
+        }
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                void afterCommit() {
+                    updateIndex()
+                }
+            })
+        } else {
+            updateIndex()
+        }
+        pushService.publishInvalidation('hooks', [hookId.toString()])
+    }
+
     private manageAndCleanEvents(hook) {
         def events = hook.workspaceType ? grailsApplication.config.icescrum.workspaces."${hook.workspaceType}".hooks.events : grailsApplication.config.icescrum.hooks.events
         def eventsToSave = []
@@ -46,6 +46,7 @@ class ListenerService {
     def meetingService
     def grailsApplication
     def attachmentService
+    def clicheService
 
     @IceScrumListener(domain = 'story', eventType = IceScrumEventType.CREATE)
     void storyCreate(Story story, Map dirtyProperties) {
@@ -132,7 +133,16 @@ class ListenerService {
 
     @IceScrumListener(domain = 'story', eventType = IceScrumEventType.PARTIAL_UPDATE)
     void storyPartialUpdate(Story story, Map dirtyProperties) {
-        if (dirtyProperties.containsKey('rank')) {
+        if (dirtyProperties.containsKey('shiftedStories')) { // Stories of the same backlog whose rank has changed during a move, in a single message
+            Project project = story.backlog
+            def ranksData = [class    : 'Story',
+                             ranks    : dirtyProperties.shiftedStories.collect { Story shiftedStory -> [id: shiftedStory.id, rank: shiftedStory.rank] },
+                             messageId: 'story-ranks-' + UUID.randomUUID()]
+            if (story.parentSprint) {
+                ranksData.parentSprint = getSprintAsShort(story.parentSprint)
+            }
+            pushService.broadcastToProjectRelatedChannels(IceScrumEventType.UPDATE, ranksData, project.id)
+        } else if (dirtyProperties.containsKey('rank')) {
             Project project = story.backlog
             def storyData = [class: 'Story', id: story.id, rank: story.rank, messageId: 'story-' + story.id + '-rank']
             if (story.parentSprint) {
@@ -542,6 +552,26 @@ class ListenerService {
         object.lastUpdated = new Date()
     }
 
+    @IceScrumListener(domains = ['story', 'task'])
+    void chartCurrentDataChanged(IceScrumEventType type, object, Map dirtyProperties) {
+        if (type in [IceScrumEventType.CREATE, IceScrumEventType.UPDATE, IceScrumEventType.DELETE]) {
+            Long projectId = object instanceof Story ? (object.backlog?.id ?: dirtyProperties?.backlog?.id) : object.parentProject?.id
+            if (projectId) {
+                clicheService.invalidateCharts(projectId, true)
+            }
+        }
+    }
+
+    @IceScrumListener(domains = ['sprint', 'release', 'project'])
+    void chartHistoricalDataChanged(IceScrumEventType type, object, Map dirtyProperties) {
+        if (type in [IceScrumEventType.CREATE, IceScrumEventType.UPDATE, IceScrumEventType.DELETE]) { // Cliches are created and removed along with sprint and release updates
+            Long projectId = object instanceof Sprint ? object.parentRelease?.parentProject?.id : object instanceof Release ? object.parentProject?.id : (object.id ?: dirtyProperties?.id)
+            if (projectId) {
+                clicheService.invalidateCharts(projectId, false)
+            }
+        }
+    }
+
     private Map getSprintAsShort(Sprint sprint) {
         def sprintData = [id: sprint.id, class: 'Sprint']
         grailsApplication.config.icescrum.marshaller.sprint.asShort.each { String sprintProperty ->
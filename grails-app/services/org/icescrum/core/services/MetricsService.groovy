@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2020 Kagilum SAS.
+ *
+ * This file is part of iceScrum.
+ *
+ * iceScrum is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * iceScrum is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with iceScrum.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.icescrum.core.services
+
+import grails.converters.JSON
+import org.icescrum.core.event.IceScrumEventDispatcher
+import org.icescrum.core.support.MetricsMXBean
+import org.icescrum.core.support.ProfilingSupport
+import org.icescrum.core.utils.TextileRenderer
+import org.springframework.beans.factory.DisposableBean
+
+import javax.management.MBeanServer
+import javax.management.ObjectName
+import javax.management.StandardMBean
+import java.lang.management.ManagementFactory
+
+/**
+ * Gathers the request latencies measured by ProfilingSupport and the counters kept by the services (push, events, hooks, emails, caches)
+ * in a single map, rendered as JSON by the admin metrics action and exposed via JMX as org.icescrum:type=Metrics.
+ * Nothing is computed in advance: each read takes a snapshot, so polling it often is cheap.
+ */
+class MetricsService implements MetricsMXBean, DisposableBean {
+
+    static transactional = false
+
+    private static final String OBJECT_NAME = 'org.icescrum:type=Metrics'
+
+    def pushService
+    def securityService
+    def clicheService
+    def hookService
+    def hookDeliveryService
+    def notificationEmailService
+    def activityInboxService
+
+    Map getMetrics() {
+        return [
+                requests: ProfilingSupport.requestMetrics,
+                push    : collect { [dispatcher: pushService.dispatcherStats, cluster: pushService.clusterStats] },
+                events  : collect { IceScrumEventDispatcher.stats },
+                hooks   : collect { [delivery: hookDeliveryService.stats, index: hookService.subscriptionIndexStats] },
+                emails  : collect { notificationEmailService.digestStats },
+                cliches : collect { clicheService.snapshotStats },
+                inbox   : collect { [enabled: activityInboxService.enabled, ready: activityInboxService.ready] },
+                caches  : collect { [roles: securityService.roleCacheStats, textile: TextileRenderer.stats, charts: clicheService.chartCacheStats] }
+        ]
+    }
+
+    Map<String, Double> getRequestLatencies() {
+        Map<String, Double> latencies = new TreeMap<String, Double>()
+        ProfilingSupport.requestMetrics.each { String action, Map<String, Map> groups ->
+            groups.each { String group, Map snapshot ->
+                snapshot.each { String name, Number value ->
+                    latencies["$action $group.$name".toString()] = value.doubleValue()
+                }
+            }
+        }
+        return latencies
+    }
+
+    Map<String, Double> getCounters() {
+        Map<String, Double> counters = new TreeMap<String, Double>()
+        flatten(counters, '', metrics.findAll { it.key != 'requests' })
+        return counters
+    }
+
+    String getMetricsJson() {
+        return (metrics as JSON).toString()
+    }
+
+    void resetRequestMetrics() {
+        ProfilingSupport.clearProfiling()
+    }
+
+    void start() {
+        try {
+            MBeanServer server = ManagementFactory.platformMBeanServer
+            ObjectName name = new ObjectName(OBJECT_NAME)
+            if (server.isRegistered(name)) { // Previous instance in the same JVM, e.g. after a reload
+                server.unregisterMBean(name)
+            }
+            server.registerMBean(new StandardMBean(this, MetricsMXBean, true), name)
+        } catch (Exception e) {
+            log.error("Unable to register the metrics MBean", e)
+        }
+    }
+
+    void destroy() {
+        try {
+            MBeanServer server = ManagementFactory.platformMBeanServer
+            ObjectName name = new ObjectName(OBJECT_NAME)
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name)
+            }
+        } catch (Exception e) {
+            log.error("Unable to unregister the metrics MBean", e)
+        }
+    }
+
+    // A failing source must not prevent reading the others
+    private Map collect(Closure<Map> source) {
+        try {
+            return source()
+        } catch (Exception e) {
+            if (log.debugEnabled) {
+                log.debug("Unable to read metrics", e)
+            }
+            return [error: e.message]
+        }
+    }
+
+    // Numbers and booleans only, the other values (dates, names...) are left to the JSON
+    private static void flatten(Map<String, Double> counters, String prefix, Map values) {
+        values.each { key, value ->
+            String name = prefix + key
+            if (value instanceof Map) {
+                flatten(counters, name + '.', value)
+            } else if (value instanceof Number) {
+                counters[name] = ((Number) value).doubleValue()
+            } else if (value instanceof Boolean) {
+                counters[name] = value ? 1d : 0d
+            }
+        }
+    }
+}
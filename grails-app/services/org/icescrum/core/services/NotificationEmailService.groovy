@@ -21,25 +21,41 @@
  */
 package org.icescrum.core.services
 
+import groovy.json.JsonOutput
 import org.grails.comments.Comment
 import org.icescrum.core.domain.*
 import org.icescrum.core.event.IceScrumEventType
 import org.icescrum.core.event.IceScrumListener
 import org.icescrum.core.support.ApplicationSupport
+import org.icescrum.core.support.NotificationDigestSender
 import org.icescrum.core.utils.ServicesUtils
+import org.springframework.beans.factory.DisposableBean
+import org.springframework.transaction.support.TransactionSynchronizationAdapter
+import org.springframework.transaction.support.TransactionSynchronizationManager
 import org.springframework.web.context.request.RequestContextHolder as RCH
 
 import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.atomic.AtomicLong
 
-class NotificationEmailService {
+class NotificationEmailService implements DisposableBean {
 
     def mailService
+    def mailMessageContentRenderer
     def grailsApplication
     def messageSource
     def springSecurityService
 
+    private Timer digestTimer
+    private final AtomicLong queued = new AtomicLong()
+    private final AtomicLong sent = new AtomicLong()
+    private final AtomicLong digests = new AtomicLong()
+    private final AtomicLong failures = new AtomicLong()
+    private final AtomicLong dropped = new AtomicLong()
+
     static EVENT_LABELS = [(IceScrumEventType.CREATE): 'Created', (IceScrumEventType.UPDATE): 'Updated', (IceScrumEventType.DELETE): 'Deleted']
 
+    // Synchronous so the emails are built from the state of the story when the event is published (DELETE included),
+    // they are only sent after commit (see queue)
     @IceScrumListener(domain = 'story')
     void storyCUD(IceScrumEventType type, Story story, Map dirtyProperties) {
         try {
@@ -101,7 +117,7 @@ class NotificationEmailService {
             if (log.debugEnabled) {
                 log.debug "Send email, event:$eventLabel to : ${group*.email.toArray()} with locale : ${locale}"
             }
-            send([
+            queue([
                     emails : group*.email.toArray(),
                     subject: grailsApplication.config.icescrum.alerts.subject_prefix + getMessage('is.template.email.story.' + eventLabel.toLowerCase() + '.subject', (Locale) locale, subjectArgs),
                     view   : '/emails-templates/story' + eventLabel,
@@ -124,7 +140,7 @@ class NotificationEmailService {
             if (log.debugEnabled) {
                 log.debug "Send email, event urgent task created to : ${group*.email.toArray()} with locale : ${locale}"
             }
-            send([
+            queue([
                     emails : group*.email.toArray(),
                     subject: grailsApplication.config.icescrum.alerts.subject_prefix + getMessage('is.template.email.task.created.subject', (Locale) locale, subjectArgs),
                     view   : '/emails-templates/taskCreated',
@@ -148,7 +164,7 @@ class NotificationEmailService {
             if (log.debugEnabled) {
                 log.debug "Send email, event:$eventLabel to : ${group*.email.toArray()} with locale : ${locale}"
             }
-            send([
+            queue([
                     emails : group*.email.toArray(),
                     subject: grailsApplication.config.icescrum.alerts.subject_prefix + getMessage('is.template.email.story.changedState.subject', (Locale) locale, subjectArgs),
                     view   : '/emails-templates/storyChangedState',
@@ -173,7 +189,7 @@ class NotificationEmailService {
             if (log.debugEnabled) {
                 log.debug "Send email, event: comment added to : ${group*.email.toArray()} with locale : ${locale}"
             }
-            send([
+            queue([
                     emails : group*.email.toArray(),
                     subject: grailsApplication.config.icescrum.alerts.subject_prefix + getMessage('is.template.email.story.commented.subject', (Locale) locale, subjectArgs),
                     view   : '/emails-templates/storyCommented',
@@ -197,7 +213,7 @@ class NotificationEmailService {
             if (log.debugEnabled) {
                 log.debug "Send email, event: comment updated to : ${group*.email.toArray()} with locale : ${locale}"
             }
-            send([
+            queue([
                     emails : group*.email.toArray(),
                     subject: grailsApplication.config.icescrum.alerts.subject_prefix + getMessage('is.template.email.story.commentEdited.subject', (Locale) locale, subjectArgs),
                     view   : '/emails-templates/storyCommentEdited',
@@ -221,7 +237,7 @@ class NotificationEmailService {
             if (log.debugEnabled) {
                 log.debug "Send email, event: accepted as to : ${group*.email.toArray()} with locale : ${locale}"
             }
-            send([
+            queue([
                     emails : group*.email.toArray(),
                     subject: grailsApplication.config.icescrum.alerts.subject_prefix + getMessage('is.template.email.story.acceptedAs.subject', (Locale) locale, subjectArgs),
                     view   : '/emails-templates/storyAcceptedAs',
@@ -341,6 +357,151 @@ class NotificationEmailService {
         }
     }
 
+    // Alerts are queued per recipient and sent in background by sendQueuedEmails, or sent right away if digests are disabled
+    // Queued emails are saved in the current transaction, emails sent right away wait for its commit
+    void queue(def options) {
+        if (!isDigestEnabled()) {
+            if (TransactionSynchronizationManager.isSynchronizationActive()) {
+                TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                    @Override
+                    void afterCommit() {
+                        try {
+                            send(options)
+                        } catch (Exception e) {
+                            log.error("Unable to send the email ${options.subject}", e)
+                        }
+                    }
+                })
+            } else {
+                send(options)
+            }
+            return
+        }
+        assert options.emails
+        assert options.view
+        assert options.subject
+        Map model = options.model ? options.model.findAll { it.key != 'locale' } : [:]
+        String json = JsonOutput.toJson(model)
+        String locale = options.model?.locale?.toString()
+        Date now = new Date()
+        options.emails.each { String email ->
+            new QueuedEmail(email: email, locale: locale, subject: options.subject, view: options.view, model: json, nextAttempt: now).save()
+            queued.incrementAndGet()
+        }
+    }
+
+    /**
+     * Sends the queued emails of the recipients whose oldest email has waited for the digest window:
+     * a single email is sent as is, several ones are rendered and sent as one digest.
+     * The number of emails sent per poll is limited (maxPerMinute) and failed emails are retried with an exponential backoff.
+     * The emails of a recipient are deleted in the transaction that sends them so two nodes cannot send them twice.
+     */
+    void sendQueuedEmails() {
+        def config = grailsApplication.config.icescrum.alerts.digest
+        NotificationDigestSender sender = createDigestSender(config)
+        Date now = new Date()
+        Date windowEnd = new Date(now.time - ((config.window ?: 5) as long) * 60000L)
+        List<String> emails = QueuedEmail.withNewTransaction {
+            QueuedEmail.executeQuery("""SELECT q.email
+                                        FROM QueuedEmail q
+                                        WHERE q.nextAttempt <= :now
+                                        GROUP BY q.email
+                                        HAVING MIN(q.dateCreated) <= :windowEnd
+                                        ORDER BY MIN(q.dateCreated)""", [now: now, windowEnd: windowEnd], [max: sender.budget])
+        }
+        emails.each { String email ->
+            List<Map> items = QueuedEmail.withNewTransaction {
+                QueuedEmail.executeQuery("""SELECT q.id, q.locale, q.subject, q.view, q.model, q.attempts
+                                            FROM QueuedEmail q
+                                            WHERE q.email = :email
+                                            AND q.nextAttempt <= :now
+                                            ORDER BY q.id""", [email: email, now: now]).collect { row ->
+                    [id: row[0], locale: row[1], subject: row[2], view: row[3], model: row[4], attempts: row[5]]
+                }
+            }
+            if (!items) {
+                return
+            }
+            List<Long> ids = items*.id
+            try {
+                QueuedEmail.withNewTransaction { status ->
+                    if (QueuedEmail.executeUpdate("DELETE FROM QueuedEmail q WHERE q.id IN (:ids)", [ids: ids]) != ids.size()) {
+                        status.setRollbackOnly() // Already sent by another node
+                        return
+                    }
+                    if (log.debugEnabled && items.size() > 1) {
+                        log.debug "Send email, digest of ${items.size()} notifications to : $email"
+                    }
+                    if (sender.send(email, items)) {
+                        digests.incrementAndGet()
+                    }
+                    sent.incrementAndGet()
+                }
+            } catch (Exception e) {
+                failures.incrementAndGet()
+                log.error("Error while sending the queued emails of $email", e)
+                int attempts = (items*.attempts.max() as int) + 1
+                Date nextAttempt = sender.getNextAttempt(attempts)
+                QueuedEmail.withNewTransaction {
+                    if (nextAttempt == null) {
+                        dropped.addAndGet(QueuedEmail.executeUpdate("DELETE FROM QueuedEmail q WHERE q.id IN (:ids)", [ids: ids]))
+                    } else {
+                        QueuedEmail.executeUpdate("UPDATE QueuedEmail q SET q.attempts = :attempts, q.lastError = :error, q.nextAttempt = :nextAttempt WHERE q.id IN (:ids)",
+                                [attempts: attempts, error: e.message, nextAttempt: nextAttempt, ids: ids])
+                    }
+                }
+            }
+        }
+    }
+
+    Map getDigestStats() {
+        return [queued: queued.get(), sent: sent.get(), digests: digests.get(), failures: failures.get(), dropped: dropped.get()]
+    }
+
+    void start() {
+        if (isDigestEnabled()) {
+            long interval = ((grailsApplication.config.icescrum.alerts.digest.pollInterval ?: 30) as long) * 1000L
+            digestTimer = new Timer('icescrum-email-digest', true)
+            digestTimer.schedule({
+                try {
+                    sendQueuedEmails()
+                } catch (Exception e) {
+                    log.error("Error while sending the queued emails", e)
+                }
+            } as TimerTask, interval, interval)
+        }
+    }
+
+    @Override
+    void destroy() {
+        digestTimer?.cancel()
+    }
+
+    private NotificationDigestSender createDigestSender(config) {
+        return new NotificationDigestSender(
+                (config.maxPerMinute ?: 60) as long,
+                (config.pollInterval ?: 30) as long,
+                (config.maxAttempts ?: 5) as int,
+                (config.retryDelay ?: 60) as long,
+                { String view, Map model, Locale locale ->
+                    StringWriter out = new StringWriter()
+                    mailMessageContentRenderer.render(out, view, model, locale, 'icescrum-core')
+                    return out.toString()
+                },
+                { int count, Locale locale ->
+                    grailsApplication.config.icescrum.alerts.subject_prefix + getMessage('is.template.email.digest.subject', locale, [count])
+                },
+                { Map options ->
+                    send(options)
+                }
+        )
+    }
+
+    private boolean isDigestEnabled() {
+        def enable = grailsApplication.config.icescrum.alerts.digest.enable
+        return enable instanceof Boolean ? enable : true
+    }
+
     private String getMessage(String code, Locale locale, args = null, String defaultCode = null) {
         return messageSource.getMessage(code, args ? args.toArray() : null, defaultCode ?: code, locale)
     }
@@ -37,14 +37,25 @@ import org.icescrum.core.error.BusinessException
 import org.icescrum.core.event.IceScrumEventPublisher
 import org.icescrum.core.event.IceScrumEventType
 import org.icescrum.core.support.ApplicationSupport
+import org.icescrum.core.support.ProgressSupport
 import org.icescrum.core.utils.DateUtils
-import org.icescrum.core.utils.ServicesUtils
+import org.icescrum.core.utils.XmlImportReader
 import org.springframework.security.access.prepost.PreAuthorize
-import org.xml.sax.SAXParseException
+import org.springframework.web.context.request.RequestContextHolder
+import org.springframework.web.context.request.ServletRequestAttributes
+
+import javax.xml.stream.XMLStreamException
 
 @Transactional
 class ProjectService extends IceScrumEventPublisher {
 
+    // Sections of the export read one element at a time when importing from a file, in import order
+    private static final List<String> STREAMED_SECTIONS = ['features', 'actors', 'activities', 'releases', 'stories']
+    private static final int IMPORT_BATCH_SIZE = 50
+    // A release holds its sprints, stories, tasks and their children: it is flushed and cleared on its own
+    private static final Map<String, Integer> IMPORT_BATCH_SIZES = [releases: 1]
+    private static final int EXPORT_CHUNK_SIZE = 50
+
     def springSecurityService
     def securityService
     def teamService
@@ -140,35 +151,17 @@ class ProjectService extends IceScrumEventPublisher {
     def cumulativeFlowValues(Project project) {
         def values = []
         project.releases?.sort { a, b -> a.orderNumber <=> b.orderNumber }?.each { Release release ->
-            def cliches = []
-            // Beginning of project
-            def firstClicheActivation = Cliche.findByParentTimeBoxAndType(release, Cliche.TYPE_ACTIVATION, [sort: "datePrise", order: "asc"])
-            if (firstClicheActivation) {
-                cliches.add(firstClicheActivation)
-            }
-            // Regular close cliches
-            cliches.addAll(Cliche.findAllByParentTimeBoxAndType(release, Cliche.TYPE_CLOSE, [sort: "datePrise", order: "asc"]))
-            // Dynamic cliche
-            if (release.state == Release.STATE_INPROGRESS) {
-                Sprint sprint = release.sprints.find { it.state == Sprint.STATE_INPROGRESS }
-                if (sprint) {
-                    cliches << [data: clicheService.generateSprintClicheData(sprint, Cliche.TYPE_CLOSE)]
-                }
-            }
-            cliches?.eachWithIndex { cliche, index ->
-                def xmlRoot = new XmlSlurper().parseText(cliche.data)
-                if (xmlRoot) {
-                    values << [
-                            (Story.STATE_SUGGESTED) : xmlRoot."${Cliche.SUGGESTED_STORIES}".toInteger(),
-                            (Story.STATE_ACCEPTED)  : xmlRoot."${Cliche.ACCEPTED_STORIES}".toInteger(),
-                            (Story.STATE_ESTIMATED) : xmlRoot."${Cliche.ESTIMATED_STORIES}".toInteger(),
-                            (Story.STATE_PLANNED)   : xmlRoot."${Cliche.PLANNED_STORIES}".toInteger(),
-                            (Story.STATE_INPROGRESS): xmlRoot."${Cliche.INPROGRESS_STORIES}".toInteger(),
-                            (Story.STATE_DONE)      : xmlRoot."${Cliche.FINISHED_STORIES}".toInteger(),
-                            label                   : index == 0 ? "Start" : Sprint.getNameByReleaseAndClicheSprintId(release, xmlRoot."${Cliche.SPRINT_ID}".toString()) + "${cliche.id ? '' : " (progress)"}"
-                    ]
-                }
-            }
+            values.addAll(clicheService.releaseSeries('cumulativeFlow', release) { Map clicheValues, int index, boolean inProgress ->
+                return [
+                        (Story.STATE_SUGGESTED) : clicheValues[Cliche.SUGGESTED_STORIES] as Integer,
+                        (Story.STATE_ACCEPTED)  : clicheValues[Cliche.ACCEPTED_STORIES] as Integer,
+                        (Story.STATE_ESTIMATED) : clicheValues[Cliche.ESTIMATED_STORIES] as Integer,
+                        (Story.STATE_PLANNED)   : clicheValues[Cliche.PLANNED_STORIES] as Integer,
+                        (Story.STATE_INPROGRESS): clicheValues[Cliche.INPROGRESS_STORIES] as Integer,
+                        (Story.STATE_DONE)      : clicheValues[Cliche.FINISHED_STORIES] as Integer,
+                        label                   : index == 0 ? "Start" : Sprint.getNameByReleaseAndClicheSprintId(release, clicheValues[Cliche.SPRINT_ID]?.toString()) + "${inProgress ? " (progress)" : ''}"
+                ]
+            })
         }
         return values
     }
@@ -177,34 +170,15 @@ class ProjectService extends IceScrumEventPublisher {
     def projectBurnupValues(Project project) {
         def values = []
         project.releases?.sort { a, b -> a.orderNumber <=> b.orderNumber }?.each { Release release ->
-            def cliches = []
-            // Beginning of project
-            def firstClicheActivation = Cliche.findByParentTimeBoxAndType(release, Cliche.TYPE_ACTIVATION, [sort: "datePrise", order: "asc"])
-            if (firstClicheActivation) {
-                cliches.add(firstClicheActivation)
-            }
-            // Regular close cliches
-            cliches.addAll(Cliche.findAllByParentTimeBoxAndType(release, Cliche.TYPE_CLOSE, [sort: "datePrise", order: "asc"]))
-            // Dynamic cliche
-            if (release.state == Release.STATE_INPROGRESS) {
-                Sprint sprint = release.sprints.find { it.state == Sprint.STATE_INPROGRESS }
-                if (sprint) {
-                    cliches << [data: clicheService.generateSprintClicheData(sprint, Cliche.TYPE_CLOSE)]
-                }
-            }
-            cliches?.eachWithIndex { cliche, index ->
-                def xmlRoot = new XmlSlurper().parseText(cliche.data)
-                if (xmlRoot) {
-                    def a = xmlRoot."${Cliche.PROJECT_POINTS}".toBigDecimal()
-                    def b = xmlRoot."${Cliche.PROJECT_REMAINING_POINTS}".toBigDecimal()
-                    def c = a - b
-                    values << [
-                            all  : xmlRoot."${Cliche.PROJECT_POINTS}".toBigDecimal(),
-                            done : c,
-                            label: index == 0 ? "Start" : Sprint.getNameByReleaseAndClicheSprintId(release, xmlRoot."${Cliche.SPRINT_ID}".toString()) + "${cliche.id ? '' : " (progress)"}"
-                    ]
-                }
-            }
+            values.addAll(clicheService.releaseSeries('projectBurnup', release) { Map clicheValues, int index, boolean inProgress ->
+                def all = clicheValues[Cliche.PROJECT_POINTS] as BigDecimal
+                def remaining = clicheValues[Cliche.PROJECT_REMAINING_POINTS] as BigDecimal
+                return [
+                        all  : all,
+                        done : all - remaining,
+                        label: index == 0 ? "Start" : Sprint.getNameByReleaseAndClicheSprintId(release, clicheValues[Cliche.SPRINT_ID]?.toString()) + "${inProgress ? " (progress)" : ''}"
+                ]
+            })
         }
         return values
     }
@@ -278,6 +252,57 @@ class ProjectService extends IceScrumEventPublisher {
             options.userUIDByImportedID = [:]
             options.entitiesToSave = []
 
+            XmlImportReader xmlReader = options.xmlReader
+            ProgressSupport progress = options.progress
+            // Inserts are sent by batches rather than all at the end, then the session is cleared so it doesn't grow with the whole project:
+            // the elements of the next batches only refer to the project, features and actors, which are reloaded
+            options.clearSession = xmlReader && options.save
+            def flushBatch = {
+                if (options.save) {
+                    Project.withSession { session ->
+                        session.flush()
+                        if (options.clearSession) {
+                            boolean projectIsParent = options.parent?.is(project)
+                            session.clear()
+                            project = Project.get(project.id)
+                            options.project = project
+                            if (projectIsParent) {
+                                options.parent = project
+                            }
+                            options.featuresByUid = options.featuresByUid?.collectEntries { uid, feature -> [(uid): Feature.load(feature.id)] }
+                            options.actorsByUid = options.actorsByUid?.collectEntries { uid, actor -> [(uid): Actor.load(actor.id)] }
+                            if (options.usersByUid != null) {
+                                options.usersByUid = [:]
+                            }
+                        }
+                    }
+                }
+            }
+            def eachChild = { String section, String element, Closure closure ->
+                if (xmlReader && section in STREAMED_SECTIONS) {
+                    int sectionIndex = STREAMED_SECTIONS.indexOf(section)
+                    long start = System.currentTimeMillis()
+                    int batchSize = IMPORT_BATCH_SIZES[section] ?: IMPORT_BATCH_SIZE
+                    int count = 0
+                    xmlReader.eachElement(['export', 'project', section, element]) { elementXml ->
+                        closure(elementXml)
+                        if (++count % batchSize == 0) {
+                            flushBatch()
+                            long elapsed = System.currentTimeMillis() - start
+                            progress?.updateProgress(((sectionIndex + xmlReader.progress) * 90 / STREAMED_SECTIONS.size()) as int, "${section} (${elapsed ? (count * 1000L).intdiv(elapsed) : count}/s)")
+                        }
+                    }
+                    if (count % batchSize) {
+                        flushBatch() // The collections of the project are loaded from the database afterwards, they must contain the last batch
+                    }
+                    if (log.infoEnabled) {
+                        log.info("Imported ${count} ${element} in ${System.currentTimeMillis() - start}ms")
+                    }
+                } else {
+                    projectXml."${section}"."${element}".each(closure)
+                }
+            }
+
             def saveMode = options.save
             options.save = false // Don't save users yet because save triggers validation and we want to validate them separately
             projectXml.teams.team.each { team ->
@@ -370,7 +395,7 @@ class ProjectService extends IceScrumEventPublisher {
 
                 projectXml.attachments.attachment.each { _attachmentXml ->
                     def uid = options.userUIDByImportedID?."${_attachmentXml.posterId.text().toInteger()}" ?: null
-                    User user = project.getUserByUidOrOwner(uid)
+                    User user = project.getUserByUidOrOwner(uid, options.usersByUid)
                     ApplicationSupport.importAttachment(project, user, options.path, _attachmentXml)
                 }
                 project.attachments_count = projectXml.attachments.attachment.size() ?: 0
@@ -384,6 +409,7 @@ class ProjectService extends IceScrumEventPublisher {
                     securityService.createStakeHolderPermissions(user, project)
                 }
                 securityService.changeOwner(project.owner, project)
+                options.usersByUid = [:] // Users are resolved for most imported elements, the project members won't change anymore
             }
 
             // Child objects
@@ -401,21 +427,23 @@ class ProjectService extends IceScrumEventPublisher {
                 timeBoxNotesTemplateService.unMarshall(it, options)
             }
             def featureService = (FeatureService) grailsApplication.mainContext.getBean('featureService')
-            projectXml.features.feature.each { it ->
+            eachChild('features', 'feature') { it ->
                 featureService.unMarshall(it, options)
             }
-            projectXml.actors.actor.each { it ->
+            options.featuresByUid = project.features.collectEntries { [(it.uid): it] }
+            eachChild('actors', 'actor') { it ->
                 actorService.unMarshall(it, options)
             }
+            options.actorsByUid = project.actors.collectEntries { [(it.uid): it] }
             def activityService = (ActivityService) grailsApplication.mainContext.getBean('activityService')
             options.parent = project
-            projectXml.activities.activity.each { it ->
+            eachChild('activities', 'activity') { it ->
                 activityService.unMarshall(it, options)
             }
             options.parent = null
             // Import releases, sprints and all their content (stories, tasks...)
             def releaseService = (ReleaseService) grailsApplication.mainContext.getBean('releaseService')
-            projectXml.releases.release.each { release ->
+            eachChild('releases', 'release') { release ->
                 releaseService.unMarshall(release, options)
             }
             def cleanRank = { Collection<Story> stories, states ->
@@ -441,7 +469,7 @@ class ProjectService extends IceScrumEventPublisher {
             }
             // Import remaining stories (state < planned), after the ones >= planned in order to preserve dependencies
             def storyService = (StoryService) grailsApplication.mainContext.getBean('storyService')
-            projectXml.stories.story.each { it ->
+            eachChild('stories', 'story') { it ->
                 storyService.unMarshall(it, options)
             }
             cleanRank(project.stories, [Story.STATE_ACCEPTED, Story.STATE_ESTIMATED])
@@ -455,31 +483,51 @@ class ProjectService extends IceScrumEventPublisher {
                 project.save()
             }
             options.project = null
+            options.featuresByUid = null
+            options.actorsByUid = null
+            options.usersByUid = null
+            options.clearSession = null
             return (Project) importDomainsPlugins(projectXml, project, options)
         }
     }
 
+    // The file is read with StAX: only the project itself is parsed at once, its large sections are imported one element at a time
     @PreAuthorize('isAuthenticated()')
     def importXML(File file, def options) {
         Project.withTransaction(readOnly: !options.save) {
-            String xmlText = file.getText('UTF-8')
-            String cleanedXmlText = ServicesUtils.cleanXml(xmlText)
-            def exportXML
+            XmlImportReader xmlReader = new XmlImportReader(file)
+            def projectXml
+            String version
             try {
-                exportXML = new XmlSlurper().parseText(cleanedXmlText)
-            } catch (SAXParseException e) {
+                version = xmlReader.getRootAttribute('version')
+                projectXml = xmlReader.readElement(['export', 'project'], STREAMED_SECTIONS)
+            } catch (XMLStreamException e) {
                 if (log.debugEnabled) {
                     log.debug(e.message)
                     e.printStackTrace()
                 }
                 throw new BusinessException(code: 'todo.is.ui.import.error.corrupted')
             }
-            def version = exportXML.@version.text()
+            if (projectXml == null) {
+                throw new BusinessException(code: 'todo.is.ui.import.error.corrupted')
+            }
             if (version.startsWith('R6') && !version.endsWith('-v7')) {
                 throw new BusinessException(code: 'todo.is.ui.import.error.R6')
             }
+            options.xmlReader = xmlReader
+            options.progress = options.progress ?: getSessionProgress()
             Project project
-            project = this.unMarshall(exportXML.project, options)
+            try {
+                project = this.unMarshall(projectXml, options)
+            } catch (XMLStreamException e) {
+                if (log.debugEnabled) {
+                    log.debug(e.message)
+                    e.printStackTrace()
+                }
+                throw new BusinessException(code: 'todo.is.ui.import.error.corrupted')
+            } finally {
+                options.xmlReader = null
+            }
             if (project?.id && options.save) {
                 project.save(flush: true)
             }
@@ -805,15 +853,41 @@ class ProjectService extends IceScrumEventPublisher {
         return usersByRole
     }
 
+    /**
+     * The export is read in a separate read-only session so the session of the caller is left untouched.
+     * The largest sections (features, stories, releases) are loaded by chunks of ids and the session is cleared after each chunk:
+     * the memory used doesn't grow with the size of the project and the elements of a chunk (and their batched associations) are read together.
+     */
     def export(writer, Project project) {
         def builder = new MarkupBuilder(writer)
         builder.mkp.xmlDeclaration(version: "1.0", encoding: "UTF-8")
         def g = grailsApplication.mainContext.getBean('org.codehaus.groovy.grails.plugins.web.taglib.ApplicationTagLib')
-        builder.export(version: g.meta(name: "app.version")) {
-            project.xml(builder)
+        String version = g.meta(name: "app.version")
+        Project.withNewSession { session ->
+            session.defaultReadOnly = true // No snapshots for dirty checking
+            Project exportedProject = Project.get(project.id)
+            Closure eachByChunks = { Class domainClass, List<Long> ids, Closure closure ->
+                ids.collate(domainClass == Release ? 1 : EXPORT_CHUNK_SIZE).each { List<Long> chunk -> // A release comes with all its sprints, stories and tasks
+                    domainClass.getAll(chunk).each { element ->
+                        if (element) {
+                            closure(element)
+                        }
+                    }
+                    session.clear()
+                    exportedProject.attach() // The next sections are read from the project
+                }
+            }
+            builder.export(version: version) {
+                exportedProject.xml(builder, eachByChunks)
+            }
         }
     }
 
+    private static ProgressSupport getSessionProgress() {
+        def requestAttributes = RequestContextHolder.requestAttributes
+        return requestAttributes instanceof ServletRequestAttributes ? requestAttributes.request.getSession(false)?.getAttribute('progress') : null
+    }
+
     private void createDefaultBacklogs(Project project) {
         new Backlog(project: project, shared: true, filter: '{"story":{"state":1}}', notes: "p. ${i18nService.message(code: 'is.ui.backlogs.filter.sandbox.description')}", name: 'is.ui.sandbox', code: 'sandbox', chartType: 'type').save()
         new Backlog(project: project, shared: true, filter: '{"story":{"state":[2,3]}}', notes: "p. ${i18nService.message(code: 'is.ui.backlogs.filter.backlog.description')}", name: 'is.ui.backlog', code: 'backlog', chartType: 'state').save()
@@ -24,31 +24,59 @@
 package org.icescrum.core.services
 
 import grails.converters.JSON
+import grails.transaction.NotTransactional
 import grails.transaction.Transactional
 import grails.util.GrailsNameUtils
+import groovy.json.JsonOutput
+import groovy.json.JsonSlurper
 import org.atmosphere.cpr.AtmosphereResource
 import org.atmosphere.cpr.Broadcaster
-import org.icescrum.atmosphere.IceScrumAtmosphereEventListener
 import org.icescrum.atmosphere.IceScrumBroadcaster
+import org.icescrum.atmosphere.IceScrumPushDispatcher
+import org.icescrum.atmosphere.IceScrumResourceRegistry
+import org.icescrum.atmosphere.PushBuffer
+import org.icescrum.atmosphere.PushMessage
+import org.icescrum.atmosphere.bus.InJvmPushBus
+import org.icescrum.atmosphere.bus.PushBus
+import org.icescrum.atmosphere.bus.PushBusListener
+import org.icescrum.atmosphere.bus.PushBusMessage
+import org.icescrum.atmosphere.bus.SocketPushBus
+import org.icescrum.core.domain.Portfolio
 import org.icescrum.core.domain.Project
 import org.icescrum.core.domain.User
 import org.icescrum.core.domain.WorkspaceType
 import org.icescrum.core.event.IceScrumEventType
+import org.icescrum.core.event.IceScrumListener
+import org.springframework.beans.factory.DisposableBean
+import org.springframework.transaction.support.TransactionSynchronizationAdapter
+import org.springframework.transaction.support.TransactionSynchronizationManager
 
 import java.util.concurrent.ConcurrentHashMap
-import java.util.concurrent.CopyOnWriteArrayList
 
 @Transactional(readOnly = true)
-class PushService {
+class PushService implements DisposableBean {
 
     def atmosphereMeteor
-    def disabledThreads = new CopyOnWriteArrayList<>()
-    def bufferedThreads = new ConcurrentHashMap<Long, ConcurrentHashMap<String, ArrayList>>()
+    def grailsApplication
 
-    private static final String BUFFER_MESSAGE_DELIMITER = "#-|-#"
+    // Thread locals rather than maps keyed by thread id because ids are reused by thread pools
+    private final ThreadLocal<Boolean> disabledPush = new ThreadLocal<Boolean>()
+    private final ThreadLocal<PushBuffer> threadBuffer = new ThreadLocal<PushBuffer>()
+
+    private static final String BUFFER_MESSAGE_DELIMITER = IceScrumPushDispatcher.MESSAGE_DELIMITER
+
+    private volatile IceScrumPushDispatcher dispatcher
+    private volatile PushBus pushBus
+    private final ConcurrentHashMap<Long, Long> portfolioIdByProject = new ConcurrentHashMap<Long, Long>()
+
+    private static final Long NO_PORTFOLIO = 0L
+    private static final String INVALIDATION_CHANNEL = '#invalidation' // Not a stream channel: handled by the nodes, never sent to clients
+    private final ConcurrentHashMap<String, Closure> invalidationHandlers = new ConcurrentHashMap<String, Closure>()
+    private static final String TRANSACTION_BUFFER_KEY = PushService.class.name + '.TRANSACTION_BUFFER'
+    private static final String USER_TARGET_PREFIX = '#user:' // Buffered messages for a single user rather than a channel
 
     private void internalBroadcastToWorkspaceChannel(String namespace, String eventType, object, long workspaceId, String workspaceType) {
-        broadcastToChannel(namespace, eventType, object, "/stream/app/$workspaceType-$workspaceId")
+        broadcastToChannel(namespace, eventType, object, getWorkspaceChannel(workspaceType, workspaceId))
     }
 
     private void internalBroadcastToWorkspaceChannel(IceScrumEventType eventType, object, long workspaceId, String workspaceType) {
@@ -56,18 +84,17 @@ class PushService {
     }
 
     void broadcastToProjectRelatedChannels(IceScrumEventType eventType, object, long projectId) {
-        internalBroadcastToWorkspaceChannel(eventType, object, projectId, WorkspaceType.PROJECT)
-        Long portfolioId = Project.get(projectId)?.portfolio?.id
-        if (portfolioId) {
-            internalBroadcastToWorkspaceChannel(eventType, object, portfolioId, WorkspaceType.PORTFOLIO)
-        }
+        broadcastToProjectRelatedChannels(getNamespaceFromDomain(object), eventType.name(), object, projectId)
     }
 
     void broadcastToProjectRelatedChannels(String namespace, String eventType, object, long projectId) {
-        internalBroadcastToWorkspaceChannel(namespace, eventType, object, projectId, WorkspaceType.PROJECT)
-        Long portfolioId = Project.get(projectId)?.portfolio?.id
-        if (portfolioId) {
-            internalBroadcastToWorkspaceChannel(namespace, eventType, object, portfolioId, WorkspaceType.PORTFOLIO)
+        if (!isDisabledPushThread()) {
+            PushMessage message = encodeMessage(namespace, eventType, object) // Serialized once for both channels
+            broadcastMessageToChannel(message, getWorkspaceChannel(WorkspaceType.PROJECT, projectId))
+            Long portfolioId = getPortfolioId(projectId)
+            if (portfolioId) {
+                broadcastMessageToChannel(message, getWorkspaceChannel(WorkspaceType.PORTFOLIO, portfolioId))
+            }
         }
     }
 
@@ -90,41 +117,28 @@ class PushService {
 
     void broadcastToChannel(String namespace, String eventType, object, String channel = '/stream/app/*') {
         if (!isDisabledPushThread()) {
-            def message = buildMessage(namespace, eventType, object)
-            if (!isBufferedThread()) {
-                Broadcaster broadcaster = atmosphereMeteor.broadcasterFactory?.lookup(IceScrumBroadcaster.class, channel)
-                if (broadcaster) {
-                    if (log.debugEnabled) {
-                        log.debug("Broadcast to everybody on channel $channel - $namespace - $eventType")
-                    }
-                    broadcaster.broadcast(message as JSON)
-                }
-            } else {
-//                if (log.debugEnabled) {
-//                    log.debug("Buffered broadcast for channel $channel - $namespace - $eventType")
-//                }
-                bufferMessage(channel, message)
-            }
+            broadcastMessageToChannel(encodeMessage(namespace, eventType, object), channel)
+        }
+    }
+
+    void broadcastMessageToChannel(PushMessage message, String channel) {
+        PushBuffer buffer = getTransactionBuffer() ?: threadBuffer.get()
+        if (buffer) {
+            buffer.add(channel, message)
+        } else {
+            sendMessages(channel, [message])
         }
     }
 
     void broadcastToUsers(String namespace, String eventType, object, Collection<String> usernames) {
-        def channel = '/stream/app/*'
-        Broadcaster broadcaster = atmosphereMeteor.broadcasterFactory?.lookup(IceScrumBroadcaster.class, channel)
-        if (broadcaster) {
-            try {
-                Set<AtmosphereResource> resources = broadcaster.atmosphereResources?.findAll { AtmosphereResource resource ->
-                    resource.request?.getAttribute(IceScrumAtmosphereEventListener.USER_CONTEXT)?.username in usernames
-                }
-                if (resources) {
-                    if (log.debugEnabled) {
-                        log.debug('Broadcast to ' + resources*.uuid().join(', ') + ' on channel ' + channel)
-                    }
-                    broadcaster.broadcast(buildMessage(namespace, eventType, object) as JSON, resources)
-                }
-            } catch (Exception e) {
-                // Request object no longer valid.  This object has been cancelled, see https://github.com/Atmosphere/atmosphere/issues/1052
+        PushMessage message = encodeMessage(namespace, eventType, object)
+        PushBuffer buffer = getTransactionBuffer() ?: threadBuffer.get()
+        if (buffer) {
+            usernames.each { String username ->
+                buffer.add(USER_TARGET_PREFIX + username, message)
             }
+        } else {
+            sendMessageToUsers(message, usernames)
         }
     }
 
@@ -134,64 +148,315 @@ class PushService {
         }
     }
 
-    void bufferMessage(channel, message) {
-        def threadId = Thread.currentThread().getId()
-        def messages = bufferedThreads.get(threadId)."$channel"
-        if (!messages) {
-            bufferedThreads.get(threadId)."$channel" = [] as LinkedHashSet
-            messages = bufferedThreads.get(threadId)."$channel"
-        }
-        def existingMessage = messages.find {
-            it.messageId == message.messageId
-        }
-        if (!existingMessage) {
-            messages << message
-        } else { //replace with new message but keep order of change in the request
-            messages.remove(existingMessage)
-            messages.add(message)
-//            if (log.debugEnabled) {
-//                log.debug('replace with latest content message (' + message.messageId + ') on channel ' + channel)
-//            }
-        }
+    void bufferMessage(String channel, PushMessage message) {
+        threadBuffer.get()?.add(channel, message)
     }
 
     void disablePushForThisThread() {
-        if (!isDisabledPushThread()) {
-            disabledThreads.add(Thread.currentThread().getId())
-        }
+        disabledPush.set(Boolean.TRUE)
     }
 
     void enablePushForThisThread() {
-        if (isDisabledPushThread()) {
-            disabledThreads.remove(Thread.currentThread().getId())
-        }
+        disabledPush.remove()
     }
 
     boolean isDisabledPushThread() {
-        return disabledThreads.contains(Thread.currentThread().getId())
+        return disabledPush.get() == Boolean.TRUE
     }
 
     void bufferPushForThisThread() {
-        bufferedThreads.putIfAbsent(Thread.currentThread().getId(), new ConcurrentHashMap<String, ArrayList>())
+        if (threadBuffer.get() == null) {
+            threadBuffer.set(new PushBuffer())
+        }
     }
 
     void resumePushForThisThread() {
-        if (isBufferedThread()) {
-            def messagesPerChannels = bufferedThreads.remove(Thread.currentThread().getId())
-            messagesPerChannels?.each { channel, messages ->
-                Broadcaster broadcaster = atmosphereMeteor.broadcasterFactory?.lookup(IceScrumBroadcaster.class, channel)
-                if (broadcaster) {
+        PushBuffer buffer = threadBuffer.get()
+        if (buffer != null) {
+            threadBuffer.remove()
+            sendBuffer(buffer)
+        }
+    }
+
+    boolean isBufferedThread() {
+        return threadBuffer.get() != null
+    }
+
+    boolean isUserOnline(String username) {
+        return IceScrumResourceRegistry.isOnline(username)
+    }
+
+    // Already marshalled JSON of an object that is waiting to be pushed by the current thread, if any
+    String getBufferedObjectJSON(String messageId) {
+        PushMessage message = getTransactionBuffer(false)?.find(messageId) ?: threadBuffer.get()?.find(messageId)
+        return message?.content ? new String(message.content.decodeBase64()) : null
+    }
+
+    @NotTransactional
+    void releaseTransactionBuffer(PushBuffer buffer, boolean committed) {
+        if (committed) {
+            PushBuffer requestBuffer = threadBuffer.get()
+            if (requestBuffer != null) {
+                requestBuffer.addAll(buffer) // The request asked to buffer all its messages
+            } else {
+                sendBuffer(buffer)
+            }
+        } else if (log.debugEnabled) {
+            log.debug("Transaction rolled back, ${buffer.size()} push messages discarded")
+        }
+    }
+
+    Map getDispatcherStats() {
+        return dispatcher?.stats ?: [:]
+    }
+
+    Map getClusterStats() {
+        return pushBus?.stats ?: [:]
+    }
+
+    @NotTransactional
+    void startCluster() {
+        def config = grailsApplication.config.icescrum.push.cluster
+        if (!config.enable || pushBus) {
+            return
+        }
+        String nodeId = config.nodeId ?: UUID.randomUUID().toString()
+        PushBus bus
+        if (config.type == 'socket') {
+            if (!config.secret) {
+                log.error('Push cluster not started: icescrum.push.cluster.secret must be set to the same value on all the nodes')
+                return
+            }
+            List<String> peers = config.peers instanceof List ? config.peers : config.peers.toString().tokenize(',')*.trim()
+            bus = new SocketPushBus(nodeId, config.host ?: null, (config.port ?: 8765) as int, peers, config.secret.toString(), (config.queueSize ?: 1000) as int,
+                                    (config.maxFrameSize ?: 16 * 1024 * 1024) as int, (config.maxConnections ?: 0) as int)
+        } else {
+            bus = new InJvmPushBus(nodeId, config.group ?: 'default')
+        }
+        registerInvalidationHandler('portfolios') { List<String> projectIds ->
+            if ('*' in projectIds) {
+                portfolioIdByProject.clear()
+            } else {
+                projectIds.each { portfolioIdByProject.remove(it.toLong()) }
+            }
+        }
+        bus.start({ PushBusMessage message -> receiveFromPeer(message) } as PushBusListener)
+        pushBus = bus
+    }
+
+    // How the caches kept by each node apply the invalidations published by the other nodes, to be registered before the cluster starts
+    @NotTransactional
+    void registerInvalidationHandler(String cache, Closure handler) {
+        invalidationHandlers[cache] = handler
+    }
+
+    /**
+     * Sends the invalidation of keys of a cache to the other nodes, nothing is sent without cluster.
+     * It is sent once the surrounding transaction is complete: the other nodes could cache the previous data again otherwise.
+     * Delivery is best effort, the expiration of the caches bounds how long a lost invalidation matters.
+     */
+    @NotTransactional
+    void publishInvalidation(String cache, List<String> keys) {
+        if (!pushBus || !keys) {
+            return
+        }
+        Closure publish = {
+            PushBus bus = pushBus
+            bus?.publish(new PushBusMessage(nodeId: bus.nodeId, sentAt: System.currentTimeMillis(), channel: INVALIDATION_CHANNEL, messageId: cache, payload: JsonOutput.toJson(keys)))
+        }
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                void afterCompletion(int status) {
+                    publish()
+                }
+            })
+        } else {
+            publish()
+        }
+    }
+
+    @Override
+    void destroy() {
+        pushBus?.stop()
+        dispatcher?.shutdown()
+    }
+
+    private IceScrumPushDispatcher lookupDispatcher() {
+        if (dispatcher == null) {
+            def config = grailsApplication.config.icescrum.push.dispatcher
+            if (config.enable == false || !atmosphereMeteor?.broadcasterFactory) {
+                return null // Synchronous broadcast on the request thread
+            }
+            synchronized (this) {
+                if (dispatcher == null) {
+                    dispatcher = new IceScrumPushDispatcher(atmosphereMeteor, (config.threads ?: 2) as int, (config.queueSize ?: 1000) as int, (config.coalescingWindow ?: 50) as long)
+                }
+            }
+        }
+        return dispatcher
+    }
+
+    // Messages are sent only once the surrounding transaction is committed and discarded on rollback
+    private PushBuffer getTransactionBuffer(boolean create = true) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            return null
+        }
+        TransactionPushBuffer buffer = (TransactionPushBuffer) TransactionSynchronizationManager.getResource(TRANSACTION_BUFFER_KEY)
+        if (buffer == null && create) {
+            buffer = new TransactionPushBuffer()
+            TransactionSynchronizationManager.bindResource(TRANSACTION_BUFFER_KEY, buffer)
+            TransactionSynchronizationManager.registerSynchronization(new TransactionPushSynchronization(this, buffer))
+        }
+        return buffer?.completed ? null : buffer
+    }
+
+    private void sendToUsers(Collection<String> usernames, String payload) {
+        def channel = '/stream/app/*'
+        Set<AtmosphereResource> resources = IceScrumResourceRegistry.getResources(usernames)
+        if (resources) {
+            Broadcaster broadcaster = atmosphereMeteor.broadcasterFactory?.lookup(IceScrumBroadcaster.class, channel)
+            if (broadcaster) {
+                try {
                     if (log.debugEnabled) {
-                        log.debug("broadcast " + messages.size() + " buffered messages on channel $channel")
+                        log.debug('Broadcast to ' + resources*.uuid().join(', ') + ' on channel ' + channel)
                     }
-                    broadcaster.broadcast(messages.collect({ it as JSON }).join(BUFFER_MESSAGE_DELIMITER))
+                    broadcaster.broadcast(payload, resources)
+                } catch (Exception e) {
+                    // Request object no longer valid.  This object has been cancelled, see https://github.com/Atmosphere/atmosphere/issues/1052
                 }
             }
         }
     }
 
-    boolean isBufferedThread() {
-        return bufferedThreads.containsKey(Thread.currentThread().getId())
+    private void sendBuffer(PushBuffer buffer) {
+        Map<String, PushMessage> userMessages = new LinkedHashMap<String, PushMessage>()
+        Map<String, List<String>> usernamesByMessage = [:]
+        buffer.drain().each { String channel, List<PushMessage> messages ->
+            if (channel.startsWith(USER_TARGET_PREFIX)) {
+                String username = channel.substring(USER_TARGET_PREFIX.length())
+                messages.each { PushMessage message ->
+                    userMessages[message.messageId] = message
+                    usernamesByMessage.get(message.messageId, []) << username
+                }
+            } else {
+                sendMessages(channel, messages)
+            }
+        }
+        // Regrouped so that a message for several users is sent only once
+        userMessages.each { String messageId, PushMessage message ->
+            sendMessageToUsers(message, usernamesByMessage[messageId])
+        }
+    }
+
+    private void sendMessageToUsers(PushMessage message, Collection<String> usernames) {
+        sendToUsers(usernames, message.payload)
+        pushBus?.publish(new PushBusMessage(nodeId: pushBus.nodeId, sentAt: System.currentTimeMillis(), messageId: message.messageId, usernames: usernames as List, payload: message.payload))
+    }
+
+    private void sendMessages(String channel, List<PushMessage> messages) {
+        messages.each { PushMessage message ->
+            pushBus?.publish(new PushBusMessage(nodeId: pushBus.nodeId, sentAt: System.currentTimeMillis(), channel: channel, messageId: message.messageId, payload: message.payload))
+        }
+        sendLocally(channel, messages)
+    }
+
+    private void sendLocally(String channel, List<PushMessage> messages) {
+        IceScrumPushDispatcher pushDispatcher = lookupDispatcher()
+        if (pushDispatcher) {
+            messages.each { PushMessage message ->
+                pushDispatcher.dispatch(channel, message.messageId, message.payload)
+            }
+        } else {
+            Broadcaster broadcaster = atmosphereMeteor.broadcasterFactory?.lookup(IceScrumBroadcaster.class, channel)
+            if (broadcaster) {
+                if (log.debugEnabled) {
+                    log.debug("Broadcast ${messages.size()} messages on channel $channel")
+                }
+                broadcaster.broadcast(messages*.payload.join(BUFFER_MESSAGE_DELIMITER))
+            }
+        }
+    }
+
+    // Messages published by other nodes are already serialized: they are delivered as is and never republished
+    private void receiveFromPeer(PushBusMessage message) {
+        if (message.channel == INVALIDATION_CHANNEL) {
+            Closure handler = invalidationHandlers[message.messageId]
+            try {
+                handler?.call((List<String>) new JsonSlurper().parseText(message.payload))
+            } catch (Exception e) {
+                log.error("Unable to apply the invalidation of ${message.messageId} from node ${message.nodeId}", e)
+            }
+        } else if (message.channel) {
+            sendLocally(message.channel, [new PushMessage(message.messageId, message.payload)])
+        } else if (message.usernames) {
+            sendToUsers(message.usernames, message.payload)
+        }
+    }
+
+    private static class TransactionPushBuffer extends PushBuffer {
+        boolean completed = false
+    }
+
+    private static class TransactionPushSynchronization extends TransactionSynchronizationAdapter {
+
+        private final PushService pushService
+        private final TransactionPushBuffer buffer
+
+        TransactionPushSynchronization(PushService pushService, TransactionPushBuffer buffer) {
+            this.pushService = pushService
+            this.buffer = buffer
+        }
+
+        @Override
+        void suspend() {
+            TransactionSynchronizationManager.unbindResourceIfPossible(TRANSACTION_BUFFER_KEY)
+        }
+
+        @Override
+        void resume() {
+            TransactionSynchronizationManager.bindResource(TRANSACTION_BUFFER_KEY, buffer)
+        }
+
+        @Override
+        void afterCommit() {
+            buffer.completed = true // From now on, messages are sent directly
+            pushService.releaseTransactionBuffer(buffer, true)
+        }
+
+        @Override
+        void afterCompletion(int status) {
+            TransactionSynchronizationManager.unbindResourceIfPossible(TRANSACTION_BUFFER_KEY)
+            if (!buffer.completed) {
+                buffer.completed = true
+                pushService.releaseTransactionBuffer(buffer, false)
+            }
+        }
+    }
+
+    Long getPortfolioId(long projectId) {
+        Long portfolioId = portfolioIdByProject.get(projectId)
+        if (portfolioId == null) {
+            portfolioId = Project.get(projectId)?.portfolio?.id ?: NO_PORTFOLIO
+            portfolioIdByProject.put(projectId, portfolioId)
+        }
+        return portfolioId != NO_PORTFOLIO ? portfolioId : null
+    }
+
+    @IceScrumListener(domain = 'portfolio')
+    void portfolioChanged(IceScrumEventType type, Portfolio portfolio, Map dirtyProperties) {
+        portfolioIdByProject.clear() // Projects can be added to or removed from the portfolio
+        publishInvalidation('portfolios', ['*'])
+    }
+
+    @IceScrumListener(domain = 'project', eventType = IceScrumEventType.DELETE)
+    void projectDeleted(Project project, Map dirtyProperties) {
+        portfolioIdByProject.remove(dirtyProperties.id)
+        publishInvalidation('portfolios', [dirtyProperties.id.toString()])
+    }
+
+    private static String getWorkspaceChannel(String workspaceType, long workspaceId) {
+        return "/stream/app/$workspaceType-$workspaceId"
     }
 
     private static getNamespaceFromDomain(domain) {
@@ -202,6 +467,10 @@ class PushService {
         return object instanceof Map && object.messageId ? object.messageId : (object.class ? getNamespaceFromDomain(object) : UUID.randomUUID().toString()) + '-' + eventType + '-' + object.id
     }
 
+    public static PushMessage encodeMessage(String namespace, String eventType, object) {
+        return new PushMessage(buildMessage(namespace, eventType, object))
+    }
+
     public static def buildMessage(String namespace, String eventType, object) {
         def message = [
                 messageId: generatedMessageId(object, eventType),
@@ -174,76 +174,60 @@ class ReleaseService extends IceScrumEventPublisher {
 
     @PreAuthorize('stakeHolder(#release.parentProject) or inProject(#release.parentProject)')
     def releaseBurndownValues(Release release) {
-        def values = []
-        def cliches = []
-        // Beginning of project
-        def firstClicheActivation = Cliche.findByParentTimeBoxAndType(release, Cliche.TYPE_ACTIVATION, [sort: "datePrise", order: "asc"])
-        if (firstClicheActivation) {
-            cliches.add(firstClicheActivation)
-        }
-        // Regular close cliches
-        cliches.addAll(Cliche.findAllByParentTimeBoxAndType(release, Cliche.TYPE_CLOSE, [sort: "datePrise", order: "asc"]))
-        // Dynamic cliche
-        if (release.state == Release.STATE_INPROGRESS) {
-            Sprint sprint = release.sprints.find { it.state == Sprint.STATE_INPROGRESS }
-            if (sprint) {
-                cliches << [data: clicheService.generateSprintClicheData(sprint, Cliche.TYPE_CLOSE)]
-            }
-        }
-        cliches?.eachWithIndex { cliche, index ->
-            def xmlRoot = new XmlSlurper().parseText(cliche.data)
-            if (xmlRoot) {
-                def storyTypes = grailsApplication.config.icescrum.resourceBundles.storyTypes.keySet()
-                def sprintEntry = [:]
-                storyTypes.each { storyType ->
-                    def value = xmlRoot."${grailsApplication.config.icescrum.resourceBundles.storyTypesCliche[storyType]}"
-                    sprintEntry[storyType] = value.toString() ? value.toBigDecimal() : 0
-                }
-                sprintEntry.label = index == 0 ? "Start" : Sprint.getNameByReleaseAndClicheSprintId(release, xmlRoot."${Cliche.SPRINT_ID}".toString()) + "${cliche.id ? '' : " (progress)"}"
-                values << sprintEntry
+        def storyTypes = grailsApplication.config.icescrum.resourceBundles.storyTypes.keySet()
+        return clicheService.releaseSeries('releaseBurndown', release) { Map clicheValues, int index, boolean inProgress ->
+            def sprintEntry = [:]
+            storyTypes.each { storyType ->
+                def value = clicheValues[grailsApplication.config.icescrum.resourceBundles.storyTypesCliche[storyType]]
+                sprintEntry[storyType] = value instanceof Number ? value as BigDecimal : 0
             }
+            sprintEntry.label = index == 0 ? "Start" : Sprint.getNameByReleaseAndClicheSprintId(release, clicheValues[Cliche.SPRINT_ID]?.toString()) + "${inProgress ? " (progress)" : ''}"
+            return sprintEntry
         }
-        return values
     }
 
     @PreAuthorize('stakeHolder(#release.parentProject) or inProject(#release.parentProject)')
     def releaseVelocityValues(Release release) {
-        def values = []
-        Cliche.findAllByParentTimeBoxAndType(release, Cliche.TYPE_CLOSE, [sort: "datePrise", order: "asc"])?.each { cliche ->
-            def xmlRoot = new XmlSlurper().parseText(cliche.data)
-            if (xmlRoot) {
-                values << [
-                        userstories     : xmlRoot."${Cliche.FUNCTIONAL_STORY_VELOCITY}".toBigDecimal(),
-                        defectstories   : xmlRoot."${Cliche.DEFECT_STORY_VELOCITY}".toBigDecimal(),
-                        technicalstories: xmlRoot."${Cliche.TECHNICAL_STORY_VELOCITY}".toBigDecimal(),
-                        label           : Sprint.getNameByReleaseAndClicheSprintId(release, xmlRoot."${Cliche.SPRINT_ID}".toString())
-                ]
+        return clicheService.getHistoricalSeries('releaseVelocity', release.parentProject.id, release.id) {
+            def values = []
+            Cliche.findAllByParentTimeBoxAndType(release, Cliche.TYPE_CLOSE, [sort: "datePrise", order: "asc"])?.each { cliche ->
+                def clicheValues = cliche.values
+                if (clicheValues) {
+                    values << [
+                            userstories     : clicheValues[Cliche.FUNCTIONAL_STORY_VELOCITY] as BigDecimal,
+                            defectstories   : clicheValues[Cliche.DEFECT_STORY_VELOCITY] as BigDecimal,
+                            technicalstories: clicheValues[Cliche.TECHNICAL_STORY_VELOCITY] as BigDecimal,
+                            label           : Sprint.getNameByReleaseAndClicheSprintId(release, clicheValues[Cliche.SPRINT_ID]?.toString())
+                    ]
+                }
             }
+            return values
         }
-        return values
     }
 
     @PreAuthorize('stakeHolder(#release.parentProject) or inProject(#release.parentProject)')
     def releaseVelocityCapacityValues(Release release) {
-        def values = []
-        def capacity = 0
-        def label = ""
-        Cliche.findAllByParentTimeBox(release, [sort: "datePrise", order: "asc"])?.each { cliche ->
-            def xmlRoot = new XmlSlurper().parseText(cliche.data)
-            if (xmlRoot) {
-                if (cliche.type == Cliche.TYPE_ACTIVATION) {
-                    capacity = xmlRoot."${Cliche.SPRINT_CAPACITY}".toBigDecimal()
-                    label = Sprint.getNameByReleaseAndClicheSprintId(release, xmlRoot."${Cliche.SPRINT_ID}".toString())
-                } else if (cliche.type == Cliche.TYPE_CLOSE) {
-                    values << [
-                            capacity: capacity,
-                            velocity: xmlRoot."${Cliche.SPRINT_VELOCITY}".toBigDecimal(),
-                            label   : label
-                    ]
+        return clicheService.getHistoricalSeries('releaseVelocityCapacity', release.parentProject.id, release.id) {
+            def values = []
+            def capacity = 0
+            def label = ""
+            Cliche.findAllByParentTimeBox(release, [sort: "datePrise", order: "asc"])?.each { cliche ->
+                def clicheValues = cliche.values
+                if (clicheValues) {
+                    if (cliche.type == Cliche.TYPE_ACTIVATION) {
+                        capacity = clicheValues[Cliche.SPRINT_CAPACITY] as BigDecimal
+                        label = Sprint.getNameByReleaseAndClicheSprintId(release, clicheValues[Cliche.SPRINT_ID]?.toString())
+                    } else if (cliche.type == Cliche.TYPE_CLOSE) {
+                        values << [
+                                capacity: capacity,
+                                velocity: clicheValues[Cliche.SPRINT_VELOCITY] as BigDecimal,
+                                label   : label
+                        ]
+                    }
                 }
             }
+            return values
         }
-        return values
     }
 
     def unMarshall(def releaseXml, def options) {
@@ -264,7 +248,11 @@ class ReleaseService extends IceScrumEventPublisher {
                     goal: releaseXml.goal.text() ?: null)
             options.release = release
             if (project) {
-                project.addToReleases(release)
+                if (options.clearSession) {
+                    release.parentProject = project // Only the owning side, so the releases of the project aren't loaded again after each batch
+                } else {
+                    project.addToReleases(release)
+                }
                 // Save before some hibernate stuff
                 if (options.save) {
                     release.save()
@@ -274,7 +262,8 @@ class ReleaseService extends IceScrumEventPublisher {
                     sprintService.unMarshall(sprint, options)
                 }
                 releaseXml.features.feature.each { feature ->
-                    Feature f = project.features.find { it.uid == feature.@uid.text().toInteger() }
+                    int featureUid = feature.@uid.text().toInteger()
+                    Feature f = options.featuresByUid != null ? options.featuresByUid[featureUid] : project.features.find { it.uid == featureUid }
                     if (f) {
                         release.addToFeatures(f)
                     }
@@ -286,7 +275,7 @@ class ReleaseService extends IceScrumEventPublisher {
                 if (project) {
                     releaseXml.attachments.attachment.each { _attachmentXml ->
                         def uid = options.userUIDByImportedID?."${_attachmentXml.posterId.text().toInteger()}" ?: null
-                        User user = project.getUserByUidOrOwner(uid)
+                        User user = project.getUserByUidOrOwner(uid, options.usersByUid)
                         ApplicationSupport.importAttachment(release, user, options.path, _attachmentXml)
                     }
                     release.attachments_count = releaseXml.attachments.attachment.size() ?: 0
@@ -0,0 +1,281 @@
+/*
+ * Copyright (c) 2020 Kagilum SAS.
+ *
+ * This file is part of iceScrum.
+ *
+ * iceScrum is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * iceScrum is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with iceScrum.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.icescrum.core.services
+
+import grails.transaction.NotTransactional
+import grails.transaction.Transactional
+import org.icescrum.core.domain.*
+import org.icescrum.core.event.IceScrumEventType
+import org.icescrum.core.event.IceScrumListener
+import org.springframework.transaction.support.TransactionSynchronizationAdapter
+import org.springframework.transaction.support.TransactionSynchronizationManager
+
+/**
+ * Maintains the SearchToken full-text index of stories, features and tasks.
+ * The index is updated on create / update / delete events and can be rebuilt from scratch with rebuild(),
+ * which runs in background on the first start, on a single node. Searches fall back to plain text queries until the index is ready.
+ * During a rebuild, the changed elements are only recorded once committed, then indexed again when the rebuild is over.
+ * Updates that don't change the indexed text are ignored.
+ */
+@Transactional
+class SearchIndexService {
+
+    private static final int BATCH_SIZE = 200
+    private static final Map<String, String> projectPropertyByType = [story: 'backlog', feature: 'backlog', task: 'parentProject']
+    private static final List<String> INDEXED_PROPERTIES = ['name', 'description', 'notes', 'tags']
+    private static final String REBUILD_JOB = 'searchIndex.rebuild'
+
+    def grailsApplication
+
+    volatile boolean ready = false
+
+    private final Object rebuildLock = new Object()
+    private boolean rebuilding = false
+    private final Set<List> changedDuringRebuild = new LinkedHashSet<List>() // [parentType, parentRef]
+
+    @IceScrumListener(domains = ['story', 'feature', 'task'])
+    void backlogElementChanged(IceScrumEventType type, BacklogElement element, Map dirtyProperties) {
+        if (type == IceScrumEventType.UPDATE && !isIndexedChange(dirtyProperties)) {
+            return
+        }
+        if (isRebuilding()) {
+            String parentType = getParentType(element)
+            Long parentRef = dirtyProperties?.id ?: element.id
+            if (parentRef) {
+                afterCommit {
+                    changedAfterCommit(parentType, parentRef)
+                }
+            }
+        } else if (type in [IceScrumEventType.CREATE, IceScrumEventType.UPDATE]) {
+            index(element)
+        } else if (type == IceScrumEventType.DELETE) {
+            SearchToken.executeUpdate("DELETE FROM SearchToken st WHERE st.parentType = :parentType AND st.parentRef = :parentRef", [parentType: getParentType(element), parentRef: dirtyProperties?.id ?: element.id])
+        }
+    }
+
+    @IceScrumListener(domain = 'project', eventType = IceScrumEventType.DELETE)
+    void projectDeleted(Project project, Map dirtyProperties) {
+        SearchToken.executeUpdate("DELETE FROM SearchToken st WHERE st.projectId = :projectId", [projectId: dirtyProperties?.id ?: project.id])
+    }
+
+    void index(BacklogElement element) {
+        String parentType = getParentType(element)
+        Long projectId = element."${projectPropertyByType[parentType]}"?.id
+        if (!projectId || !element.id) {
+            return
+        }
+        Set<String> tokens = getTokens(element)
+        Set<String> existingTokens = SearchToken.executeQuery("SELECT st.token FROM SearchToken st WHERE st.parentType = :parentType AND st.parentRef = :parentRef", [parentType: parentType, parentRef: element.id]) as Set
+        def removedTokens = existingTokens - tokens
+        if (removedTokens) {
+            removedTokens.collate(BATCH_SIZE).each { batch ->
+                SearchToken.executeUpdate("DELETE FROM SearchToken st WHERE st.parentType = :parentType AND st.parentRef = :parentRef AND st.token IN (:tokens)", [parentType: parentType, parentRef: element.id, tokens: batch])
+            }
+        }
+        (tokens - existingTokens).each { String token ->
+            saveToken(token, parentType, element.id, projectId)
+        }
+    }
+
+    @NotTransactional
+    void rebuild() {
+        if (!beginRebuild()) {
+            return
+        }
+        ready = false
+        try {
+            buildIndex()
+        } finally {
+            endRebuild()
+        }
+        ready = true
+    }
+
+    void start() {
+        def enable = grailsApplication.config.icescrum.search.index.enable
+        if (!(enable instanceof Boolean ? enable : true)) {
+            return
+        }
+        if (ClusterJob.isCompleted(REBUILD_JOB)) {
+            ready = true
+        } else { // First start with the index: build it in background, searches use plain text queries meanwhile
+            Thread thread = new Thread({
+                try {
+                    // Built by a single node, meanwhile the changes made on this one are recorded and indexed once it is completed
+                    if (beginRebuild()) {
+                        try {
+                            while (!ClusterJob.isCompleted(REBUILD_JOB)) {
+                                boolean locked = ClusterJob.runLocked(REBUILD_JOB, 3600000L) {
+                                    if (!ClusterJob.isCompleted(REBUILD_JOB)) {
+                                        buildIndex()
+                                    }
+                                }
+                                if (!locked) {
+                                    Thread.sleep(60000L)
+                                }
+                            }
+                        } finally {
+                            endRebuild()
+                        }
+                        ready = true
+                    }
+                } catch (Exception e) {
+                    log.error("Error while building the search index", e)
+                }
+            } as Runnable, 'icescrum-search-index')
+            thread.daemon = true
+            thread.start()
+        }
+    }
+
+    // Each batch is committed on its own, the tokens that are already there (e.g. committed by an update during the rebuild) are kept
+    private void buildIndex() {
+        def start = System.currentTimeMillis()
+        SearchToken.withNewTransaction {
+            SearchToken.executeUpdate("DELETE FROM SearchToken")
+        }
+        projectPropertyByType.each { String parentType, String projectProperty ->
+            Class domainClass = getDomainClass(parentType)
+            def ids = SearchToken.withNewTransaction {
+                domainClass.executeQuery("SELECT e.id FROM ${domainClass.name} e")
+            }
+            ids.collate(BATCH_SIZE).each { List<Long> batch ->
+                SearchToken.withNewTransaction {
+                    Map<Long, Set<String>> existingTokens = [:].withDefault { new HashSet<String>() }
+                    SearchToken.executeQuery("SELECT st.parentRef, st.token FROM SearchToken st WHERE st.parentType = :parentType AND st.parentRef IN (:parentRefs)", [parentType: parentType, parentRefs: batch]).each { row ->
+                        existingTokens[row[0]] << row[1]
+                    }
+                    domainClass.getAll(batch).each { BacklogElement element ->
+                        Long projectId = element?."$projectProperty"?.id
+                        if (projectId) {
+                            (getTokens(element) - existingTokens[element.id]).each { String token ->
+                                saveToken(token, parentType, element.id, projectId)
+                            }
+                        }
+                    }
+                    SearchToken.withSession { session ->
+                        session.flush()
+                        session.clear()
+                    }
+                }
+            }
+        }
+        if (log.infoEnabled) {
+            log.info("Search index rebuilt in ${System.currentTimeMillis() - start}ms")
+        }
+    }
+
+    private boolean beginRebuild() {
+        synchronized (rebuildLock) {
+            if (rebuilding) {
+                return false
+            }
+            rebuilding = true
+            return true
+        }
+    }
+
+    private void endRebuild() {
+        List<List> changed
+        synchronized (rebuildLock) {
+            rebuilding = false
+            changed = new ArrayList<List>(changedDuringRebuild)
+            changedDuringRebuild.clear()
+        }
+        changed.each { List change ->
+            reindex((String) change[0], (Long) change[1])
+        }
+    }
+
+    private boolean isRebuilding() {
+        synchronized (rebuildLock) {
+            return rebuilding
+        }
+    }
+
+    // Recorded while the rebuild is in progress, indexed right away if it is over in the meantime
+    private void changedAfterCommit(String parentType, Long parentRef) {
+        synchronized (rebuildLock) {
+            if (rebuilding) {
+                changedDuringRebuild << [parentType, parentRef]
+                return
+            }
+        }
+        reindex(parentType, parentRef)
+    }
+
+    // Indexes the committed state of the element, or removes its tokens if it doesn't exist anymore
+    private void reindex(String parentType, Long parentRef) {
+        try {
+            SearchToken.withNewTransaction {
+                BacklogElement element = (BacklogElement) getDomainClass(parentType).get(parentRef)
+                if (element) {
+                    index(element)
+                } else {
+                    SearchToken.executeUpdate("DELETE FROM SearchToken st WHERE st.parentType = :parentType AND st.parentRef = :parentRef", [parentType: parentType, parentRef: parentRef])
+                }
+            }
+        } catch (Exception e) {
+            log.error("Error while indexing ${parentType} ${parentRef}", e)
+        }
+    }
+
+    private Class getDomainClass(String parentType) {
+        return grailsApplication.getDomainClass('org.icescrum.core.domain.' + parentType.capitalize()).clazz
+    }
+
+    // Tags are saved apart by the taggable plugin: an update without any dirty property may be a change of tags
+    private static boolean isIndexedChange(Map dirtyProperties) {
+        return !dirtyProperties || INDEXED_PROPERTIES.any { dirtyProperties.containsKey(it) }
+    }
+
+    private static void afterCommit(Closure closure) {
+        if (TransactionSynchronizationManager.synchronizationActive) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                void afterCommit() {
+                    closure()
+                }
+            })
+        } else {
+            closure()
+        }
+    }
+
+    // The unique key on parentType, parentRef and token is checked by the database rather than by a query for each token
+    private static void saveToken(String token, String parentType, Long parentRef, Long projectId) {
+        new SearchToken(token: token, parentType: parentType, parentRef: parentRef, projectId: projectId).save(validate: false)
+    }
+
+    private static Set<String> getTokens(BacklogElement element) {
+        Set<String> tokens = new LinkedHashSet<String>()
+        [element.name, element.description, element.notes, element.uid?.toString()].each { text ->
+            tokens.addAll(SearchToken.tokenize(text))
+        }
+        element.tags?.each { String tag ->
+            tokens.addAll(SearchToken.tokenize(tag))
+        }
+        return tokens
+    }
+
+    private static String getParentType(BacklogElement element) {
+        return element instanceof Story ? 'story' : element instanceof Feature ? 'feature' : 'task'
+    }
+}
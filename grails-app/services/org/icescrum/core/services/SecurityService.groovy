@@ -29,6 +29,10 @@ import grails.plugin.springsecurity.acl.AclSid
 import org.codehaus.groovy.grails.orm.hibernate.cfg.GrailsHibernateUtil
 import org.icescrum.core.domain.*
 import org.icescrum.core.domain.security.Authority
+import org.icescrum.core.event.IceScrumEventType
+import org.icescrum.core.event.IceScrumListener
+import org.icescrum.core.security.WorkspaceRoleCache
+import org.springframework.beans.factory.InitializingBean
 import org.springframework.http.HttpMethod
 import org.springframework.security.acls.domain.BasePermission
 import org.springframework.security.acls.domain.PrincipalSid
@@ -36,12 +40,14 @@ import org.springframework.security.acls.model.*
 import org.springframework.security.core.Authentication
 import org.springframework.security.core.context.SecurityContextHolder as SCH
 import org.springframework.security.oauth2.provider.expression.OAuth2ExpressionUtils
+import org.springframework.transaction.support.TransactionSynchronizationAdapter
+import org.springframework.transaction.support.TransactionSynchronizationManager
 import org.springframework.util.Assert
 import org.springframework.web.context.request.RequestContextHolder as RCH
 
 import static org.springframework.security.acls.domain.BasePermission.*
 
-class SecurityService {
+class SecurityService implements InitializingBean {
 
     def aclUtilService
     def objectIdentityRetrievalStrategy
@@ -50,6 +56,8 @@ class SecurityService {
     def grailsApplication
     def aclService
     def appService
+    def pushService
+    def workspaceMembershipService
 
     static final productOwnerPermissions = [BasePermission.WRITE]
     static final stakeHolderPermissions = [BasePermission.READ]
@@ -58,16 +66,33 @@ class SecurityService {
     static final businessOwnerPermissions = [BasePermission.WRITE]
     static final portfolioStakeHolderPermissions = [BasePermission.READ]
 
+    private static final String TEAM = 'team'
+
+    private WorkspaceRoleCache roleCache
+
+    @Override
+    void afterPropertiesSet() {
+        def config = grailsApplication.config.icescrum.security.roleCache
+        if (config.enable instanceof Boolean ? config.enable : true) {
+            // Invalidations from other nodes are best effort, a lost one is then kept less time
+            long defaultExpireAfterWrite = grailsApplication.config.icescrum.push.cluster.enable ? 5 : 30
+            roleCache = new WorkspaceRoleCache((config.maximumSize ?: 10000) as long, (config.expireAfterWrite ?: defaultExpireAfterWrite) as long)
+        }
+    }
+
     Acl secureDomain(o) {
         createAcl(objectIdentityRetrievalStrategy.getObjectIdentity(o))
     }
 
     void unsecureDomain(o) {
         aclUtilService.deleteAcl(GrailsHibernateUtil.unwrapIfProxy(o))
+        invalidateRoles(o)
     }
 
     void changeOwner(User user, o) {
         aclUtilService.changeOwner(GrailsHibernateUtil.unwrapIfProxy(o), user.username)
+        invalidateRoles(o) // The previous owner loses its roles too
+        refreshMemberships(o)
         user.lastUpdated = new Date()
         user.save()
     }
@@ -127,6 +152,8 @@ class SecurityService {
         permissions.each { permission ->
             change(unwrappedObject, username, permission)
         }
+        invalidateRoles([userRolesKey(username)]) // Team permissions also grant project roles
+        refreshMemberships(unwrappedObject)
         user.lastUpdated = new Date()
         user.save()
     }
@@ -163,8 +190,9 @@ class SecurityService {
                             return true
                         }
                     }
+                    return false
                 }
-                authorized = computeResult()
+                authorized = cachedRole(auth, WorkspaceType.PROJECT, project, 'inProject', computeResult)
             }
         }
         return authorized && isAuthorizedOAuth(auth, 'project')
@@ -234,7 +262,9 @@ class SecurityService {
             t = GrailsHibernateUtil.unwrapIfProxy(team)
             team = t.id
         }
-        def authorized = isScrumMaster(team, auth, t) || isOwner(team, auth, grailsApplication.getDomainClass(Team.class.name).newInstance(), t)
+        def authorized = team && (SpringSecurityUtils.ifAnyGranted(Authority.ROLE_ADMIN) || cachedRole(auth, TEAM, team, 'scrumMaster') {
+            isScrumMaster(team, auth, t) || isOwner(team, auth, grailsApplication.getDomainClass(Team.class.name).newInstance(), t)
+        })
         return authorized && isAuthorizedOAuth(auth) { request ->
             getProjectIdFromRequest(request) ? 'project' : 'team'
         }
@@ -294,7 +324,9 @@ class SecurityService {
                 return true
             }
             def computeResult = {
-                def access = stakeHolder ?: p.preferences.hidden ? aclUtilService.hasPermission(auth, GrailsHibernateUtil.unwrapIfProxy(p), SecurityService.stakeHolderPermissions) : !onlyPrivate
+                def access = stakeHolder ?: p.preferences.hidden ? cachedRole(auth, WorkspaceType.PROJECT, project, 'stakeHolder') {
+                    aclUtilService.hasPermission(auth, GrailsHibernateUtil.unwrapIfProxy(p), SecurityService.stakeHolderPermissions)
+                } : !onlyPrivate
                 if (access && controllerName) {
                     return controllerName == 'project' || !(controllerName in p.preferences.stakeHolderRestrictedViews?.split(','))
                 } else {
@@ -323,17 +355,20 @@ class SecurityService {
             p = GrailsHibernateUtil.unwrapIfProxy(project)
             project = project.id
         }
-        def authorized = isProductOwner(project, auth, p)
-        if (!authorized && project) {
+        def authorized = project && (SpringSecurityUtils.ifAnyGranted(Authority.ROLE_ADMIN) || cachedRole(auth, WorkspaceType.PROJECT, project, 'productOwner') {
+            if (isProductOwner(project, auth, p)) {
+                return true
+            }
             if (!p) {
                 p = Project.get(project)
             }
             if (p) {
                 Team t = GrailsHibernateUtil.unwrapIfProxy(p.team)
                 long team = t.id
-                authorized = isOwner(team, auth, grailsApplication.getDomainClass(Team.class.name).newInstance(), t) || (p.portfolio && businessOwner(p.portfolio, auth))
+                return isOwner(team, auth, grailsApplication.getDomainClass(Team.class.name).newInstance(), t) || (p.portfolio && businessOwner(p.portfolio, auth))
             }
-        }
+            return false
+        })
         return authorized && isAuthorizedOAuth(auth, 'project')
     }
 
@@ -379,8 +414,9 @@ class SecurityService {
                     if (SpringSecurityUtils.ifAnyGranted(Authority.ROLE_ADMIN)) {
                         return true
                     }
-                    t = openProjectTeam(parsedProject, springSecurityService.principal.id)
-                    team = t?.id
+                    team = cachedRole(auth, WorkspaceType.PROJECT, parsedProject, 'team') {
+                        openProjectTeam(parsedProject, springSecurityService.principal.id)?.id ?: 0L
+                    }
                 }
             }
         } else if (team in Team) {
@@ -400,7 +436,7 @@ class SecurityService {
                 }
                 return aclUtilService.hasPermission(auth, GrailsHibernateUtil.unwrapIfProxy(t), SecurityService.teamMemberPermissions)
             }
-            def authorized = computeResult()
+            def authorized = cachedRole(auth, TEAM, team, 'teamMember', computeResult)
             return authorized && isAuthorizedOAuth(auth) { request ->
                 getProjectIdFromRequest(request) ? 'project' : 'team'
             }
@@ -435,7 +471,9 @@ class SecurityService {
             _portfolio = Portfolio.get(portfolio)
         }
         if (_portfolio && auth) {
-            def authorized = SpringSecurityUtils.ifAnyGranted(Authority.ROLE_ADMIN) || aclUtilService.hasPermission(auth, GrailsHibernateUtil.unwrapIfProxy(_portfolio), SecurityService.businessOwnerPermissions)
+            def authorized = SpringSecurityUtils.ifAnyGranted(Authority.ROLE_ADMIN) || cachedRole(auth, WorkspaceType.PORTFOLIO, _portfolio.id, 'businessOwner') {
+                aclUtilService.hasPermission(auth, GrailsHibernateUtil.unwrapIfProxy(_portfolio), SecurityService.businessOwnerPermissions)
+            }
             return authorized && isAuthorizedOAuth(auth, 'portfolio')
         } else {
             return false
@@ -464,8 +502,9 @@ class SecurityService {
             _portfolio = Portfolio.get(portfolio)
         }
         if (_portfolio && auth) {
-            return SpringSecurityUtils.ifAnyGranted(Authority.ROLE_ADMIN) ||
-                   aclUtilService.hasPermission(auth, GrailsHibernateUtil.unwrapIfProxy(_portfolio), SecurityService.portfolioStakeHolderPermissions)
+            return SpringSecurityUtils.ifAnyGranted(Authority.ROLE_ADMIN) || cachedRole(auth, WorkspaceType.PORTFOLIO, _portfolio.id, 'portfolioStakeHolder') {
+                aclUtilService.hasPermission(auth, GrailsHibernateUtil.unwrapIfProxy(_portfolio), SecurityService.portfolioStakeHolderPermissions)
+            }
         } else {
             return false
         }
@@ -655,6 +694,109 @@ class SecurityService {
         return true
     }
 
+    Map getRoleCacheStats() {
+        return roleCache ? roleCache.stats : [enabled: false]
+    }
+
+    @IceScrumListener(domain = 'project')
+    void projectChanged(IceScrumEventType type, Project project, Map dirtyProperties) {
+        if (type in [IceScrumEventType.UPDATE, IceScrumEventType.DELETE]) { // Preferences (hidden, archived...), teams and members
+            invalidateRoles([workspaceRolesKey(WorkspaceType.PROJECT, project.id ?: dirtyProperties?.id)])
+        }
+    }
+
+    @IceScrumListener(domain = 'portfolio')
+    void portfolioChanged(IceScrumEventType type, Portfolio portfolio, Map dirtyProperties) {
+        if (type in [IceScrumEventType.BEFORE_UPDATE, IceScrumEventType.UPDATE, IceScrumEventType.BEFORE_DELETE]) { // Before and after, to cover removed and added projects
+            invalidateRoles(portfolio)
+        }
+    }
+
+    @IceScrumListener(domain = 'user')
+    void userChanged(IceScrumEventType type, User user, Map dirtyProperties) {
+        if (type in [IceScrumEventType.UPDATE, IceScrumEventType.DELETE]) { // Authorities or username may have changed
+            List<String> keys = [userRolesKey(user.username)]
+            if (dirtyProperties?.username) {
+                keys << userRolesKey(dirtyProperties.username)
+            }
+            invalidateRoles(keys)
+        }
+    }
+
+    private def cachedRole(auth, String workspaceType, workspaceId, String role, Closure compute) {
+        if (!roleCache || !auth || !workspaceId || OAuth2ExpressionUtils.isOAuth(auth)) { // OAuth scopes are checked on each request
+            return compute()
+        }
+        return roleCache.get(auth.name, workspaceType, workspaceId as Long, role, compute)
+    }
+
+    private void invalidateRoles(o) {
+        def d = GrailsHibernateUtil.unwrapIfProxy(o)
+        if (d instanceof Project) {
+            invalidateRoles([workspaceRolesKey(WorkspaceType.PROJECT, d.id)])
+        } else if (d instanceof Team) {
+            invalidateRoles([workspaceRolesKey(TEAM, d.id)] + (d.projects ?: []).collect { workspaceRolesKey(WorkspaceType.PROJECT, it.id) })
+        } else if (d instanceof Portfolio) {
+            invalidateRoles([workspaceRolesKey(WorkspaceType.PORTFOLIO, d.id)] + (d.projects ?: []).collect { workspaceRolesKey(WorkspaceType.PROJECT, it.id) })
+        }
+    }
+
+    // The membership index is read instead of the ACL to find the workspaces of a user (e.g. Project.findAllByRole)
+    private void refreshMemberships(o) {
+        def d = GrailsHibernateUtil.unwrapIfProxy(o)
+        if (d instanceof Project) {
+            workspaceMembershipService.refreshBeforeCommit(WorkspaceType.PROJECT, d.id)
+        } else if (d instanceof Team) {
+            d.projects?.each { Project project ->
+                workspaceMembershipService.refreshBeforeCommit(WorkspaceType.PROJECT, project.id)
+            }
+        } else if (d instanceof Portfolio) {
+            workspaceMembershipService.refreshBeforeCommit(WorkspaceType.PORTFOLIO, d.id)
+        }
+    }
+
+    /**
+     * Invalidate right away and once again after completion, so that roles computed by concurrent requests before the commit are not kept.
+     * The other nodes of the cluster are sent the same invalidation after completion.
+     */
+    private void invalidateRoles(List<String> keys) {
+        if (!roleCache) {
+            return
+        }
+        invalidateRolesFromPeer(keys)
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                void afterCompletion(int status) {
+                    invalidateRolesFromPeer(keys)
+                }
+            })
+        }
+        pushService.publishInvalidation('roles', keys)
+    }
+
+    // Keys are user:<username> or <workspace type>:<workspace id>
+    void invalidateRolesFromPeer(List<String> keys) {
+        keys.each { String key ->
+            int separator = key.indexOf(':')
+            String type = key.substring(0, separator)
+            String value = key.substring(separator + 1)
+            if (type == 'user') {
+                roleCache?.invalidateUser(value)
+            } else {
+                roleCache?.invalidateWorkspace(type, value.toLong())
+            }
+        }
+    }
+
+    private static String userRolesKey(String username) {
+        return 'user:' + username
+    }
+
+    private static String workspaceRolesKey(String workspaceType, workspaceId) {
+        return workspaceType + ':' + workspaceId
+    }
+
     private boolean isAuthorizedOAuth(auth, workspace) {
         if (!OAuth2ExpressionUtils.isOAuth(auth)) {
             return true
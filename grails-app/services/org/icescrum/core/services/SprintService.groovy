@@ -238,101 +238,104 @@ class SprintService extends IceScrumEventPublisher {
     }
 
     def sprintBurndownRemainingValues(Sprint sprint) {
-        def values = []
-        def lastDaycliche = sprint.inProgressDate
-        def date = (sprint.state == Sprint.STATE_DONE) ? sprint.doneDate : (sprint.state == Sprint.STATE_INPROGRESS) ? new Date() : sprint.endDate
-        clicheService.createOrUpdateDailyTasksCliche(sprint)
-        sprint.cliches?.sort { a, b -> a.datePrise <=> b.datePrise }?.eachWithIndex { cliche, index ->
-            if (cliche.datePrise <= date) {
-                def xmlRoot = new XmlSlurper().parseText(cliche.data)
-                if (xmlRoot) {
-                    lastDaycliche = cliche.datePrise
-                    def currentRemaining = xmlRoot."${Cliche.REMAINING_TIME}".toFloat()
-                    def currentSpent = xmlRoot."${Cliche.TIME_SPENT}" != "" ? xmlRoot."${Cliche.TIME_SPENT}".toFloat() : 0
-                    if ((DateUtils.isDateWeekend(lastDaycliche) && !sprint.parentRelease.parentProject.preferences.hideWeekend) || !DateUtils.isDateWeekend(lastDaycliche)) {
+        return clicheService.sprintSeries('sprintBurndownRemaining', sprint) {
+            def values = []
+            def lastDaycliche = sprint.inProgressDate
+            def date = (sprint.state == Sprint.STATE_DONE) ? sprint.doneDate : (sprint.state == Sprint.STATE_INPROGRESS) ? new Date() : sprint.endDate
+            sprint.cliches?.sort { a, b -> a.datePrise <=> b.datePrise }?.eachWithIndex { cliche, index ->
+                if (cliche.datePrise <= date) {
+                    def clicheValues = cliche.values
+                    if (clicheValues) {
+                        lastDaycliche = cliche.datePrise
+                        def currentRemaining = clicheValues[Cliche.REMAINING_TIME] as Float
+                        def currentSpent = clicheValues[Cliche.TIME_SPENT] instanceof Number ? clicheValues[Cliche.TIME_SPENT] as Float : 0
+                        if ((DateUtils.isDateWeekend(lastDaycliche) && !sprint.parentRelease.parentProject.preferences.hideWeekend) || !DateUtils.isDateWeekend(lastDaycliche)) {
+                            values << [
+                                    remainingTime: currentRemaining,
+                                    timeSpent    : currentSpent,
+                                    label        : lastDaycliche.clone().clearTime().time
+                            ]
+                        }
+                    }
+                }
+            }
+            // Insert missing days because we need them for idealTime that needs every point because it is not linear anymore
+            if (Sprint.STATE_INPROGRESS == sprint.state) {
+                def nbDays = sprint.endDate - lastDaycliche
+                nbDays.times {
+                    if ((DateUtils.isDateWeekend(lastDaycliche + (it + 1)) && !sprint.parentRelease.parentProject.preferences.hideWeekend) || !DateUtils.isDateWeekend(lastDaycliche + (it + 1))) {
                         values << [
-                                remainingTime: currentRemaining,
-                                timeSpent    : currentSpent,
-                                label        : lastDaycliche.clone().clearTime().time
+                                remainingTime: null,
+                                timeSpent    : null,
+                                label        : (lastDaycliche + (it + 1)).clearTime().time
                         ]
                     }
                 }
             }
-        }
-        // Insert missing days because we need them for idealTime that needs every point because it is not linear anymore
-        if (Sprint.STATE_INPROGRESS == sprint.state) {
-            def nbDays = sprint.endDate - lastDaycliche
-            nbDays.times {
-                if ((DateUtils.isDateWeekend(lastDaycliche + (it + 1)) && !sprint.parentRelease.parentProject.preferences.hideWeekend) || !DateUtils.isDateWeekend(lastDaycliche + (it + 1))) {
-                    values << [
-                            remainingTime: null,
-                            timeSpent    : null,
-                            label        : (lastDaycliche + (it + 1)).clearTime().time
-                    ]
+            // Hiding weekends is hard on d3 timescale, here we work around that by creating every point of the ideal line
+            // As weekends days don't appear in values if the option is enabled, the line will decrease more slowly during weekends
+            if (!values.isEmpty() && sprint.initialRemainingTime) {
+                def unit = sprint.initialRemainingTime / (values.size() - 1)
+                values.eachWithIndex { value, index ->
+                    value.idealTime = sprint.initialRemainingTime - index * unit
                 }
+                values.last().idealTime = 0 // Fix floating point errors
             }
+            return values
         }
-        // Hiding weekends is hard on d3 timescale, here we work around that by creating every point of the ideal line
-        // As weekends days don't appear in values if the option is enabled, the line will decrease more slowly during weekends
-        if (!values.isEmpty() && sprint.initialRemainingTime) {
-            def unit = sprint.initialRemainingTime / (values.size() - 1)
-            values.eachWithIndex { value, index ->
-                value.idealTime = sprint.initialRemainingTime - index * unit
-            }
-            values.last().idealTime = 0 // Fix floating point errors
-        }
-        return values
     }
 
     def sprintBurnupTasksValues(Sprint sprint) {
-        def values = []
-        def lastDaycliche = sprint.inProgressDate
-        def date = (sprint.state == Sprint.STATE_DONE) ? sprint.doneDate : (sprint.state == Sprint.STATE_INPROGRESS) ? new Date() : sprint.endDate
-        clicheService.createOrUpdateDailyTasksCliche(sprint)
-        sprint.cliches?.sort { a, b -> a.datePrise <=> b.datePrise }?.eachWithIndex { cliche, index ->
-            if (cliche.datePrise <= date) {
-                def xmlRoot = new XmlSlurper().parseText(cliche.data)
-                if (xmlRoot) {
-                    lastDaycliche = cliche.datePrise
-                    if ((DateUtils.isDateWeekend(lastDaycliche) && !sprint.parentRelease.parentProject.preferences.hideWeekend) || !DateUtils.isDateWeekend(lastDaycliche)) {
-                        values << [
-                                tasksDone: xmlRoot."${Cliche.TASKS_DONE}".toInteger(),
-                                tasks    : xmlRoot."${Cliche.TOTAL_TASKS}".toInteger(),
-                                label    : lastDaycliche.clone().clearTime().time
-                        ]
+        return clicheService.sprintSeries('sprintBurnupTasks', sprint) {
+            def values = []
+            def lastDaycliche = sprint.inProgressDate
+            def date = (sprint.state == Sprint.STATE_DONE) ? sprint.doneDate : (sprint.state == Sprint.STATE_INPROGRESS) ? new Date() : sprint.endDate
+            sprint.cliches?.sort { a, b -> a.datePrise <=> b.datePrise }?.eachWithIndex { cliche, index ->
+                if (cliche.datePrise <= date) {
+                    def clicheValues = cliche.values
+                    if (clicheValues) {
+                        lastDaycliche = cliche.datePrise
+                        if ((DateUtils.isDateWeekend(lastDaycliche) && !sprint.parentRelease.parentProject.preferences.hideWeekend) || !DateUtils.isDateWeekend(lastDaycliche)) {
+                            values << [
+                                    tasksDone: clicheValues[Cliche.TASKS_DONE] as Integer,
+                                    tasks    : clicheValues[Cliche.TOTAL_TASKS] as Integer,
+                                    label    : lastDaycliche.clone().clearTime().time
+                            ]
+                        }
                     }
                 }
             }
+            return values
         }
-        return values
     }
 
     def sprintStoriesValues(Sprint sprint) {
-        def values = []
-        def lastDaycliche = sprint.inProgressDate
-        def date = (sprint.state == Sprint.STATE_DONE) ? sprint.doneDate : (sprint.state == Sprint.STATE_INPROGRESS) ? new Date() : sprint.endDate
-        clicheService.createOrUpdateDailyTasksCliche(sprint)
-        sprint.cliches?.sort { a, b -> a.datePrise <=> b.datePrise }?.eachWithIndex { cliche, index ->
-            if (cliche.datePrise <= date) {
-                def xmlRoot = new XmlSlurper().parseText(cliche.data)
-                if (xmlRoot) {
-                    lastDaycliche = cliche.datePrise
-                    if ((DateUtils.isDateWeekend(lastDaycliche) && !sprint.parentRelease.parentProject.preferences.hideWeekend) || !DateUtils.isDateWeekend(lastDaycliche)) {
-                        def pointsDone = xmlRoot."${Cliche.STORIES_POINTS_DONE}"?.toString()?.isBigDecimal() ? xmlRoot."${Cliche.STORIES_POINTS_DONE}".toBigDecimal() : 0
-                        def totalPoints = xmlRoot."${Cliche.STORIES_TOTAL_POINTS}"?.toString()?.isBigDecimal() ? xmlRoot."${Cliche.STORIES_TOTAL_POINTS}".toBigDecimal() : 0
-                        values << [
-                                storiesDone    : xmlRoot."${Cliche.STORIES_DONE}".toInteger(),
-                                stories        : xmlRoot."${Cliche.TOTAL_STORIES}".toInteger(),
-                                pointsDone     : pointsDone,
-                                totalPoints    : totalPoints,
-                                remainingPoints: totalPoints - pointsDone,
-                                label          : lastDaycliche.clone().clearTime().time
-                        ]
+        return clicheService.sprintSeries('sprintStories', sprint) {
+            def values = []
+            def lastDaycliche = sprint.inProgressDate
+            def date = (sprint.state == Sprint.STATE_DONE) ? sprint.doneDate : (sprint.state == Sprint.STATE_INPROGRESS) ? new Date() : sprint.endDate
+            sprint.cliches?.sort { a, b -> a.datePrise <=> b.datePrise }?.eachWithIndex { cliche, index ->
+                if (cliche.datePrise <= date) {
+                    def clicheValues = cliche.values
+                    if (clicheValues) {
+                        lastDaycliche = cliche.datePrise
+                        if ((DateUtils.isDateWeekend(lastDaycliche) && !sprint.parentRelease.parentProject.preferences.hideWeekend) || !DateUtils.isDateWeekend(lastDaycliche)) {
+                            def pointsDone = clicheValues[Cliche.STORIES_POINTS_DONE] instanceof Number ? clicheValues[Cliche.STORIES_POINTS_DONE] as BigDecimal : 0
+                            def totalPoints = clicheValues[Cliche.STORIES_TOTAL_POINTS] instanceof Number ? clicheValues[Cliche.STORIES_TOTAL_POINTS] as BigDecimal : 0
+                            values << [
+                                    storiesDone    : clicheValues[Cliche.STORIES_DONE] as Integer,
+                                    stories        : clicheValues[Cliche.TOTAL_STORIES] as Integer,
+                                    pointsDone     : pointsDone,
+                                    totalPoints    : totalPoints,
+                                    remainingPoints: totalPoints - pointsDone,
+                                    label          : lastDaycliche.clone().clearTime().time
+                            ]
+                        }
                     }
                 }
             }
+            return values
         }
-        return values
     }
 
     def copyRecurrentTasks(Sprint sprint) {
@@ -416,7 +419,7 @@ class SprintService extends IceScrumEventPublisher {
                 if (project) {
                     sprintXml.attachments.attachment.each { _attachmentXml ->
                         def uid = options.userUIDByImportedID?."${_attachmentXml.posterId.text().toInteger()}" ?: null
-                        User user = project.getUserByUidOrOwner(uid)
+                        User user = project.getUserByUidOrOwner(uid, options.usersByUid)
                         ApplicationSupport.importAttachment(sprint, user, options.path, _attachmentXml)
                     }
                     sprint.attachments_count = sprintXml.attachments.attachment.size() ?: 0
@@ -38,6 +38,7 @@ import org.icescrum.core.event.IceScrumEventPublisher
 import org.icescrum.core.event.IceScrumEventType
 import org.icescrum.core.support.ApplicationSupport
 import org.icescrum.core.utils.DateUtils
+import org.icescrum.core.utils.RankUtils
 import org.springframework.security.access.AccessDeniedException
 import org.springframework.security.access.prepost.PreAuthorize
 
@@ -399,51 +400,51 @@ class StoryService extends IceScrumEventPublisher {
         return plannedStories
     }
 
-    private void updateStoryRank(Story story, Integer newRank) {
-        def dirtyProperties = [rank: story.rank]
-        story.rank = newRank
-        story.save()
-        publishSynchronousEvent(IceScrumEventType.PARTIAL_UPDATE, story, dirtyProperties)
+    // Large shifts use set-based updates, one statement per distinct delta instead of one per story (see RankUtils)
+    private List<List> updateStoryRanks(Collection<Story> stories, Closure<Integer> newRank) {
+        return RankUtils.updateRanks(Story, stories, newRank)
+    }
+
+    // All the rank changes of a move are published as a single event, so they are pushed in a single message rather than one per shifted story
+    private void publishRanksShift(List<List> changes) {
+        if (changes) {
+            List<Story> shiftedStories = changes.collect { it[0] }.unique { it.id }
+            publishSynchronousEvent(IceScrumEventType.PARTIAL_UPDATE, shiftedStories.first(), [rank: changes.first()[1], shiftedStories: shiftedStories])
+        }
     }
 
     void setRank(Story story, Long rank) {
         def stories = story.sameBacklogStories
         rank = adjustRankAccordingToDependences(story, rank, stories)
-        stories.each { _story ->
-            if (_story.rank >= rank) {
-                updateStoryRank(_story, _story.rank + 1)
-            }
+        List<List> changes = updateStoryRanks(stories) { Story _story ->
+            _story.rank >= rank ? _story.rank + 1 : null
         }
         story.rank = rank
-        cleanWrongRanks(stories)
+        changes.addAll(cleanWrongRanks(stories))
+        publishRanksShift(changes)
     }
 
     void cleanRanks(stories) {
-        stories.eachWithIndex { story, index ->
-            def expectedRank = index + 1
-            if (story.rank != expectedRank) {
-                updateStoryRank(story, expectedRank)
-            }
-        }
+        int expectedRank = 0
+        publishRanksShift(updateStoryRanks(stories) { Story story ->
+            ++expectedRank // Called once per story, in order
+        })
     }
 
-    private void cleanWrongRanks(stories) {
-        stories.sort { it.rank }.eachWithIndex { story, index ->
-            def expectedRank = index + 1
-            if (story.rank != expectedRank) {
+    private List<List> cleanWrongRanks(stories) {
+        int expectedRank = 0
+        return updateStoryRanks(stories.sort { it.rank }) { Story story ->
+            if (story.rank != ++expectedRank) {
                 log.error("story ${story.uid} as rank ${story.rank} but should have ${expectedRank} fixing!!")
-                updateStoryRank(story, expectedRank)
             }
+            expectedRank
         }
     }
 
     void resetRank(Story story) {
-        def sameBacklogStories = story.sameBacklogStories
-        sameBacklogStories.each { _story ->
-            if (_story.rank > story.rank) {
-                updateStoryRank(_story, _story.rank - 1)
-            }
-        }
+        publishRanksShift(updateStoryRanks(story.sameBacklogStories) { Story _story ->
+            _story.rank > story.rank ? _story.rank - 1 : null
+        })
     }
 
     private void updateRank(Story story, Long rank, Integer newState = null) {
@@ -463,13 +464,12 @@ class StoryService extends IceScrumEventPublisher {
         }
         Range affectedRange = story.rank..rank
         int delta = affectedRange.isReverse() ? 1 : -1
-        stories.each { _story ->
-            if (_story.id != story.id && _story.rank in affectedRange) {
-                updateStoryRank(_story, _story.rank + delta)
-            }
+        List<List> changes = updateStoryRanks(stories) { Story _story ->
+            _story.id != story.id && _story.rank in affectedRange ? _story.rank + delta : null
         }
         story.rank = rank
-        cleanWrongRanks(stories)
+        changes.addAll(cleanWrongRanks(stories))
+        publishRanksShift(changes)
     }
 
     void shiftRankInList(Story story, List<Story> stories, Integer newIndex) {
@@ -478,14 +478,18 @@ class StoryService extends IceScrumEventPublisher {
         def oldIndex = stories.indexOf(story)
         stories.remove(oldIndex)
         stories.add(newIndex, story)
+        List<List> changes = []
         (oldIndex..newIndex).each { index ->
             def newRank = ranks[index]
             def _story = stories[index]
             if (newRank != adjustRankAccordingToDependences(_story, newRank, _story.sameBacklogStories)) {
                 throw new BusinessException(code: 'is.story.error.shift.rank.has.dependences', args: [_story.name])
             }
-            updateStoryRank(_story, newRank) // NO REAL UPDATE EVENT FOR THE CURRENT STORY...
+            changes << [_story, _story.rank]
+            _story.rank = newRank
+            _story.save()
         }
+        publishRanksShift(changes) // NO REAL UPDATE EVENT FOR THE CURRENT STORY...
     }
 
     @PreAuthorize('productOwner(#story.backlog) and !archivedProject(#story.backlog)')
@@ -835,7 +839,7 @@ class StoryService extends IceScrumEventPublisher {
         Project project = options.project
         Sprint sprint = options.sprint
         Story.withTransaction(readOnly: !options.save) { transaction ->
-            User creator = project ? project.getUserByUidOrOwner(storyXml.creator.@uid.text()) : null
+            User creator = project ? project.getUserByUidOrOwner(storyXml.creator.@uid.text(), options.usersByUid) : null
             def story = new Story(
                     type: storyXml.type.text().toInteger(),
                     frozenDate: DateUtils.parseDateFromExport(storyXml.frozenDate.text()),
@@ -862,25 +866,40 @@ class StoryService extends IceScrumEventPublisher {
             // References on other objects
             if (project) {
                 if (!storyXml.feature.@uid.isEmpty()) {
-                    Feature feature = project.features.find {
-                        it.uid == storyXml.feature.@uid.text().toInteger()
-                    }
+                    int featureUid = storyXml.feature.@uid.text().toInteger()
+                    Feature feature = options.featuresByUid != null ? options.featuresByUid[featureUid] : project.features.find { it.uid == featureUid }
                     if (feature) {
-                        feature.addToStories(story)
+                        if (options.clearSession) {
+                            story.feature = feature // Only the owning side, so the stories of the feature aren't loaded again after each batch
+                        } else {
+                            feature.addToStories(story)
+                        }
                     }
                 }
                 Closure importActor = { actorXml ->
                     if (!actorXml.@uid.isEmpty()) {
-                        Actor actor = project.actors.find { it.uid == actorXml.@uid.text().toInteger() }
+                        int actorUid = actorXml.@uid.text().toInteger()
+                        Actor actor = options.actorsByUid != null ? options.actorsByUid[actorUid] : project.actors.find { it.uid == actorUid }
                         if (actor) {
-                            actor.addToStories(story)
+                            if (options.clearSession) {
+                                if (story.actors == null) {
+                                    story.actors = [] as Set
+                                }
+                                story.actors << actor
+                            } else {
+                                actor.addToStories(story)
+                            }
                         }
                     }
                 }
                 storyXml?.actors?.actor?.each(importActor)
                 importActor(storyXml.actor) // Handle legacy exports with one actor per story
                 story.creator = creator
-                project.addToStories(story)
+                if (options.clearSession) {
+                    story.backlog = project
+                } else {
+                    project.addToStories(story)
+                }
             }
             if (sprint) {
                 sprint.addToStories(story)
@@ -919,13 +938,13 @@ class StoryService extends IceScrumEventPublisher {
                 if (project) {
                     storyXml.comments.comment.each { _commentXml ->
                         def uid = options.userUIDByImportedID?."${_commentXml.posterId.text().toInteger()}" ?: null
-                        User user = project.getUserByUidOrOwner(uid)
+                        User user = project.getUserByUidOrOwner(uid, options.usersByUid)
                         commentService.importComment(story, user, _commentXml.body.text(), DateUtils.parseDateFromExport(_commentXml.dateCreated.text()))
                     }
                     story.comments_count = storyXml.comments.comment.size() ?: 0
                     storyXml.attachments.attachment.each { _attachmentXml ->
                         def uid = options.userUIDByImportedID?."${_attachmentXml.posterId.text().toInteger()}" ?: null
-                        User user = project.getUserByUidOrOwner(uid)
+                        User user = project.getUserByUidOrOwner(uid, options.usersByUid)
                         ApplicationSupport.importAttachment(story, user, options.path, _attachmentXml)
                     }
                     story.attachments_count = storyXml.attachments.attachment.size() ?: 0
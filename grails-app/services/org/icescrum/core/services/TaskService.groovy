@@ -34,6 +34,7 @@ import org.icescrum.core.event.IceScrumEventPublisher
 import org.icescrum.core.event.IceScrumEventType
 import org.icescrum.core.support.ApplicationSupport
 import org.icescrum.core.utils.DateUtils
+import org.icescrum.core.utils.RankUtils
 import org.springframework.context.ApplicationContext
 import org.springframework.security.access.prepost.PreAuthorize
 
@@ -316,21 +317,17 @@ class TaskService extends IceScrumEventPublisher {
 
     private void resetRank(Task task) {
         def container = task.getPersistentValue('parentStory') ?: task.backlog
-        container.tasks.findAll {
-            it.rank > task.rank && it.type == task.getPersistentValue('type') && it.state == task.getPersistentValue('state')
-        }.each {
-            it.rank--
-            it.save()
+        def type = task.getPersistentValue('type')
+        def state = task.getPersistentValue('state')
+        RankUtils.updateRanks(Task, container.tasks) { Task _task ->
+            _task.rank > task.rank && _task.type == type && _task.state == state ? _task.rank - 1 : null
         }
     }
 
     private void setRank(Task task, int newRank) {
         def container = task.parentStory ?: task.backlog
-        container.tasks.findAll {
-            it.rank >= newRank && it.type == task.type && it.state == task.state
-        }.each {
-            it.rank++
-            it.save()
+        RankUtils.updateRanks(Task, container.tasks) { Task _task ->
+            _task.rank >= newRank && _task.type == task.type && _task.state == task.state ? _task.rank + 1 : null
         }
         task.rank = newRank
     }
@@ -339,11 +336,8 @@ class TaskService extends IceScrumEventPublisher {
         def container = task.parentStory ?: task.backlog
         Range affectedRange = task.rank..newRank
         int delta = affectedRange.isReverse() ? 1 : -1
-        container.tasks.findAll {
-            it != task && it.rank in affectedRange && it.type == task.type && it.state == task.state
-        }.each {
-            it.rank += delta
-            it.save()
+        RankUtils.updateRanks(Task, container.tasks) { Task _task ->
+            _task != task && _task.rank in affectedRange && _task.type == task.type && _task.state == task.state ? _task.rank + delta : null
         }
         task.rank = newRank
     }
@@ -353,8 +347,8 @@ class TaskService extends IceScrumEventPublisher {
         Sprint sprint = options.sprint
         Story story = options.story
         Task.withTransaction(readOnly: options.save) { transaction ->
-            User creator = project ? project.getUserByUidOrOwner(taskXml.creator.@uid.text()) : null
-            User responsible = project && !taskXml.responsible.@uid.isEmpty() ? project.getUserByUidOrOwner(taskXml.responsible.@uid.text()) : null
+            User creator = project ? project.getUserByUidOrOwner(taskXml.creator.@uid.text(), options.usersByUid) : null
+            User responsible = project && !taskXml.responsible.@uid.isEmpty() ? project.getUserByUidOrOwner(taskXml.responsible.@uid.text(), options.usersByUid) : null
             def sprintIdFromXml = !taskXml.sprint.@id.isEmpty() ? taskXml.sprint.@id.text().toInteger() : null
             def taskUid = taskXml.@uid.text().toInteger()
             if (sprintIdFromXml) {
@@ -382,7 +376,11 @@ class TaskService extends IceScrumEventPublisher {
                     color: taskXml.color.text() != '#f9f157' ? taskXml.color.text() : '#ffcc01') // convert old yellow v7.39- in new yellow v7.40+
             if (project) {
                 task.creator = creator
-                project.addToTasks(task)
+                if (options.clearSession) {
+                    task.parentProject = project // Only the owning side, so the tasks of the project aren't loaded again after each batch
+                } else {
+                    project.addToTasks(task)
+                }
                 if (responsible) {
                     task.responsible = responsible
                 }
@@ -411,13 +409,13 @@ class TaskService extends IceScrumEventPublisher {
                 if (project) {
                     taskXml.comments.comment.each { _commentXml ->
                         def uid = options.userUIDByImportedID?."${_commentXml.posterId.text().toInteger()}" ?: null
-                        User user = project.getUserByUidOrOwner(uid)
+                        User user = project.getUserByUidOrOwner(uid, options.usersByUid)
                         commentService.importComment(task, user, _commentXml.body.text(), DateUtils.parseDateFromExport(_commentXml.dateCreated.text()))
                     }
                     task.comments_count = taskXml.comments.comment.size() ?: 0
                     taskXml.attachments.attachment.each { _attachmentXml ->
                         def uid = options.userUIDByImportedID?."${_attachmentXml.posterId.text().toInteger()}" ?: null
-                        User user = project.getUserByUidOrOwner(uid)
+                        User user = project.getUserByUidOrOwner(uid, options.usersByUid)
                         ApplicationSupport.importAttachment(task, user, options.path, _attachmentXml)
                     }
                     task.attachments_count = taskXml.attachments.attachment.size() ?: 0
@@ -0,0 +1,302 @@
+/*
+ * Copyright (c) 2020 Kagilum SAS.
+ *
+ * This file is part of iceScrum.
+ *
+ * iceScrum is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * iceScrum is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with iceScrum.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.icescrum.core.services
+
+import grails.transaction.NotTransactional
+import grails.transaction.Transactional
+import org.icescrum.core.domain.*
+import org.icescrum.core.event.IceScrumEventType
+import org.icescrum.core.event.IceScrumListener
+import org.springframework.beans.factory.DisposableBean
+import org.springframework.security.acls.domain.BasePermission
+import org.springframework.transaction.support.TransactionSynchronizationAdapter
+import org.springframework.transaction.support.TransactionSynchronizationManager
+
+/**
+ * Maintains the WorkspaceMembership index from the ACL and team membership tables.
+ * Memberships of a workspace are recomputed as a whole from the source tables each time the workspace members or permissions change
+ * (see SecurityService), and a periodic job, run by a single node, verifies (and repairs) the whole index to catch changes made without events.
+ */
+@Transactional
+class WorkspaceMembershipService implements DisposableBean {
+
+    private static final int BATCH_SIZE = 100
+    private static final String PENDING_REFRESHES = WorkspaceMembershipService.name + '.pendingRefreshes'
+
+    def grailsApplication
+    def activityInboxService
+
+    private Timer verifyTimer
+
+    @IceScrumListener(domain = 'project')
+    void projectChanged(IceScrumEventType type, Project project, Map dirtyProperties) {
+        if (type == IceScrumEventType.CREATE || type == IceScrumEventType.UPDATE && dirtyProperties?.containsKey('membersByRole')) {
+            refresh(WorkspaceType.PROJECT, project.id)
+        } else if (type == IceScrumEventType.DELETE) {
+            removeWorkspace(WorkspaceType.PROJECT, dirtyProperties?.id ?: project.id)
+        }
+    }
+
+    @IceScrumListener(domain = 'portfolio')
+    void portfolioChanged(IceScrumEventType type, Portfolio portfolio, Map dirtyProperties) {
+        if (type in [IceScrumEventType.CREATE, IceScrumEventType.UPDATE]) {
+            refresh(WorkspaceType.PORTFOLIO, portfolio.id)
+        } else if (type == IceScrumEventType.DELETE) {
+            removeWorkspace(WorkspaceType.PORTFOLIO, dirtyProperties?.id ?: portfolio.id)
+        }
+    }
+
+    @IceScrumListener(domain = 'team')
+    void teamChanged(IceScrumEventType type, Team team, Map dirtyProperties) {
+        if (type in [IceScrumEventType.CREATE, IceScrumEventType.UPDATE]) {
+            team.projects?.each { Project project ->
+                refresh(WorkspaceType.PROJECT, project.id)
+            }
+        }
+    }
+
+    @IceScrumListener(domain = 'user', eventType = IceScrumEventType.DELETE)
+    void userDeleted(User user, Map dirtyProperties) {
+        WorkspaceMembership.executeUpdate("DELETE FROM WorkspaceMembership wm WHERE wm.userId = :userId", [userId: user.id])
+    }
+
+    void refresh(String workspaceType, Long workspaceId) {
+        Map diff = diff(workspaceType, workspaceId)
+        apply(workspaceType, workspaceId, diff)
+    }
+
+    // Refreshed once, just before the commit, whatever the number of permissions changed for the workspace in the transaction
+    void refreshBeforeCommit(String workspaceType, Long workspaceId) {
+        def enable = grailsApplication.config.icescrum.workspaceMembership.enable
+        if (!workspaceId || !(enable instanceof Boolean ? enable : true)) {
+            return
+        }
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            refresh(workspaceType, workspaceId)
+            return
+        }
+        Set<List> pending = (Set<List>) TransactionSynchronizationManager.getResource(PENDING_REFRESHES)
+        if (pending == null) {
+            pending = new LinkedHashSet<List>()
+            TransactionSynchronizationManager.bindResource(PENDING_REFRESHES, pending)
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                void beforeCommit(boolean readOnly) {
+                    pending.each { List workspace ->
+                        refresh((String) workspace[0], (Long) workspace[1])
+                    }
+                    WorkspaceMembership.withSession { session ->
+                        session.flush()
+                    }
+                }
+
+                @Override
+                void afterCompletion(int status) {
+                    TransactionSynchronizationManager.unbindResourceIfPossible(PENDING_REFRESHES)
+                }
+            })
+        }
+        pending << [workspaceType, workspaceId]
+    }
+
+    void removeWorkspace(String workspaceType, Long workspaceId) {
+        WorkspaceMembership.executeUpdate("DELETE FROM WorkspaceMembership wm WHERE wm.workspaceType = :workspaceType AND wm.workspaceId = :workspaceId", [workspaceType: workspaceType, workspaceId: workspaceId])
+    }
+
+    // Each batch of workspaces is committed on its own
+    @NotTransactional
+    Map verify(boolean repair) {
+        def report = [workspaces: 0, outdated: 0, missing: 0, extra: 0, orphans: 0, repaired: repair]
+        def workspaceIdsByType = WorkspaceMembership.withNewTransaction {
+            [
+                    (WorkspaceType.PROJECT)  : Project.executeQuery("SELECT p.id FROM Project p"),
+                    (WorkspaceType.PORTFOLIO): Portfolio.executeQuery("SELECT p.id FROM Portfolio p")
+            ]
+        }
+        workspaceIdsByType.each { String workspaceType, List<Long> workspaceIds ->
+            workspaceIds.collate(BATCH_SIZE).each { List<Long> batch ->
+                WorkspaceMembership.withNewTransaction {
+                    batch.each { Long workspaceId ->
+                        Map diff = diff(workspaceType, workspaceId)
+                        report.workspaces++
+                        if (diff.missing || diff.extra) {
+                            report.outdated++
+                            report.missing += diff.missing.size()
+                            report.extra += diff.extra.size()
+                            if (repair) {
+                                apply(workspaceType, workspaceId, diff)
+                            }
+                        }
+                    }
+                }
+            }
+            WorkspaceMembership.withNewTransaction {
+                def indexedIds = WorkspaceMembership.executeQuery("SELECT DISTINCT wm.workspaceId FROM WorkspaceMembership wm WHERE wm.workspaceType = :workspaceType", [workspaceType: workspaceType])
+                def orphanIds = indexedIds - workspaceIds
+                report.orphans += orphanIds.size()
+                if (repair) {
+                    orphanIds.each { Long workspaceId ->
+                        removeWorkspace(workspaceType, workspaceId)
+                    }
+                }
+            }
+        }
+        if (log.infoEnabled) {
+            log.info("Workspace membership index verified: $report")
+        }
+        return report
+    }
+
+    Map rebuild() {
+        return verify(true)
+    }
+
+    void start() {
+        def config = grailsApplication.config.icescrum.workspaceMembership
+        if (!(config.enable instanceof Boolean ? config.enable : true)) {
+            return
+        }
+        if (!WorkspaceMembership.count() && Project.count()) { // First start with the index, build it before it is queried (unless another node is building it)
+            ClusterJob.runLocked('workspaceMembership.rebuild', 3600000L) {
+                rebuild()
+            }
+        }
+        long interval = ((config.verify.interval ?: 1440) as long) * 60000L
+        verifyTimer = new Timer('icescrum-membership-verify', true)
+        verifyTimer.scheduleAtFixedRate({
+            try {
+                // The lock is kept for most of the interval so the index is verified once per interval whatever the number of nodes
+                ClusterJob.runLocked('workspaceMembership.verify', (interval * 9).intdiv(10), false) {
+                    Map report = verify(true)
+                    if ((report.outdated || report.orphans) && log.warnEnabled) {
+                        log.warn("Workspace membership index was out of date and has been repaired: $report")
+                    }
+                }
+            } catch (Exception e) {
+                log.error("Error while verifying the workspace membership index", e)
+            }
+        } as TimerTask, interval, interval)
+    }
+
+    @Override
+    void destroy() {
+        verifyTimer?.cancel()
+    }
+
+    private Map diff(String workspaceType, Long workspaceId) {
+        Set<String> expected = computeMemberships(workspaceType, workspaceId).collect { it.join(':') } as Set
+        Map<String, WorkspaceMembership> existing = [:]
+        List<WorkspaceMembership> extra = []
+        WorkspaceMembership.findAllByWorkspaceTypeAndWorkspaceId(workspaceType, workspaceId).each { WorkspaceMembership membership ->
+            String key = "$membership.userId:$membership.role".toString()
+            if (existing.containsKey(key) || !expected.contains(key)) { // Duplicates (from before the unique key) are extra too
+                extra << membership
+            } else {
+                existing[key] = membership
+            }
+        }
+        return [
+                missing: expected.findAll { !existing.containsKey(it) },
+                extra  : extra
+        ]
+    }
+
+    private void apply(String workspaceType, Long workspaceId, Map diff) {
+        diff.extra.each { WorkspaceMembership membership ->
+            membership.delete()
+        }
+        diff.missing.each { String key ->
+            def (userId, role) = key.split(':')
+            new WorkspaceMembership(userId: userId.toLong(), workspaceType: workspaceType, workspaceId: workspaceId, role: role).save()
+        }
+        if (diff.extra && workspaceType == WorkspaceType.PROJECT) {
+            WorkspaceMembership.withSession { session ->
+                session.flush()
+            }
+            activityInboxService.removeFormerMembers(workspaceId)
+        }
+    }
+
+    // Returns the [userId, role] pairs of a workspace computed from the source tables
+    private Set<List> computeMemberships(String workspaceType, Long workspaceId) {
+        def rolesByUsername = [:].withDefault { [] as Set }
+        def memberships = [] as Set
+        if (workspaceType == WorkspaceType.PROJECT) {
+            findOwners(Project, workspaceId).each { String username ->
+                rolesByUsername[username] << WorkspaceMembership.OWNER
+            }
+            findPermissions(Project, workspaceId).each { row ->
+                def role = WorkspaceMembership.getProjectRole(row[1])
+                if (role) {
+                    rolesByUsername[row[0]] << role
+                }
+            }
+            Project.executeQuery("""SELECT m.id
+                                    FROM Project p
+                                    INNER JOIN p.teams t
+                                    INNER JOIN t.members m
+                                    WHERE p.id = :projectId""", [projectId: workspaceId]).each { Long userId ->
+                memberships << [userId, WorkspaceMembership.TEAM_MEMBER]
+            }
+            Project.executeQuery("""SELECT ae.sid.sid
+                                    FROM grails.plugin.springsecurity.acl.AclEntry ae,
+                                         Project p
+                                    INNER JOIN p.teams t
+                                    WHERE p.id = :projectId
+                                    AND ae.aclObjectIdentity.aclClass.className = :className
+                                    AND ae.aclObjectIdentity.objectId = t.id
+                                    AND ae.sid.principal = true
+                                    AND ae.mask = :mask""", [projectId: workspaceId, className: Team.name, mask: BasePermission.WRITE.mask]).each { String username ->
+                rolesByUsername[username] << WorkspaceMembership.SCRUM_MASTER
+            }
+        } else if (workspaceType == WorkspaceType.PORTFOLIO) {
+            findPermissions(Portfolio, workspaceId).each { row ->
+                def role = WorkspaceMembership.getPortfolioRole(row[1])
+                if (role) {
+                    rolesByUsername[row[0]] << role
+                }
+            }
+        }
+        if (rolesByUsername) {
+            User.executeQuery("SELECT u.username, u.id FROM User u WHERE u.username IN (:usernames)", [usernames: rolesByUsername.keySet().toList()]).each { row ->
+                rolesByUsername[row[0]].each { String role ->
+                    memberships << [row[1], role]
+                }
+            }
+        }
+        return memberships
+    }
+
+    private static List<String> findOwners(Class domainClass, Long id) {
+        return Project.executeQuery("""SELECT ai.owner.sid
+                                       FROM grails.plugin.springsecurity.acl.AclObjectIdentity ai
+                                       WHERE ai.aclClass.className = :className
+                                       AND ai.objectId = :id
+                                       AND ai.owner.principal = true""", [className: domainClass.name, id: id])
+    }
+
+    private static List findPermissions(Class domainClass, Long id) {
+        return Project.executeQuery("""SELECT ae.sid.sid, ae.mask
+                                       FROM grails.plugin.springsecurity.acl.AclEntry ae
+                                       WHERE ae.aclObjectIdentity.aclClass.className = :className
+                                       AND ae.aclObjectIdentity.objectId = :id
+                                       AND ae.sid.principal = true""", [className: domainClass.name, id: id])
+    }
+}
@@ -1,7 +1,15 @@
 package org.icescrum.atmosphere
 
+import java.util.concurrent.ConcurrentHashMap
+
 class AtmosphereUser {
     Long id
     String username
-    AtmosphereUserConnection connection
+    AtmosphereUserConnection connection // Connection that created this user, null for users of a broadcaster presence registry
+    final ConcurrentHashMap<String, AtmosphereUserConnection> connectionsByUuid = new ConcurrentHashMap<String, AtmosphereUserConnection>()
+    boolean discarded = false // Set under the user lock by IceScrumBroadcaster when its last connection is removed
+
+    Collection<AtmosphereUserConnection> getConnections() {
+        return connection && connectionsByUuid.isEmpty() ? [connection] : connectionsByUuid.values()
+    }
 }
@@ -21,18 +21,21 @@
  */
 package org.icescrum.atmosphere
 
-import grails.converters.JSON
 import grails.util.Holders
 import org.apache.commons.logging.LogFactory
-import org.atmosphere.cpr.AtmosphereResource
 import org.atmosphere.cpr.AtmosphereResourceEvent
 import org.atmosphere.cpr.AtmosphereResourceEventListener
-import org.atmosphere.cpr.Broadcaster
 import org.icescrum.core.services.PushService
 import org.icescrum.core.support.ApplicationSupport
 import org.springframework.security.core.context.SecurityContext
 import org.springframework.security.web.context.HttpSessionSecurityContextRepository
 
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.TimeUnit
+
 class IceScrumAtmosphereEventListener implements AtmosphereResourceEventListener {
 
     private static final log = LogFactory.getLog(this)
@@ -40,6 +43,13 @@ class IceScrumAtmosphereEventListener implements AtmosphereResourceEventListener
     public static final GLOBAL_CONTEXT = '/stream/app/*'
     public static final GLOBAL_CONTEXT_NO_STAR = '/stream/app/'
 
+    private static final ConcurrentHashMap<String, Boolean> pendingUsersInWorkspaceUpdates = new ConcurrentHashMap<String, Boolean>()
+    private static final ScheduledExecutorService usersInWorkspaceExecutor = Executors.newSingleThreadScheduledExecutor({ Runnable runnable ->
+        Thread thread = new Thread(runnable, 'icescrum-users-online')
+        thread.daemon = true
+        return thread
+    } as ThreadFactory)
+
     def atmosphereMeteor = Holders.applicationContext.getBean("atmosphereMeteor")
 
     @Override
@@ -50,6 +60,9 @@ class IceScrumAtmosphereEventListener implements AtmosphereResourceEventListener
         def request = event.resource.request
         AtmosphereUser user = createAtmosphereUser(event.resource)
         request.setAttribute(USER_CONTEXT, user)
+        if (user.id != null) {
+            IceScrumResourceRegistry.register(user.username, event.resource)
+        }
         String[] decodedPath = request.pathInfo ? request.pathInfo.split("/") : []
         if (atmosphereMeteor.broadcasterFactory && decodedPath.length > 0) {
             def channel = "/stream/app/" + decodedPath[decodedPath.length - 1]
@@ -59,7 +72,7 @@ class IceScrumAtmosphereEventListener implements AtmosphereResourceEventListener
         if (ApplicationSupport.betaFeatureEnabled("usersOnline")) {
             event.resource.broadcasters().each {
                 if (it instanceof IceScrumBroadcaster && it.addUser(user) && it.getID() != GLOBAL_CONTEXT) {
-                    updateUsersInWorkspace(it, event.resource)
+                    scheduleUsersInWorkspaceUpdate((IceScrumBroadcaster) it)
                 }
             }
         }
@@ -68,6 +81,7 @@ class IceScrumAtmosphereEventListener implements AtmosphereResourceEventListener
     @Override
     void onDisconnect(AtmosphereResourceEvent event) {
         if (event.resource) {
+            IceScrumResourceRegistry.unregister(event.resource)
             AtmosphereUser user = (AtmosphereUser) event.resource.request.getAttribute(USER_CONTEXT) ?: null
             if (log.isDebugEnabled()) {
                 log.debug("user ${user?.username} with UUID ${event.resource.uuid()} disconnected")
@@ -75,7 +89,7 @@ class IceScrumAtmosphereEventListener implements AtmosphereResourceEventListener
             if (ApplicationSupport.betaFeatureEnabled("usersOnline")) {
                 event.resource.broadcasters().each {
                     if (it instanceof IceScrumBroadcaster && it.removeUser(user) && it.getID() != GLOBAL_CONTEXT) {
-                        updateUsersInWorkspace(it, event.resource)
+                        scheduleUsersInWorkspaceUpdate((IceScrumBroadcaster) it)
                     }
                 }
             }
@@ -116,6 +130,7 @@ class IceScrumAtmosphereEventListener implements AtmosphereResourceEventListener
 
     @Override
     void onClose(AtmosphereResourceEvent event) {
+        IceScrumResourceRegistry.unregister(event.resource)
         if (log.isDebugEnabled()) {
             AtmosphereUser user = (AtmosphereUser) event.resource.request.getAttribute(USER_CONTEXT) ?: null
             log.debug("Close connection for user ${user?.username} with UUID ${event.resource.uuid()}")
@@ -133,13 +148,28 @@ class IceScrumAtmosphereEventListener implements AtmosphereResourceEventListener
         return user
     }
 
-    private void updateUsersInWorkspace(Broadcaster _broadcaster, AtmosphereResource resource) {
-        IceScrumBroadcaster broadcaster = (IceScrumBroadcaster) _broadcaster
+    // Presence changes are debounced: a burst of connections / disconnections results in a single update per workspace
+    private static void scheduleUsersInWorkspaceUpdate(IceScrumBroadcaster broadcaster) {
+        if (pendingUsersInWorkspaceUpdates.putIfAbsent(broadcaster.getID(), Boolean.TRUE) == null) {
+            long delay = (Holders.grailsApplication.config.icescrum.push.usersOnline.debounce ?: 2000) as long
+            usersInWorkspaceExecutor.schedule({
+                pendingUsersInWorkspaceUpdates.remove(broadcaster.getID())
+                try {
+                    if (!broadcaster.isDestroyed()) {
+                        updateUsersInWorkspace(broadcaster)
+                    }
+                } catch (Exception e) {
+                    log.error("Error while updating users online on ${broadcaster.getID()}", e)
+                }
+            } as Runnable, delay, TimeUnit.MILLISECONDS)
+        }
+    }
+
+    private static void updateUsersInWorkspace(IceScrumBroadcaster broadcaster) {
         def workspace = broadcaster.getID() - GLOBAL_CONTEXT_NO_STAR
         workspace = workspace.split('-')
         workspace = [id: workspace[1].toLong(), type: workspace[0]]
-        def message = PushService.buildMessage(workspace.type, "onlineMembers", ["messageId": "online-users-${workspace.type}-${workspace.id}", "${workspace.type}": ["id": workspace.id, "onlineMembers": broadcaster.users]])
-        Set<AtmosphereResource> resources = resource ? broadcaster.atmosphereResources - resource : broadcaster.atmosphereResources
-        broadcaster.broadcast(message as JSON, resources)
+        def message = PushService.encodeMessage(workspace.type, "onlineMembers", ["messageId": "online-users-${workspace.type}-${workspace.id}", "${workspace.type}": ["id": workspace.id, "onlineMembers": broadcaster.users]])
+        broadcaster.broadcast(message.payload)
     }
 }
@@ -7,7 +7,8 @@ import org.icescrum.core.domain.Project
 import org.slf4j.Logger
 import org.slf4j.LoggerFactory
 
-import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
 
 class IceScrumBroadcaster extends DefaultBroadcaster {
 
@@ -16,13 +17,13 @@ class IceScrumBroadcaster extends DefaultBroadcaster {
     String pkey
     String pname
 
-    int maxUsers = 0
-    Date maxUsersDate = new Date()
-    final ConcurrentLinkedQueue<AtmosphereUser> users = new ConcurrentLinkedQueue<AtmosphereUser>()
+    // Presence registry: username -> user holding its connections by uuid
+    final ConcurrentHashMap<String, AtmosphereUser> usersByUsername = new ConcurrentHashMap<String, AtmosphereUser>()
 
-
-    int maxConnections = 0
-    Date maxConnectionsDate = new Date()
+    private final AtomicInteger maxUsersCounter = new AtomicInteger()
+    private final AtomicInteger maxConnectionsCounter = new AtomicInteger()
+    volatile Date maxUsersDate = new Date()
+    volatile Date maxConnectionsDate = new Date()
 
     public IceScrumBroadcaster() {}
 
@@ -49,58 +50,64 @@ class IceScrumBroadcaster extends DefaultBroadcaster {
         }
     }
 
+    Collection<AtmosphereUser> getUsers() {
+        return usersByUsername.values()
+    }
+
     int getLiveUsers() {
-        return users.size()
+        return usersByUsername.size()
     }
 
     int getLiveConnections() {
         return resources.size()
     }
 
+    int getMaxUsers() {
+        return maxUsersCounter.get()
+    }
+
+    int getMaxConnections() {
+        return maxConnectionsCounter.get()
+    }
+
     boolean addUser(AtmosphereUser user) {
-        def added = false
-        AtmosphereUser existingUser = users.find { it.username == user.username } ?: null
-        if (!user.connections.isEmpty() && user.connections.first()) {
-            AtmosphereUserConnection connection = user.connections.first()
-            def existingConnection = existingUser?.connections?.find { it.uuid == connection.uuid }
-            if (existingUser) {
-                if (logger.debugEnabled) {
-                    logger.debug("[${name}][${user.username}] existing user")
-                }
-                if (!existingConnection) {
-                    existingUser.connections << connection
-                    added = true
-                    if (logger.debugEnabled) {
-                        logger.debug("[${name}][${user.username}] new connection")
-                    }
-                }
-            } else {
-                users << user
-                if (logger.debugEnabled) {
+        AtmosphereUserConnection connection = user.connection
+        if (!connection) {
+            return false
+        }
+        boolean added
+        AtmosphereUser existingUser
+        while (true) {
+            existingUser = usersByUsername.get(user.username)
+            if (existingUser == null) {
+                existingUser = new AtmosphereUser(id: user.id, username: user.username)
+                AtmosphereUser concurrentUser = usersByUsername.putIfAbsent(user.username, existingUser)
+                if (concurrentUser != null) {
+                    existingUser = concurrentUser
+                } else if (logger.debugEnabled) {
                     logger.debug("[${name}][${user.username}] adding user")
                 }
-                existingUser = user
-                added = true
             }
-            if (added) {
-                if (logger.debugEnabled) {
-                    logger.debug("[${name}][${existingUser.username}] adding uuid ${connection.uuid} with transport ${connection.transport}")
-                    logger.debug("[${name}][${existingUser.username}] ${existingUser.connections.size()} connections opened")
-                }
-                if (liveUsers > maxUsers) {
-                    maxUsers = liveUsers
-                    maxUsersDate = new Date()
-                }
-                if (liveConnections > maxConnections) {
-                    maxConnections = liveConnections
-                    maxConnectionsDate = new Date()
-                }
-            } else {
-                if (logger.debugEnabled) {
-                    logger.debug("[${name}][${existingUser.username}] existing uuid ${connection.uuid} with transport ${connection.transport}")
-                    logger.debug("[${name}][${existingUser.username}] ${existingUser.connections.size()} connections opened")
+            synchronized (existingUser) { // Connections are added and removed atomically per user, see removeUser
+                if (!existingUser.discarded) {
+                    added = existingUser.connectionsByUuid.putIfAbsent(connection.uuid, connection) == null
+                    break
                 }
             }
+            usersByUsername.remove(user.username, existingUser) // Discarded concurrently by removeUser: help removing it then retry
+        }
+        if (added) {
+            if (logger.debugEnabled) {
+                logger.debug("[${name}][${existingUser.username}] adding uuid ${connection.uuid} with transport ${connection.transport}")
+            }
+            if (updateMax(maxUsersCounter, liveUsers)) {
+                maxUsersDate = new Date()
+            }
+            if (updateMax(maxConnectionsCounter, liveConnections)) {
+                maxConnectionsDate = new Date()
+            }
+        } else if (logger.debugEnabled) {
+            logger.debug("[${name}][${existingUser.username}] existing uuid ${connection.uuid} with transport ${connection.transport}")
         }
         if (logger.debugEnabled) {
             logger.debug("[${name}] users connected: ${liveUsers} - connections: ${liveConnections}")
@@ -109,26 +116,31 @@ class IceScrumBroadcaster extends DefaultBroadcaster {
     }
 
     boolean removeUser(AtmosphereUser user) {
-        def removed = false
-        AtmosphereUser existingUser = users.find { it.username == user.username } ?: null
-        if (!user.connections.isEmpty() && user.connections.first() && existingUser) {
-            AtmosphereUserConnection connection = user.connections.first()
-            def existingConnection = existingUser.connections?.find { it.uuid == connection.uuid } ?: null
-            if (existingConnection) {
-                removed = existingUser.connections.remove(existingConnection)
-                if (logger.debugEnabled) {
-                    logger.debug("[${name}][${existingUser.username}] removing connection ${existingConnection.uuid} with transport ${existingConnection.transport}")
-                    logger.debug("[${name}][${existingUser.username}] ${existingUser.connections.size()} connections opened")
+        boolean removed = false
+        AtmosphereUser existingUser = user ? usersByUsername.get(user.username) : null
+        if (existingUser) {
+            AtmosphereUserConnection connection = user.connection
+            boolean discarded = false
+            synchronized (existingUser) { // Once it has no connection left the user is discarded for good, so addUser cannot add a connection to a removed user
+                if (!existingUser.discarded) {
+                    if (connection && existingUser.connectionsByUuid.remove(connection.uuid)) {
+                        removed = true
+                        if (logger.debugEnabled) {
+                            logger.debug("[${name}][${existingUser.username}] removing connection ${connection.uuid} with transport ${connection.transport}")
+                        }
+                    }
+                    if (existingUser.connectionsByUuid.isEmpty()) {
+                        existingUser.discarded = true
+                        discarded = true
+                    }
                 }
             }
-        }
-        if (existingUser) {
-            if (!existingUser.connections) {
+            if (discarded) {
+                usersByUsername.remove(existingUser.username, existingUser)
+                removed = true
                 if (logger.debugEnabled) {
                     logger.debug("[${name}][${existingUser.username}] removing user")
                 }
-                users.remove(existingUser)
-                removed = true
             }
         }
         if (logger.debugEnabled) {
@@ -136,4 +148,15 @@ class IceScrumBroadcaster extends DefaultBroadcaster {
         }
         return removed
     }
+
+    private static boolean updateMax(AtomicInteger max, int value) {
+        int currentMax = max.get()
+        while (value > currentMax) {
+            if (max.compareAndSet(currentMax, value)) {
+                return true
+            }
+            currentMax = max.get()
+        }
+        return false
+    }
 }
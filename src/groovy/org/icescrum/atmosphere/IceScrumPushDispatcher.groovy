@@ -0,0 +1,183 @@
+package org.icescrum.atmosphere
+
+import org.atmosphere.cpr.Broadcaster
+import org.slf4j.Logger
+import org.slf4j.LoggerFactory
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ScheduledThreadPoolExecutor
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Delivers push messages off the request thread.
+ * Each channel has a bounded queue, messages that share the same messageId within the coalescing window
+ * are merged (latest content wins but the position of the first one is kept) and the whole queue is
+ * flushed in a single delimited frame by a dedicated worker.
+ */
+class IceScrumPushDispatcher {
+
+    private static final Logger logger = LoggerFactory.getLogger(IceScrumPushDispatcher.class)
+
+    public static final String MESSAGE_DELIMITER = "#-|-#"
+
+    final int queueSize
+    final long coalescingWindow
+
+    private final def atmosphereMeteor
+    private final ScheduledThreadPoolExecutor executor
+    private final ConcurrentHashMap<String, ChannelQueue> queues = new ConcurrentHashMap<String, ChannelQueue>()
+
+    private final AtomicLong enqueued = new AtomicLong()
+    private final AtomicLong coalesced = new AtomicLong()
+    private final AtomicLong dropped = new AtomicLong()
+    private final AtomicLong delivered = new AtomicLong()
+    private final AtomicLong failed = new AtomicLong()
+    private final AtomicLong undelivered = new AtomicLong() // No broadcaster for the channel, i.e. nobody listening
+    private final AtomicLong frames = new AtomicLong()
+    private final AtomicLong totalLatency = new AtomicLong()
+    private final AtomicLong maxLatency = new AtomicLong()
+
+    IceScrumPushDispatcher(def atmosphereMeteor, int threads, int queueSize, long coalescingWindow) {
+        this.atmosphereMeteor = atmosphereMeteor
+        this.queueSize = queueSize
+        this.coalescingWindow = coalescingWindow
+        AtomicInteger threadNumber = new AtomicInteger()
+        this.executor = new ScheduledThreadPoolExecutor(threads, { Runnable runnable ->
+            Thread thread = new Thread(runnable, 'icescrum-push-' + threadNumber.incrementAndGet())
+            thread.daemon = true
+            return thread
+        } as ThreadFactory)
+        this.executor.removeOnCancelPolicy = true
+    }
+
+    boolean dispatch(String channel, String messageId, String payload) {
+        if (executor.isShutdown()) {
+            return false
+        }
+        ChannelQueue queue = queues.get(channel)
+        if (queue == null) {
+            queue = new ChannelQueue(channel)
+            ChannelQueue existingQueue = queues.putIfAbsent(channel, queue)
+            if (existingQueue != null) {
+                queue = existingQueue
+            }
+        }
+        boolean schedule = false
+        synchronized (queue) {
+            PendingMessage existingMessage = queue.pending.get(messageId)
+            if (existingMessage) { // Replace with new content and move it last: it may refer to objects pushed since the previous version
+                queue.pending.remove(messageId)
+                existingMessage.payload = payload
+                queue.pending.put(messageId, existingMessage)
+                coalesced.incrementAndGet()
+            } else if (queue.pending.size() >= queueSize) {
+                dropped.incrementAndGet()
+                if (logger.warnEnabled) {
+                    logger.warn("Push queue full on channel $channel ($queueSize messages), message $messageId dropped")
+                }
+                return false
+            } else {
+                queue.pending.put(messageId, new PendingMessage(payload: payload, enqueuedAt: System.nanoTime()))
+                enqueued.incrementAndGet()
+            }
+            if (!queue.scheduled) {
+                queue.scheduled = true
+                schedule = true
+            }
+        }
+        if (schedule) {
+            executor.schedule({ flush(queue) } as Runnable, coalescingWindow, TimeUnit.MILLISECONDS)
+        }
+        return true
+    }
+
+    int getQueueDepth() {
+        return (int) (queues.values().sum { ChannelQueue queue -> queue.size() } ?: 0)
+    }
+
+    Map getStats() {
+        long deliveredCount = delivered.get()
+        return [
+                channels         : queues.size(),
+                queueDepth       : queueDepth,
+                queueSize        : queueSize,
+                coalescingWindow : coalescingWindow,
+                enqueued         : enqueued.get(),
+                coalesced        : coalesced.get(),
+                dropped          : dropped.get(),
+                delivered        : deliveredCount,
+                failed           : failed.get(),
+                undelivered      : undelivered.get(),
+                frames           : frames.get(),
+                averageLatencyMs : deliveredCount ? (totalLatency.get() / (double) deliveredCount / 1000000d).round(2) : 0,
+                maxLatencyMs     : (maxLatency.get() / 1000000d).round(2)
+        ]
+    }
+
+    void shutdown() {
+        executor.shutdown()
+        queues.values().each { ChannelQueue queue ->
+            flush(queue)
+        }
+        queues.clear()
+    }
+
+    private void flush(ChannelQueue queue) {
+        List<PendingMessage> messages
+        synchronized (queue) {
+            messages = new ArrayList<PendingMessage>(queue.pending.values())
+            queue.pending.clear()
+            queue.scheduled = false
+        }
+        if (!messages) {
+            return
+        }
+        try {
+            Broadcaster broadcaster = atmosphereMeteor.broadcasterFactory?.lookup(IceScrumBroadcaster.class, queue.channel)
+            if (!broadcaster) {
+                undelivered.addAndGet(messages.size())
+                return
+            }
+            if (logger.debugEnabled) {
+                logger.debug("Broadcast ${messages.size()} messages on channel ${queue.channel}")
+            }
+            broadcaster.broadcast(messages*.payload.join(MESSAGE_DELIMITER))
+            frames.incrementAndGet()
+            long now = System.nanoTime()
+            messages.each { PendingMessage message ->
+                long latency = now - message.enqueuedAt
+                totalLatency.addAndGet(latency)
+                long currentMax = maxLatency.get()
+                while (latency > currentMax && !maxLatency.compareAndSet(currentMax, latency)) {
+                    currentMax = maxLatency.get()
+                }
+            }
+            delivered.addAndGet(messages.size())
+        } catch (Exception e) {
+            failed.addAndGet(messages.size())
+            logger.error("Error while broadcasting ${messages.size()} messages on channel ${queue.channel}", e)
+        }
+    }
+
+    private static class ChannelQueue {
+        final String channel
+        final LinkedHashMap<String, PendingMessage> pending = new LinkedHashMap<String, PendingMessage>()
+        boolean scheduled = false
+
+        ChannelQueue(String channel) {
+            this.channel = channel
+        }
+
+        synchronized int size() {
+            return pending.size()
+        }
+    }
+
+    private static class PendingMessage {
+        String payload
+        long enqueuedAt
+    }
+}
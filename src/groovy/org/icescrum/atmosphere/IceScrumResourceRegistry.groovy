@@ -0,0 +1,119 @@
+package org.icescrum.atmosphere
+
+import org.atmosphere.cpr.AtmosphereResource
+
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Index of the suspended Atmosphere resources by username, maintained by IceScrumAtmosphereEventListener.
+ * The username is captured when the resource is suspended so that lookups never have to read
+ * the request of a resource that may have been cancelled in the meantime.
+ */
+class IceScrumResourceRegistry {
+
+    private static final ConcurrentHashMap<String, UserResources> resourcesByUsername = new ConcurrentHashMap<String, UserResources>()
+    private static final ConcurrentHashMap<String, String> usernameByUuid = new ConcurrentHashMap<String, String>()
+
+    static void register(String username, AtmosphereResource resource) {
+        if (!username || !resource) {
+            return
+        }
+        String uuid = resource.uuid()
+        String previousUsername = usernameByUuid.put(uuid, username)
+        if (previousUsername && previousUsername != username) {
+            removeResource(previousUsername, uuid)
+        }
+        while (true) {
+            UserResources resources = resourcesByUsername.get(username)
+            if (resources == null) {
+                resources = new UserResources()
+                UserResources existingResources = resourcesByUsername.putIfAbsent(username, resources)
+                if (existingResources != null) {
+                    resources = existingResources
+                }
+            }
+            if (resources.add(uuid, resource)) {
+                break
+            }
+            resourcesByUsername.remove(username, resources) // Discarded concurrently by removeResource: help removing it then retry
+        }
+    }
+
+    static void unregister(AtmosphereResource resource) {
+        if (!resource) {
+            return
+        }
+        String uuid = resource.uuid()
+        String username = usernameByUuid.remove(uuid)
+        if (username) {
+            removeResource(username, uuid)
+        }
+    }
+
+    static Set<AtmosphereResource> getResources(Collection<String> usernames) {
+        Set<AtmosphereResource> resources = new HashSet<AtmosphereResource>()
+        usernames?.each { String username ->
+            UserResources userResources = resourcesByUsername.get(username)
+            if (userResources != null) {
+                userResources.addTo(resources)
+            }
+        }
+        return resources
+    }
+
+    static boolean isOnline(String username) {
+        if (!username) {
+            return false
+        }
+        UserResources resources = resourcesByUsername.get(username)
+        return resources != null && !resources.discarded
+    }
+
+    static Set<String> getOnlineUsernames() {
+        return new HashSet<String>(resourcesByUsername.keySet())
+    }
+
+    static int getConnectionCount() {
+        return usernameByUuid.size()
+    }
+
+    private static void removeResource(String username, String uuid) {
+        UserResources resources = resourcesByUsername.get(username)
+        if (resources != null && resources.remove(uuid)) {
+            resourcesByUsername.remove(username, resources)
+        }
+    }
+
+    // Adding and removing are atomic per user: once emptied the resources are discarded and never reused, so a concurrent register retries with new ones
+    private static class UserResources {
+
+        private final Map<String, AtmosphereResource> resourcesByUuid = new HashMap<String, AtmosphereResource>()
+        private boolean discarded = false
+
+        synchronized boolean add(String uuid, AtmosphereResource resource) {
+            if (discarded) {
+                return false
+            }
+            resourcesByUuid.put(uuid, resource)
+            return true
+        }
+
+        // Returns true if the resources have been discarded by this call
+        synchronized boolean remove(String uuid) {
+            if (discarded) {
+                return false
+            }
+            resourcesByUuid.remove(uuid)
+            discarded = resourcesByUuid.isEmpty()
+            return discarded
+        }
+
+        synchronized boolean isDiscarded() {
+            return discarded
+        }
+
+        synchronized void addTo(Collection<AtmosphereResource> resources) {
+            resources.addAll(resourcesByUuid.values())
+        }
+    }
+}
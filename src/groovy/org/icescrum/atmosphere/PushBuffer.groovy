@@ -0,0 +1,49 @@
+package org.icescrum.atmosphere
+
+/**
+ * Messages waiting to be pushed, grouped by channel and deduplicated by messageId:
+ * a new message replaces the previous one with the same messageId but goes at the end to keep the order of changes
+ */
+class PushBuffer {
+
+    private final LinkedHashMap<String, LinkedHashMap<String, PushMessage>> messagesByChannel = new LinkedHashMap<String, LinkedHashMap<String, PushMessage>>()
+
+    synchronized void add(String channel, PushMessage message) {
+        LinkedHashMap<String, PushMessage> messages = messagesByChannel.get(channel)
+        if (messages == null) {
+            messages = new LinkedHashMap<String, PushMessage>()
+            messagesByChannel.put(channel, messages)
+        }
+        messages.remove(message.messageId)
+        messages.put(message.messageId, message)
+    }
+
+    synchronized void addAll(PushBuffer buffer) {
+        buffer.messagesByChannel.each { String channel, Map<String, PushMessage> messages ->
+            messages.values().each { PushMessage message ->
+                add(channel, message)
+            }
+        }
+    }
+
+    synchronized PushMessage find(String messageId) {
+        PushMessage found = null
+        messagesByChannel.values().each { Map<String, PushMessage> messages ->
+            found = found ?: messages.get(messageId)
+        }
+        return found
+    }
+
+    synchronized Map<String, List<PushMessage>> drain() {
+        Map<String, List<PushMessage>> drained = new LinkedHashMap<String, List<PushMessage>>()
+        messagesByChannel.each { String channel, Map<String, PushMessage> messages ->
+            drained.put(channel, new ArrayList<PushMessage>(messages.values()))
+        }
+        messagesByChannel.clear()
+        return drained
+    }
+
+    synchronized int size() {
+        return (int) (messagesByChannel.values().sum { it.size() } ?: 0)
+    }
+}
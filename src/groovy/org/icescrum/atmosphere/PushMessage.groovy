@@ -0,0 +1,38 @@
+package org.icescrum.atmosphere
+
+import grails.converters.JSON
+
+/**
+ * Push message serialized once: the same payload is shared by every channel it is sent to
+ * as well as by the buffered path
+ */
+class PushMessage {
+
+    final String messageId
+    final String namespace
+    final String eventType
+    final String content // Base64 encoded JSON of the pushed object
+    final String payload
+
+    PushMessage(Map message) {
+        messageId = message.messageId
+        namespace = message.namespace
+        eventType = message.eventType
+        content = message.content
+        payload = (message as JSON).toString()
+    }
+
+    // Already serialized message, e.g. received from another node
+    PushMessage(String messageId, String payload) {
+        this.messageId = messageId
+        this.namespace = null
+        this.eventType = null
+        this.content = null
+        this.payload = payload
+    }
+
+    @Override
+    String toString() {
+        return payload
+    }
+}
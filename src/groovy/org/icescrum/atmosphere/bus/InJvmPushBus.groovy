@@ -0,0 +1,64 @@
+package org.icescrum.atmosphere.bus
+
+import org.slf4j.Logger
+import org.slf4j.LoggerFactory
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CopyOnWriteArrayList
+
+/**
+ * Bus between nodes running in the same JVM (several contexts in the same container, tests)
+ */
+class InJvmPushBus implements PushBus {
+
+    private static final Logger logger = LoggerFactory.getLogger(InJvmPushBus.class)
+    private static final ConcurrentHashMap<String, CopyOnWriteArrayList<InJvmPushBus>> busesByGroup = new ConcurrentHashMap<String, CopyOnWriteArrayList<InJvmPushBus>>()
+
+    final String nodeId
+    final String group
+    final PushBusStats busStats = new PushBusStats()
+    private PushBusListener listener
+
+    InJvmPushBus(String nodeId, String group = 'default') {
+        this.nodeId = nodeId
+        this.group = group
+    }
+
+    @Override
+    void start(PushBusListener listener) {
+        this.listener = listener
+        busesByGroup.putIfAbsent(group, new CopyOnWriteArrayList<InJvmPushBus>())
+        busesByGroup.get(group).addIfAbsent(this)
+    }
+
+    @Override
+    void publish(PushBusMessage message) {
+        busesByGroup.get(group)?.each { InJvmPushBus peer ->
+            if (!peer.is(this)) {
+                try {
+                    peer.receive(message)
+                    busStats.published.incrementAndGet()
+                } catch (Exception e) {
+                    busStats.publishFailed.incrementAndGet()
+                    logger.error("Error while publishing message ${message.messageId} to node ${peer.nodeId}", e)
+                }
+            }
+        }
+    }
+
+    private void receive(PushBusMessage message) {
+        busStats.received(message)
+        listener?.onMessage(message)
+    }
+
+    @Override
+    Map getStats() {
+        return [type: 'jvm', nodeId: nodeId, group: group] + busStats.toMap()
+    }
+
+    @Override
+    void stop() {
+        busesByGroup.get(group)?.remove(this)
+        listener = null
+    }
+}
@@ -0,0 +1,18 @@
+package org.icescrum.atmosphere.bus
+
+/**
+ * Republishes already serialized push messages to the other iceScrum nodes
+ * so that users connected to a node see the changes made through another one
+ */
+interface PushBus {
+
+    String getNodeId()
+
+    void start(PushBusListener listener)
+
+    void publish(PushBusMessage message)
+
+    Map getStats()
+
+    void stop()
+}
@@ -0,0 +1,6 @@
+package org.icescrum.atmosphere.bus
+
+interface PushBusListener {
+
+    void onMessage(PushBusMessage message)
+}
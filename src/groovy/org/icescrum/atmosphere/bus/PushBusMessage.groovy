@@ -0,0 +1,66 @@
+package org.icescrum.atmosphere.bus
+
+import java.nio.charset.StandardCharsets
+
+/**
+ * A push message as exchanged between nodes: either for a channel or for a list of users
+ */
+class PushBusMessage {
+
+    static final int MAX_USERNAMES = 10000
+
+    String nodeId
+    long sentAt
+    String channel
+    String messageId
+    List<String> usernames = []
+    String payload
+
+    void writeTo(DataOutputStream output) {
+        output.writeUTF(nodeId)
+        output.writeLong(sentAt)
+        output.writeUTF(channel ?: '')
+        output.writeUTF(messageId ?: '')
+        output.writeInt(usernames.size())
+        usernames.each { String username ->
+            output.writeUTF(username)
+        }
+        byte[] bytes = payload.getBytes(StandardCharsets.UTF_8) // Payload can be larger than what writeUTF supports
+        output.writeInt(bytes.length)
+        output.write(bytes)
+    }
+
+    byte[] toBytes() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream()
+        DataOutputStream output = new DataOutputStream(bytes)
+        writeTo(output)
+        output.flush()
+        return bytes.toByteArray()
+    }
+
+    static PushBusMessage fromBytes(byte[] bytes) {
+        return readFrom(new DataInputStream(new ByteArrayInputStream(bytes)), bytes.length)
+    }
+
+    // Sizes are checked before allocating anything so a malformed message cannot exhaust the memory
+    static PushBusMessage readFrom(DataInputStream input, int maxPayloadSize) {
+        PushBusMessage message = new PushBusMessage(nodeId: input.readUTF(), sentAt: input.readLong())
+        message.channel = input.readUTF() ?: null
+        message.messageId = input.readUTF() ?: null
+        int usernamesCount = input.readInt()
+        if (usernamesCount < 0 || usernamesCount > MAX_USERNAMES) {
+            throw new IOException("Invalid push bus message: $usernamesCount usernames")
+        }
+        usernamesCount.times {
+            message.usernames << input.readUTF()
+        }
+        int payloadSize = input.readInt()
+        if (payloadSize < 0 || payloadSize > maxPayloadSize) {
+            throw new IOException("Invalid push bus message: payload of $payloadSize bytes")
+        }
+        byte[] bytes = new byte[payloadSize]
+        input.readFully(bytes)
+        message.payload = new String(bytes, StandardCharsets.UTF_8)
+        return message
+    }
+}
@@ -0,0 +1,53 @@
+package org.icescrum.atmosphere.bus
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Published / received counters and delivery lag per origin node
+ */
+class PushBusStats {
+
+    final AtomicLong published = new AtomicLong()
+    final AtomicLong publishFailed = new AtomicLong()
+    final ConcurrentHashMap<String, NodeStats> receivedByNode = new ConcurrentHashMap<String, NodeStats>()
+
+    void received(PushBusMessage message) {
+        NodeStats nodeStats = receivedByNode.get(message.nodeId)
+        if (nodeStats == null) {
+            nodeStats = new NodeStats()
+            NodeStats existingStats = receivedByNode.putIfAbsent(message.nodeId, nodeStats)
+            if (existingStats != null) {
+                nodeStats = existingStats
+            }
+        }
+        nodeStats.record(Math.max(0L, System.currentTimeMillis() - message.sentAt))
+    }
+
+    Map toMap() {
+        return [
+                published    : published.get(),
+                publishFailed: publishFailed.get(),
+                nodes        : receivedByNode.collectEntries { String nodeId, NodeStats nodeStats -> [(nodeId): nodeStats.toMap()] }
+        ]
+    }
+
+    static class NodeStats {
+        final AtomicLong received = new AtomicLong()
+        final AtomicLong totalLag = new AtomicLong()
+        volatile long lastLag = 0
+        volatile long maxLag = 0
+
+        synchronized void record(long lag) {
+            received.incrementAndGet()
+            totalLag.addAndGet(lag)
+            lastLag = lag
+            maxLag = Math.max(maxLag, lag)
+        }
+
+        Map toMap() {
+            long receivedCount = received.get()
+            return [received: receivedCount, lastLagMs: lastLag, maxLagMs: maxLag, averageLagMs: receivedCount ? (totalLag.get() / (double) receivedCount).round(2) : 0]
+        }
+    }
+}
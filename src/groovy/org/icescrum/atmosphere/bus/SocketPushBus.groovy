@@ -0,0 +1,313 @@
+package org.icescrum.atmosphere.bus
+
+import org.slf4j.Logger
+import org.slf4j.LoggerFactory
+
+import javax.crypto.Mac
+import javax.crypto.spec.SecretKeySpec
+import java.nio.charset.StandardCharsets
+import java.security.MessageDigest
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.RejectedExecutionHandler
+import java.util.concurrent.SynchronousQueue
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Bus over plain TCP sockets: each node listens on a port and keeps one connection per peer.
+ * Messages are written by a dedicated thread per peer through a bounded queue, so a slow or dead peer never blocks the caller.
+ * Only connections from the addresses of the configured peers are accepted, by a bounded number of reader threads.
+ * Each frame is signed with an HMAC of the secret shared by the nodes and its size is capped: a connection that sends
+ * an oversized or badly signed frame is closed before anything is delivered.
+ */
+class SocketPushBus implements PushBus {
+
+    private static final Logger logger = LoggerFactory.getLogger(SocketPushBus.class)
+    private static final int CONNECT_TIMEOUT = 2000
+    private static final String MAC_ALGORITHM = 'HmacSHA256'
+    private static final int MAC_LENGTH = 32
+
+    final String nodeId
+    final String host
+    final int port
+    final int maxFrameSize
+    final PushBusStats busStats = new PushBusStats()
+    final AtomicLong rejectedConnections = new AtomicLong()
+    final AtomicLong rejectedFrames = new AtomicLong()
+
+    private final List<Peer> peers
+    private final SecretKeySpec key
+    private final ThreadPoolExecutor readers
+    private volatile boolean running = false
+    private ServerSocket serverSocket
+    private PushBusListener listener
+
+    SocketPushBus(String nodeId, String host, int port, List<String> peerAddresses, String secret, int queueSize = 1000, int maxFrameSize = 16 * 1024 * 1024, int maxConnections = 0) {
+        if (!secret) {
+            throw new IllegalArgumentException('A secret shared by all the nodes is required by the socket push bus')
+        }
+        this.nodeId = nodeId
+        this.host = host ?: InetAddress.getLoopbackAddress().getHostAddress()
+        this.port = port
+        this.maxFrameSize = maxFrameSize
+        this.key = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), MAC_ALGORITHM)
+        this.peers = peerAddresses.collect { String address ->
+            String[] hostAndPort = address.split(':')
+            new Peer(hostAndPort[0], hostAndPort[1].toInteger(), queueSize)
+        }
+        int maxReaders = maxConnections > 0 ? maxConnections : Math.max(2, peers.size() * 2) // A reconnecting peer may briefly have two connections
+        this.readers = new ThreadPoolExecutor(0, maxReaders, 60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), { Runnable runnable ->
+            Thread thread = new Thread(runnable, "icescrum-push-bus-read-$port")
+            thread.daemon = true
+            return thread
+        } as ThreadFactory)
+    }
+
+    @Override
+    void start(PushBusListener listener) {
+        this.listener = listener
+        running = true
+        serverSocket = new ServerSocket()
+        serverSocket.reuseAddress = true
+        serverSocket.bind(new InetSocketAddress(host, port))
+        newDaemonThread("icescrum-push-bus-accept-$port") {
+            while (running) {
+                try {
+                    Socket socket = serverSocket.accept()
+                    if (!isPeerAddress(socket.inetAddress)) {
+                        rejectConnection(socket, 'not a configured peer')
+                        continue
+                    }
+                    try {
+                        readers.execute {
+                            read(socket)
+                        }
+                    } catch (RejectedExecutionException ignored) {
+                        rejectConnection(socket, 'too many connections')
+                    }
+                } catch (IOException e) {
+                    if (running) {
+                        logger.error("Error while accepting push bus connection on port $port", e)
+                    }
+                }
+            }
+        }.start()
+        if (logger.infoEnabled) {
+            logger.info("Push bus node $nodeId listening on $host:$port, peers: ${peers*.address.join(', ')}")
+        }
+    }
+
+    @Override
+    void publish(PushBusMessage message) {
+        peers.each { Peer peer ->
+            peer.send(message)
+        }
+    }
+
+    @Override
+    Map getStats() {
+        return [type: 'socket', nodeId: nodeId, address: "$host:$port".toString(), peers: peers.collect { it.stats }, readers: readers.activeCount, rejectedConnections: rejectedConnections.get(), rejectedFrames: rejectedFrames.get()] + busStats.toMap()
+    }
+
+    @Override
+    void stop() {
+        running = false
+        try {
+            serverSocket?.close()
+        } catch (IOException ignored) {
+        }
+        peers*.close()
+        readers.shutdownNow()
+    }
+
+    private void read(Socket socket) {
+        try {
+            DataInputStream input = new DataInputStream(new BufferedInputStream(socket.inputStream))
+            Mac mac = newMac()
+            while (running) {
+                PushBusMessage message = readFrame(input, mac)
+                busStats.received(message)
+                try {
+                    listener?.onMessage(message)
+                } catch (Exception e) {
+                    logger.error("Error while delivering push message ${message.messageId} from node ${message.nodeId}", e)
+                }
+            }
+        } catch (EOFException ignored) {
+            // Peer closed the connection
+        } catch (InvalidFrameException e) {
+            rejectedFrames.incrementAndGet()
+            logger.warn("Push bus connection from ${socket.remoteSocketAddress} closed: ${e.message}")
+        } catch (IOException e) {
+            if (running && logger.debugEnabled) {
+                logger.debug("Push bus connection from ${socket.remoteSocketAddress} lost", e)
+            }
+        } finally {
+            try {
+                socket.close()
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    // Frame: body length, body, HMAC of the body
+    private PushBusMessage readFrame(DataInputStream input, Mac mac) throws IOException {
+        int length = input.readInt()
+        if (length < 0 || length > maxFrameSize) {
+            throw new InvalidFrameException("frame of $length bytes exceeds the limit of $maxFrameSize bytes")
+        }
+        byte[] body = new byte[length]
+        input.readFully(body)
+        byte[] signature = new byte[MAC_LENGTH]
+        input.readFully(signature)
+        if (!MessageDigest.isEqual(mac.doFinal(body), signature)) {
+            throw new InvalidFrameException('invalid frame signature')
+        }
+        try {
+            return PushBusMessage.fromBytes(body)
+        } catch (IOException e) {
+            throw new InvalidFrameException(e.message)
+        }
+    }
+
+    private void writeFrame(DataOutputStream output, Mac mac, PushBusMessage message) throws IOException {
+        byte[] body = message.toBytes()
+        if (body.length > maxFrameSize) {
+            throw new InvalidFrameException("frame of $body.length bytes exceeds the limit of $maxFrameSize bytes")
+        }
+        output.writeInt(body.length)
+        output.write(body)
+        output.write(mac.doFinal(body))
+        output.flush()
+    }
+
+    private Mac newMac() {
+        Mac mac = Mac.getInstance(MAC_ALGORITHM)
+        mac.init(key)
+        return mac
+    }
+
+    // Resolved on each connection so peers can be configured with host names whose address changes
+    private boolean isPeerAddress(InetAddress address) {
+        return peers.any { Peer peer ->
+            try {
+                InetAddress.getAllByName(peer.peerHost).any { it == address }
+            } catch (UnknownHostException ignored) {
+                false
+            }
+        }
+    }
+
+    private void rejectConnection(Socket socket, String reason) {
+        rejectedConnections.incrementAndGet()
+        logger.warn("Push bus connection from ${socket.remoteSocketAddress} rejected: $reason")
+        try {
+            socket.close()
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static Thread newDaemonThread(String name, Closure body) {
+        Thread thread = new Thread(body as Runnable, name)
+        thread.daemon = true
+        return thread
+    }
+
+    private class Peer {
+
+        final String peerHost
+        final int peerPort
+        final ThreadPoolExecutor writer
+        final AtomicLong sent = new AtomicLong()
+        final AtomicLong dropped = new AtomicLong()
+        final AtomicLong failed = new AtomicLong()
+        private Socket socket
+        private DataOutputStream output
+        private Mac mac
+
+        Peer(String peerHost, int peerPort, int queueSize) {
+            this.peerHost = peerHost
+            this.peerPort = peerPort
+            this.writer = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queueSize), { Runnable runnable ->
+                Thread thread = new Thread(runnable, "icescrum-push-bus-write-$peerHost:$peerPort")
+                thread.daemon = true
+                return thread
+            } as ThreadFactory, { Runnable runnable, ThreadPoolExecutor executor ->
+                dropped.incrementAndGet()
+                busStats.publishFailed.incrementAndGet()
+            } as RejectedExecutionHandler)
+        }
+
+        String getAddress() {
+            return "$peerHost:$peerPort"
+        }
+
+        void send(PushBusMessage message) {
+            writer.execute {
+                try {
+                    write(message)
+                } catch (InvalidFrameException e) {
+                    failed.incrementAndGet()
+                    busStats.publishFailed.incrementAndGet()
+                    logger.warn("Push message ${message.messageId} not published to $address: ${e.message}")
+                } catch (IOException e) {
+                    closeSocket()
+                    try {
+                        write(message) // One retry on a fresh connection, the previous one may have been closed by the peer
+                    } catch (IOException retryException) {
+                        closeSocket()
+                        failed.incrementAndGet()
+                        busStats.publishFailed.incrementAndGet()
+                        if (logger.debugEnabled) {
+                            logger.debug("Unable to publish push message ${message.messageId} to $address", retryException)
+                        }
+                    }
+                }
+            }
+        }
+
+        Map getStats() {
+            return [address: address, connected: socket != null, queueDepth: writer.queue.size(), sent: sent.get(), dropped: dropped.get(), failed: failed.get()]
+        }
+
+        void close() {
+            writer.shutdownNow()
+            closeSocket()
+        }
+
+        // Only called from the writer thread
+        private void write(PushBusMessage message) throws IOException {
+            if (output == null) {
+                socket = new Socket()
+                socket.tcpNoDelay = true
+                socket.connect(new InetSocketAddress(peerHost, peerPort), CONNECT_TIMEOUT)
+                output = new DataOutputStream(new BufferedOutputStream(socket.outputStream))
+            }
+            if (mac == null) {
+                mac = newMac()
+            }
+            writeFrame(output, mac, message)
+            sent.incrementAndGet()
+            busStats.published.incrementAndGet()
+        }
+
+        private void closeSocket() {
+            try {
+                socket?.close()
+            } catch (IOException ignored) {
+            }
+            socket = null
+            output = null
+        }
+    }
+
+    private static class InvalidFrameException extends IOException {
+
+        InvalidFrameException(String message) {
+            super(message)
+        }
+    }
+}
@@ -0,0 +1,325 @@
+/*
+ * Copyright (c) 2020 Kagilum.
+ *
+ * This file is part of iceScrum.
+ *
+ * iceScrum is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * iceScrum is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with iceScrum.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.icescrum.core.event
+
+import grails.util.GrailsNameUtils
+import grails.util.Holders
+import org.codehaus.groovy.grails.commons.DomainClassArtefactHandler
+import org.hibernate.proxy.HibernateProxyHelper
+import org.slf4j.Logger
+import org.slf4j.LoggerFactory
+import org.springframework.security.core.context.SecurityContext
+import org.springframework.security.core.context.SecurityContextHolder
+import org.springframework.transaction.support.TransactionSynchronizationAdapter
+import org.springframework.transaction.support.TransactionSynchronizationManager
+
+import java.util.concurrent.*
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Dispatch table of the IceScrumEventPublisher listeners, by domain and event type, built once when listeners are registered.
+ * Synchronous listeners run inline in the transaction of the publisher.
+ * Asynchronous listeners run after commit on a bounded executor: when its queue is full, the committing thread runs the listener itself (backpressure).
+ * They see the committed state of the object, not its state when the event was published: listeners that need the latter (e.g. to render a payload)
+ * must be synchronous and defer only their I/O. Events of the same object are handled one after another in the order they were published,
+ * and DELETE events are always handled synchronously since the deleted object cannot be reloaded.
+ * The latency of every listener is recorded and exposed with getStats().
+ */
+class IceScrumEventDispatcher {
+
+    private static final Logger log = LoggerFactory.getLogger(IceScrumEventDispatcher)
+    private static final String ALL_DOMAINS = '*'
+
+    private static final ConcurrentMap<String, Map<IceScrumEventType, List<RegisteredListener>>> listenersByDomain = new ConcurrentHashMap<String, Map<IceScrumEventType, List<RegisteredListener>>>()
+    private static final ConcurrentMap<Class, String> domainNames = new ConcurrentHashMap<Class, String>()
+    private static final ConcurrentMap<String, SerialTasks> serialTasksByObject = new ConcurrentHashMap<String, SerialTasks>()
+    private static final AtomicLong callerRuns = new AtomicLong()
+    private static ThreadPoolExecutor executor
+
+    static void register(String domain, IceScrumEventType eventType, Closure listener, IceScrumListenerMode mode = IceScrumListenerMode.SYNCHRONOUS, String name = null) {
+        Map<IceScrumEventType, List<RegisteredListener>> listenersByType = listenersByDomain[domain]
+        if (listenersByType == null) {
+            listenersByDomain.putIfAbsent(domain, new ConcurrentHashMap<IceScrumEventType, List<RegisteredListener>>())
+            listenersByType = listenersByDomain[domain]
+        }
+        List<RegisteredListener> listeners = listenersByType[eventType]
+        if (listeners == null) {
+            listenersByType.putIfAbsent(eventType, new CopyOnWriteArrayList<RegisteredListener>())
+            listeners = listenersByType[eventType]
+        }
+        listeners << new RegisteredListener(name ?: "$domain.$eventType".toString(), mode, listener)
+    }
+
+    static void dispatch(IceScrumEventType type, object, Map dirtyProperties) {
+        Class domainClass = HibernateProxyHelper.getClassWithoutInitializingProxy(object)
+        List<RegisteredListener> asynchronousListeners = null
+        [getDomainName(domainClass), ALL_DOMAINS].each { String domain ->
+            listenersByDomain[domain]?.getAt(type)?.each { RegisteredListener listener ->
+                if (listener.mode == IceScrumListenerMode.ASYNCHRONOUS && type != IceScrumEventType.DELETE && isAsynchronousEnabled()) {
+                    if (asynchronousListeners == null) {
+                        asynchronousListeners = []
+                    }
+                    asynchronousListeners << listener
+                } else {
+                    listener.invoke(type, object, dirtyProperties)
+                }
+            }
+        }
+        if (asynchronousListeners) {
+            dispatchAfterCommit(asynchronousListeners, type, domainClass, object, dirtyProperties)
+        }
+    }
+
+    static Map getStats() {
+        def stats = [listeners: [:], executor: [:]]
+        listenersByDomain.values().each { Map<IceScrumEventType, List<RegisteredListener>> listenersByType ->
+            listenersByType.values().each { List<RegisteredListener> listeners ->
+                listeners.each { RegisteredListener listener ->
+                    Map listenerStats = stats.listeners[listener.name]
+                    if (listenerStats == null) { // All events listeners are registered once per event type
+                        stats.listeners[listener.name] = listener.stats
+                    } else {
+                        Map otherStats = listener.stats
+                        listenerStats.count += otherStats.count
+                        listenerStats.errors += otherStats.errors
+                        listenerStats.totalMillis += otherStats.totalMillis
+                        listenerStats.maxMillis = Math.max(listenerStats.maxMillis, otherStats.maxMillis)
+                        listenerStats.meanMillis = listenerStats.count ? (listenerStats.totalMillis / listenerStats.count).round(3) : 0
+                    }
+                }
+            }
+        }
+        if (executor) {
+            stats.executor = [
+                    poolSize  : executor.poolSize,
+                    active    : executor.activeCount,
+                    queued    : executor.queue.size(),
+                    completed : executor.completedTaskCount,
+                    callerRuns: callerRuns.get(),
+                    objects   : serialTasksByObject.size()
+            ]
+        }
+        return stats
+    }
+
+    static synchronized void shutdown() {
+        executor?.shutdown()
+        executor = null
+    }
+
+    private static String getDomainName(Class domainClass) {
+        String domainName = domainNames[domainClass]
+        if (domainName == null) {
+            domainName = GrailsNameUtils.getPropertyNameRepresentation(domainClass)
+            domainNames[domainClass] = domainName
+        }
+        return domainName
+    }
+
+    private static boolean isAsynchronousEnabled() {
+        def enable = Holders.grailsApplication.config.icescrum.events.async.enable
+        return enable instanceof Boolean ? enable : true
+    }
+
+    private static void dispatchAfterCommit(List<RegisteredListener> listeners, IceScrumEventType type, Class domainClass, object, Map dirtyProperties) {
+        SecurityContext securityContext = SecurityContextHolder.context
+        def id = object.id
+        String objectKey = getDomainName(domainClass) + ':' + id
+        List<Runnable> tasks = listeners.collect { RegisteredListener listener ->
+            return {
+                SecurityContext previousContext = SecurityContextHolder.context
+                SecurityContextHolder.context = securityContext
+                try {
+                    domainClass.withNewTransaction {
+                        def reloadedObject = id != null ? (domainClass.get(id) ?: object) : object
+                        listener.invoke(type, reloadedObject, reload(dirtyProperties))
+                    }
+                } catch (Exception e) {
+                    log.error("Error in asynchronous listener ${listener.name} on $type ${getDomainName(domainClass)}", e)
+                } finally {
+                    SecurityContextHolder.context = previousContext
+                }
+            } as Runnable
+        }
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                void afterCommit() {
+                    tasks.each { submit(objectKey, it) }
+                }
+            })
+        } else {
+            tasks.each { submit(objectKey, it) }
+        }
+    }
+
+    // Tasks of the same object are queued and run one at a time, so listeners get the events of an object in order
+    private static void submit(String objectKey, Runnable task) {
+        while (true) {
+            SerialTasks serialTasks = serialTasksByObject[objectKey]
+            if (serialTasks == null) {
+                serialTasksByObject.putIfAbsent(objectKey, new SerialTasks(objectKey))
+                serialTasks = serialTasksByObject[objectKey]
+            }
+            Boolean schedule = serialTasks.add(task)
+            if (schedule == null) { // Drained meanwhile, a new one is needed
+                serialTasksByObject.remove(objectKey, serialTasks)
+            } else {
+                if (schedule) {
+                    getExecutor().execute(serialTasks)
+                }
+                return
+            }
+        }
+    }
+
+    // Detached domain objects of the dirty properties (e.g. old values) are reloaded in the new session when they still exist
+    private static Map reload(Map dirtyProperties) {
+        if (!dirtyProperties) {
+            return dirtyProperties
+        }
+        return dirtyProperties.collectEntries { key, value ->
+            if (value != null && value.hasProperty('id') && value.id != null) {
+                Class valueClass = HibernateProxyHelper.getClassWithoutInitializingProxy(value)
+                if (DomainClassArtefactHandler.isDomainClass(valueClass)) {
+                    value = valueClass.get(value.id) ?: value
+                }
+            }
+            [(key): value]
+        }
+    }
+
+    private static synchronized ThreadPoolExecutor getExecutor() {
+        if (executor == null) {
+            def config = Holders.grailsApplication.config.icescrum.events.async
+            int poolSize = (config.poolSize ?: 4) as int
+            AtomicInteger threadNumber = new AtomicInteger()
+            executor = new ThreadPoolExecutor(poolSize, poolSize, 60L, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>((config.queueSize ?: 1000) as int),
+                    { Runnable runnable ->
+                        Thread thread = new Thread(runnable, 'icescrum-events-' + threadNumber.incrementAndGet())
+                        thread.daemon = true
+                        return thread
+                    } as ThreadFactory,
+                    { Runnable runnable, ThreadPoolExecutor pool ->
+                        if (!pool.isShutdown()) { // Queue full: run it in the committing thread to slow down publishers
+                            callerRuns.incrementAndGet()
+                            runnable.run()
+                        }
+                    } as RejectedExecutionHandler)
+            executor.allowCoreThreadTimeOut(true)
+        }
+        return executor
+    }
+
+    private static class SerialTasks implements Runnable {
+
+        final String objectKey
+
+        private final Queue<Runnable> tasks = new ArrayDeque<Runnable>()
+        private boolean scheduled = false
+        private boolean discarded = false
+
+        SerialTasks(String objectKey) {
+            this.objectKey = objectKey
+        }
+
+        // Null if discarded, true if the queue must be scheduled on the executor, false if it is already
+        synchronized Boolean add(Runnable task) {
+            if (discarded) {
+                return null
+            }
+            tasks.add(task)
+            if (scheduled) {
+                return false
+            }
+            scheduled = true
+            return true
+        }
+
+        void run() {
+            while (true) {
+                Runnable task
+                synchronized (this) {
+                    task = tasks.poll()
+                    if (task == null) {
+                        discarded = true
+                        break
+                    }
+                }
+                try {
+                    task.run()
+                } catch (Throwable t) { // Listener errors are already logged by the task, this one must not stop the queue
+                    log.error("Error in asynchronous task of $objectKey", t)
+                }
+            }
+            serialTasksByObject.remove(objectKey, this)
+        }
+    }
+
+    private static class RegisteredListener {
+
+        final String name
+        final IceScrumListenerMode mode
+        final Closure closure
+
+        private final AtomicLong count = new AtomicLong()
+        private final AtomicLong errors = new AtomicLong()
+        private final AtomicLong totalNanos = new AtomicLong()
+        private final AtomicLong maxNanos = new AtomicLong()
+
+        RegisteredListener(String name, IceScrumListenerMode mode, Closure closure) {
+            this.name = name
+            this.mode = mode
+            this.closure = closure
+        }
+
+        void invoke(IceScrumEventType type, object, Map dirtyProperties) {
+            long start = System.nanoTime()
+            try {
+                closure(type, object, dirtyProperties)
+            } catch (Throwable t) {
+                errors.incrementAndGet()
+                throw t
+            } finally {
+                long duration = System.nanoTime() - start
+                count.incrementAndGet()
+                totalNanos.addAndGet(duration)
+                long max = maxNanos.get()
+                while (duration > max && !maxNanos.compareAndSet(max, duration)) {
+                    max = maxNanos.get()
+                }
+            }
+        }
+
+        Map getStats() {
+            long listenerCount = count.get()
+            BigDecimal totalMillis = totalNanos.get() / 1000000
+            return [
+                    mode       : mode.toString(),
+                    count      : listenerCount,
+                    errors     : errors.get(),
+                    totalMillis: totalMillis,
+                    meanMillis : listenerCount ? (totalMillis / listenerCount).round(3) : 0,
+                    maxMillis  : maxNanos.get() / 1000000
+            ]
+        }
+    }
+}
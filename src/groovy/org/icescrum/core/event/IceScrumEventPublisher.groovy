@@ -24,48 +24,36 @@
 package org.icescrum.core.event
 
 import grails.util.GrailsNameUtils
-import grails.util.Holders
 import org.codehaus.groovy.grails.commons.DefaultGrailsDomainClass
-import org.codehaus.groovy.grails.commons.GrailsApplication
-import org.hibernate.proxy.HibernateProxyHelper
 import org.slf4j.Logger
 import org.slf4j.LoggerFactory
 
 abstract class IceScrumEventPublisher {
 
     static void registerListener(String domain, IceScrumEventType eventType, Closure listener) {
+        registerListener(domain, eventType, IceScrumListenerMode.SYNCHRONOUS, null, listener)
+    }
+
+    static void registerListener(String domain, IceScrumEventType eventType, IceScrumListenerMode mode, String name, Closure listener) {
         listener.delegate = this
-        GrailsApplication grailsApplication = Holders.grailsApplication
-        if (grailsApplication.config.icescrum.listenersByDomain == null) {
-            grailsApplication.config.icescrum.listenersByDomain = [:]
-        }
-        def listenersByDomain = grailsApplication.config.icescrum.listenersByDomain
-        if (listenersByDomain[domain] == null) {
-            listenersByDomain[domain] = [:]
-        }
-        if (listenersByDomain[domain][eventType] == null) {
-            listenersByDomain[domain][eventType] = []
-        }
-        listenersByDomain[domain][eventType] << listener
+        IceScrumEventDispatcher.register(domain, eventType, listener, mode, name)
     }
 
     static void registerListener(String domain, Closure listener) {
+        registerListener(domain, IceScrumListenerMode.SYNCHRONOUS, null, listener)
+    }
+
+    static void registerListener(String domain, IceScrumListenerMode mode, String name, Closure listener) {
         IceScrumEventType.values().each { IceScrumEventType type ->
             if (type != IceScrumEventType.UGLY_HACK_BECAUSE_ANNOTATION_CANT_BE_NULL && type != IceScrumEventType.PARTIAL_UPDATE) {
-                registerListener(domain, type, listener)
+                registerListener(domain, type, mode, name, listener)
             }
         }
     }
 
     Map publishSynchronousEvent(IceScrumEventType type, object, Map dirtyProperties = extractDirtyProperties(type, object)) {
         logEvent(type, object, dirtyProperties)
-        def domain = GrailsNameUtils.getPropertyNameRepresentation(HibernateProxyHelper.getClassWithoutInitializingProxy(object))
-        Holders.grailsApplication.config.icescrum.listenersByDomain.getAt(domain)?.getAt(type)?.each {
-            it(type, object, dirtyProperties)
-        }
-        Holders.grailsApplication.config.icescrum.listenersByDomain.getAt('*')?.getAt(type)?.each {
-            it(type, object, dirtyProperties)
-        }
+        IceScrumEventDispatcher.dispatch(type, object, dirtyProperties)
         return dirtyProperties
     }
 
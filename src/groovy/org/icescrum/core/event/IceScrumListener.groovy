@@ -37,4 +37,6 @@ import java.lang.annotation.Target
     String domain() default ''
 
     IceScrumEventType eventType() default IceScrumEventType.UGLY_HACK_BECAUSE_ANNOTATION_CANT_BE_NULL
+
+    IceScrumListenerMode mode() default IceScrumListenerMode.SYNCHRONOUS
 }
\ No newline at end of file
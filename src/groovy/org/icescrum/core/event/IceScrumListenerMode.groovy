@@ -0,0 +1,24 @@
+/*
+ * Copyright (c) 2020 Kagilum.
+ *
+ * This file is part of iceScrum.
+ *
+ * iceScrum is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * iceScrum is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with iceScrum.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.icescrum.core.event
+
+enum IceScrumListenerMode {
+    SYNCHRONOUS, // Run inline, in the transaction of the publisher: required when the listener writes data or can veto the change
+    ASYNCHRONOUS // Run after commit on the bounded event executor, with the object reloaded in a new transaction (its committed state). DELETE events stay synchronous
+}
@@ -34,11 +34,7 @@ trait EventMessageRenderer {
         }
         def event = events.size() > 1 ? events[0] : events[0]
         String eventPush = (event.split(/\./)[1]).toUpperCase()
-        def threadId = Thread.currentThread().getId()
         def messageId = PushService.generatedMessageId(object, eventPush)
-        def content = Holders.grailsApplication.mainContext.pushService.bufferedThreads?.get(threadId)*.value*.find {
-            messageId == it.messageId
-        }?.content
-        return content?.size() ? new String(content[0].decodeBase64()) : null
+        return Holders.grailsApplication.mainContext.pushService.getBufferedObjectJSON(messageId)
     }
 }
\ No newline at end of file
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2020 Kagilum SAS.
+ *
+ * This file is part of iceScrum.
+ *
+ * iceScrum is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * iceScrum is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with iceScrum.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.icescrum.core.hook
+
+import org.apache.http.HttpResponse
+import org.apache.http.client.methods.HttpPost
+import org.apache.http.conn.scheme.Scheme
+import org.apache.http.conn.scheme.SchemeRegistry
+import org.apache.http.conn.ssl.SSLSocketFactory
+import org.apache.http.conn.ssl.TrustStrategy
+import org.apache.http.entity.ContentType
+import org.apache.http.entity.StringEntity
+import org.apache.http.impl.client.DefaultHttpClient
+import org.apache.http.impl.conn.PoolingClientConnectionManager
+import org.apache.http.impl.conn.SchemeRegistryFactory
+import org.apache.http.params.HttpConnectionParams
+import org.apache.http.util.EntityUtils
+
+import java.security.cert.X509Certificate
+
+/**
+ * HTTP client shared by all the hook deliveries: connections are pooled and kept alive between requests to the same endpoint.
+ * Hooks that ignore SSL issues use a separate pool that trusts any certificate, like HTTPBuilder.ignoreSSLIssues().
+ * It doesn't depend on Grails so it can be used against any HTTP server, e.g. a local stub.
+ */
+class HookDeliveryClient {
+
+    private final DefaultHttpClient client
+    private final DefaultHttpClient trustAllClient
+
+    HookDeliveryClient(int maxConnections, int maxConnectionsPerHost, int connectionTimeout, int socketTimeout) {
+        client = createClient(SchemeRegistryFactory.createDefault(), maxConnections, maxConnectionsPerHost, connectionTimeout, socketTimeout)
+        SchemeRegistry trustAllRegistry = SchemeRegistryFactory.createDefault()
+        trustAllRegistry.register(new Scheme('https', 443, new SSLSocketFactory({ X509Certificate[] chain, String authType -> true } as TrustStrategy, SSLSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER)))
+        trustAllClient = createClient(trustAllRegistry, maxConnections, maxConnectionsPerHost, connectionTimeout, socketTimeout)
+    }
+
+    // Throws an IOException if the request cannot be sent or the response cannot be read
+    Response post(String url, boolean ignoreSsl, Map<String, String> headers, String body) {
+        HttpPost post = new HttpPost(url)
+        headers?.each { String name, String value ->
+            post.setHeader(name, value)
+        }
+        post.entity = new StringEntity(body, ContentType.APPLICATION_JSON)
+        HttpResponse response = (ignoreSsl ? trustAllClient : client).execute(post)
+        try {
+            return new Response(
+                    status: response.statusLine.statusCode,
+                    statusLine: response.statusLine.toString(),
+                    body: response.entity ? EntityUtils.toString(response.entity) : null
+            )
+        } finally {
+            EntityUtils.consume(response.entity) // Releases the connection to the pool
+        }
+    }
+
+    void shutdown() {
+        client.connectionManager.shutdown()
+        trustAllClient.connectionManager.shutdown()
+    }
+
+    private static DefaultHttpClient createClient(SchemeRegistry schemeRegistry, int maxConnections, int maxConnectionsPerHost, int connectionTimeout, int socketTimeout) {
+        PoolingClientConnectionManager connectionManager = new PoolingClientConnectionManager(schemeRegistry)
+        connectionManager.maxTotal = maxConnections
+        connectionManager.defaultMaxPerRoute = maxConnectionsPerHost
+        DefaultHttpClient client = new DefaultHttpClient(connectionManager)
+        HttpConnectionParams.setConnectionTimeout(client.params, connectionTimeout)
+        HttpConnectionParams.setSoTimeout(client.params, socketTimeout)
+        return client
+    }
+
+    static class Response {
+
+        int status
+        String statusLine
+        String body
+
+        // Like HTTPBuilder, which was used before: redirects are not followed for POST but they are not failures either
+        boolean isSuccess() {
+            return status >= 200 && status < 400
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2020 Kagilum SAS.
+ *
+ * This file is part of iceScrum.
+ *
+ * iceScrum is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * iceScrum is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with iceScrum.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.icescrum.core.hook
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentMap
+
+/**
+ * In-memory index of the hook subscriptions: hook ids by event and workspace (global hooks have no workspace).
+ * Lookups read an immutable snapshot, so an event without subscribers costs a hash lookup.
+ * The snapshot is rebuilt on each change, which is fine as hooks are rarely created, updated or deleted.
+ * It may reference hooks that no longer exist or are disabled: callers must load and check the hooks they get.
+ */
+class HookSubscriptionIndex {
+
+    private final ConcurrentMap<Long, Subscription> subscriptions = new ConcurrentHashMap<Long, Subscription>()
+    private volatile Map<String, Map<String, Set<Long>>> hookIdsByEvent = [:]
+    private volatile long loadedAt = 0
+
+    synchronized void load(Collection rows) { // Rows of [hookId, workspaceType, workspaceId, event]
+        subscriptions.clear()
+        rows.groupBy { it[0] }.each { Long hookId, List hookRows ->
+            subscriptions[hookId] = new Subscription(hookRows[0][1], hookRows[0][2], hookRows.collect { it[3] as String })
+        }
+        loadedAt = System.currentTimeMillis()
+        rebuild()
+    }
+
+    synchronized void put(Long hookId, String workspaceType, Long workspaceId, Collection<String> events) {
+        subscriptions[hookId] = new Subscription(workspaceType, workspaceId, events)
+        rebuild()
+    }
+
+    synchronized void remove(Long hookId) {
+        if (subscriptions.remove(hookId) != null) {
+            rebuild()
+        }
+    }
+
+    boolean isSubscribed(Collection<String> events) {
+        Map<String, Map<String, Set<Long>>> index = hookIdsByEvent
+        return events.any { index.containsKey(it) }
+    }
+
+    Set<Long> getHookIds(String workspaceType, Long workspaceId, Collection<String> events) {
+        Map<String, Map<String, Set<Long>>> index = hookIdsByEvent
+        String workspaceKey = getWorkspaceKey(workspaceType, workspaceId)
+        Set<Long> hookIds = new LinkedHashSet<Long>()
+        events.each { String event ->
+            Set<Long> eventHookIds = index[event]?.get(workspaceKey)
+            if (eventHookIds) {
+                hookIds.addAll(eventHookIds)
+            }
+        }
+        return hookIds
+    }
+
+    long getLoadedAt() {
+        return loadedAt
+    }
+
+    Map getStats() {
+        return [hooks: subscriptions.size(), events: hookIdsByEvent.size(), loadedAt: loadedAt ? new Date(loadedAt) : null]
+    }
+
+    private void rebuild() {
+        Map<String, Map<String, Set<Long>>> index = [:]
+        subscriptions.each { Long hookId, Subscription subscription ->
+            String workspaceKey = getWorkspaceKey(subscription.workspaceType, subscription.workspaceId)
+            subscription.events.each { String event ->
+                Map<String, Set<Long>> hookIdsByWorkspace = index[event]
+                if (hookIdsByWorkspace == null) {
+                    hookIdsByWorkspace = [:]
+                    index[event] = hookIdsByWorkspace
+                }
+                Set<Long> hookIds = hookIdsByWorkspace[workspaceKey]
+                if (hookIds == null) {
+                    hookIds = new LinkedHashSet<Long>()
+                    hookIdsByWorkspace[workspaceKey] = hookIds
+                }
+                hookIds << hookId
+            }
+        }
+        hookIdsByEvent = index.collectEntries { String event, Map<String, Set<Long>> hookIdsByWorkspace ->
+            [(event): hookIdsByWorkspace.collectEntries { String workspaceKey, Set<Long> hookIds -> [(workspaceKey): hookIds.asImmutable()] }.asImmutable()]
+        }.asImmutable()
+    }
+
+    private static String getWorkspaceKey(String workspaceType, Long workspaceId) {
+        return workspaceType ? workspaceType + ':' + workspaceId : ''
+    }
+
+    private static class Subscription {
+
+        final String workspaceType
+        final Long workspaceId
+        final Set<String> events
+
+        Subscription(String workspaceType, Long workspaceId, Collection<String> events) {
+            this.workspaceType = workspaceType
+            this.workspaceId = workspaceId
+            this.events = new HashSet<String>(events ?: []).asImmutable()
+        }
+    }
+}
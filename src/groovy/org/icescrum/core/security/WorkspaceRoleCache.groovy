@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2020 Kagilum.
+ *
+ * This file is part of iceScrum.
+ *
+ * iceScrum is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * iceScrum is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with iceScrum.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.icescrum.core.security
+
+import com.google.common.cache.Cache
+import com.google.common.cache.CacheBuilder
+import com.google.common.cache.CacheStats
+import groovy.transform.EqualsAndHashCode
+
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Bounded cache of the roles computed by SecurityService for a (username, workspace) pair.
+ * Only the ACL / ownership part of a role is cached: admin and OAuth scope checks stay per request.
+ * Entries are invalidated by SecurityService when permissions, ownership, teams or workspace preferences change,
+ * the expiration is only a safety net for changes made outside of the application (e.g. direct database edits).
+ */
+class WorkspaceRoleCache {
+
+    private final Cache<RoleKey, Object> cache
+    private final AtomicLong generation = new AtomicLong()
+    private final AtomicLong invalidations = new AtomicLong()
+
+    WorkspaceRoleCache(long maximumSize, long expireAfterWriteMinutes) {
+        cache = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(expireAfterWriteMinutes, TimeUnit.MINUTES)
+                .recordStats()
+                .build()
+    }
+
+    def get(String username, String workspaceType, Long workspaceId, String role, Closure compute) {
+        RoleKey key = new RoleKey(username: username, workspaceType: workspaceType, workspaceId: workspaceId, role: role)
+        def value = cache.getIfPresent(key)
+        if (value == null) {
+            long computedGeneration = generation.get()
+            value = compute()
+            if (value != null && generation.get() == computedGeneration) { // Don't store a result computed before a concurrent invalidation
+                cache.put(key, value)
+            }
+        }
+        return value
+    }
+
+    void invalidateUser(String username) {
+        invalidate { RoleKey key -> key.username == username }
+    }
+
+    void invalidateWorkspace(String workspaceType, Long workspaceId) {
+        invalidate { RoleKey key -> key.workspaceType == workspaceType && key.workspaceId == workspaceId }
+    }
+
+    void invalidateAll() {
+        generation.incrementAndGet()
+        invalidations.incrementAndGet()
+        cache.invalidateAll()
+    }
+
+    Map getStats() {
+        CacheStats stats = cache.stats()
+        return [
+                size         : cache.size(),
+                hits         : stats.hitCount(),
+                misses       : stats.missCount(),
+                hitRate      : stats.hitRate().round(4),
+                evictions    : stats.evictionCount(),
+                invalidations: invalidations.get()
+        ]
+    }
+
+    private void invalidate(Closure<Boolean> matches) {
+        generation.incrementAndGet()
+        invalidations.incrementAndGet()
+        Iterator<RoleKey> keys = cache.asMap().keySet().iterator()
+        while (keys.hasNext()) {
+            if (matches(keys.next())) {
+                keys.remove()
+            }
+        }
+    }
+
+    @EqualsAndHashCode
+    private static class RoleKey {
+        String username
+        String workspaceType
+        Long workspaceId
+        String role
+    }
+}
@@ -66,6 +66,7 @@ import org.icescrum.core.security.WebScrumExpressionHandler
 import org.icescrum.core.services.ProjectService
 import org.icescrum.core.utils.DateUtils
 import org.icescrum.plugins.attachmentable.domain.Attachment
+import org.icescrum.plugins.attachmentable.domain.AttachmentLink
 import org.springframework.expression.Expression
 import org.springframework.security.access.expression.ExpressionUtils
 import org.springframework.security.core.context.SecurityContextHolder as SCH
@@ -81,6 +82,9 @@ import java.awt.Font
 import java.awt.Graphics2D
 import java.awt.RenderingHints
 import java.awt.image.BufferedImage
+import java.nio.channels.Channels
+import java.nio.channels.FileChannel
+import java.nio.channels.WritableByteChannel
 import java.security.MessageDigest
 import java.security.SignatureException
 import java.util.zip.ZipEntry
@@ -92,6 +96,7 @@ class ApplicationSupport {
     public static final CONFIG_ENV_NAME = 'icescrum_config_location'
     private static mySQLUTF8mb4 = null // Only one check per app start
     private static final log = LogFactory.getLog(this)
+    private static final int EXPORT_CHUNK_SIZE = 100
     public static final FilterChain DUMMY_CHAIN = [
             doFilter: { req, res -> throw new UnsupportedOperationException() }
     ] as FilterChain
@@ -710,39 +715,84 @@ class ApplicationSupport {
         return resp
     }
 
-    static void exportProjectZIP(Project project, outputStream) {
+    // The XML is written straight into its ZIP entry and the attachments are read by chunks then copied file to entry
+    static void exportProjectZIP(Project project, outputStream, ProgressSupport progress = null) {
         def attachmentableService = Holders.applicationContext.getBean("attachmentableService")
         def projectName = "${project.name.replaceAll("[^a-zA-Z\\s]", "").replaceAll(" ", "")}-${new Date().format('yyyy-MM-dd')}"
-        def tempdir = System.getProperty("java.io.tmpdir")
-        tempdir = (tempdir.endsWith("/") || tempdir.endsWith("\\")) ? tempdir : tempdir + System.getProperty("file.separator")
-        def xml = new File(tempdir + projectName + '.xml')
+        ZipOutputStream zout = new ZipOutputStream(outputStream)
         try {
-            xml.withWriter('UTF-8') { writer ->
-                ProjectService projectService = Holders.applicationContext.getBean('projectService')
-                projectService.export(writer, project)
-            }
-            def files = []
-            project.stories*.attachments.findAll { it.size() > 0 }?.each { it?.each { att -> files << attachmentableService.getFile(att) } }
-            project.features*.attachments.findAll { it.size() > 0 }?.each { it?.each { att -> files << attachmentableService.getFile(att) } }
-            project.releases*.attachments.findAll { it.size() > 0 }?.each { it?.each { att -> files << attachmentableService.getFile(att) } }
-            project.sprints*.attachments.findAll { it.size() > 0 }?.each { it?.each { att -> files << attachmentableService.getFile(att) } }
-            project.attachments.each { it?.each { att -> files << attachmentableService.getFile(att) } }
-            def tasks = []
-            project.stories.findAll { it.state < Story.STATE_PLANNED && it.tasks.size() > 0 }*.tasks*.each { tasks.addAll(it) }
-            project.releases*.each { it.sprints*.each { s -> tasks.addAll(s.tasks) } }
-            tasks*.attachments.findAll { it.size() > 0 }?.each {
-                it?.each { att -> files << attachmentableService.getFile(att) }
+            progress?.updateProgress(0, projectName + '.xml')
+            zout.putNextEntry(new ZipEntry(projectName + '.xml'))
+            Writer writer = new BufferedWriter(new OutputStreamWriter(zout, 'UTF-8'))
+            ProjectService projectService = Holders.applicationContext.getBean('projectService')
+            projectService.export(writer, project)
+            writer.flush() // Not closed, it would close the ZIP
+            zout.closeEntry()
+            List<Long> attachmentIds = findProjectAttachmentIds(project)
+            Set<String> entryNames = new HashSet<String>()
+            WritableByteChannel zipChannel = Channels.newChannel(zout)
+            int done = 0
+            attachmentIds.collate(EXPORT_CHUNK_SIZE).each { List<Long> chunk ->
+                List<Attachment> attachments = Attachment.getAll(chunk)
+                attachments.each { Attachment attachment ->
+                    File file = attachment ? attachmentableService.getFile(attachment) : null
+                    if (file?.exists()) {
+                        def entryName = '/attachments/' + file.name // ZIP spec says forward slash only
+                        if (entryNames.add(entryName)) {
+                            if (log.debugEnabled) {
+                                log.debug "Zipping : ${file.name}"
+                            }
+                            zout.putNextEntry(new ZipEntry(entryName))
+                            FileChannel fileChannel = new FileInputStream(file).channel
+                            try {
+                                long position = 0
+                                long size = fileChannel.size()
+                                while (position < size) {
+                                    position += fileChannel.transferTo(position, size - position, zipChannel)
+                                }
+                            } finally {
+                                fileChannel.close()
+                            }
+                            zout.closeEntry()
+                        }
+                    } else if (file && log.debugEnabled) {
+                        log.debug "Zipping : Warning file not found : ${file.name}"
+                    }
+                }
+                done += chunk.size()
+                progress?.updateProgress(((done * 99) / attachmentIds.size()) as int, 'attachments')
+                Attachment.withSession { session -> // Only the attachments, the project may still be used by the caller
+                    attachments.each { if (it) { session.evict(it) } }
+                }
             }
-            zipExportFile(outputStream, files, xml, 'attachments')
+            zout.close() // Writes the central directory
+            progress?.completeProgress(projectName)
         } catch (Exception e) {
-            if (log.debugEnabled) {
-                e.printStackTrace()
+            // The archive is left unfinished (no central directory) so it cannot be mistaken for a complete export
+            progress?.progressError(e.message)
+            log.error("Error while exporting project ${project.id}", e)
+            try {
+                outputStream.close()
+            } catch (IOException ignored) {
             }
-        } finally {
-            xml.delete()
+            throw e
         }
     }
 
+    // External attachments (url) have no file. Tasks are taken from the whole project: those of planned stories are also in sprints
+    private static List<Long> findProjectAttachmentIds(Project project) {
+        return AttachmentLink.executeQuery("""SELECT al.attachment.id
+                                              FROM AttachmentLink al
+                                              WHERE al.attachment.url IS NULL
+                                              AND ((al.type = 'project' AND al.attachmentRef = :projectId)
+                                                OR (al.type = 'story' AND al.attachmentRef IN (SELECT s.id FROM Story s WHERE s.backlog.id = :projectId))
+                                                OR (al.type = 'feature' AND al.attachmentRef IN (SELECT f.id FROM Feature f WHERE f.backlog.id = :projectId))
+                                                OR (al.type = 'release' AND al.attachmentRef IN (SELECT r.id FROM Release r WHERE r.parentProject.id = :projectId))
+                                                OR (al.type = 'sprint' AND al.attachmentRef IN (SELECT sp.id FROM Sprint sp WHERE sp.parentRelease.parentProject.id = :projectId))
+                                                OR (al.type = 'task' AND al.attachmentRef IN (SELECT t.id FROM Task t WHERE t.parentProject.id = :projectId)))
+                                              ORDER BY al.attachment.id""", [projectId: project.id])
+    }
+
     static List getSprintXDomain(Sprint sprint, List values) {
         def xDomain = []
         if (values) {
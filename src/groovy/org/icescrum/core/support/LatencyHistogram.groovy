@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2020 Kagilum SAS.
+ *
+ * This file is part of iceScrum.
+ *
+ * iceScrum is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * iceScrum is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with iceScrum.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.icescrum.core.support
+
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * Lock-free latency histogram with a fixed memory footprint: durations are counted in log-linear buckets
+ * (8 per power of two of microseconds), so percentiles are within 12.5% of the actual value.
+ * Recording is a few atomic increments, percentiles are only computed when a snapshot is taken.
+ */
+class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS
+    private static final int BUCKETS = SUB_BUCKETS * 40 // Up to 2^41µs, larger durations go to the last bucket
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS)
+    private final AtomicLong totalMicros = new AtomicLong()
+    private final AtomicLong maxMicros = new AtomicLong()
+
+    void record(long nanos) {
+        long micros = Math.max(0L, TimeUnit.NANOSECONDS.toMicros(nanos))
+        buckets.incrementAndGet(bucketIndex(micros))
+        totalMicros.addAndGet(micros)
+        long max = maxMicros.get()
+        while (micros > max && !maxMicros.compareAndSet(max, micros)) {
+            max = maxMicros.get()
+        }
+    }
+
+    // Durations in milliseconds. Concurrent records may be partially included, which is fine for monitoring
+    Map getSnapshot() {
+        long[] counts = new long[BUCKETS]
+        long count = 0
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i)
+            count += counts[i]
+        }
+        long max = maxMicros.get()
+        return [
+                count: count,
+                mean : count ? toMillis(totalMicros.get().doubleValue() / count) : 0d,
+                p50  : toMillis(percentile(counts, count, 0.5d, max)),
+                p90  : toMillis(percentile(counts, count, 0.9d, max)),
+                p95  : toMillis(percentile(counts, count, 0.95d, max)),
+                p99  : toMillis(percentile(counts, count, 0.99d, max)),
+                max  : toMillis(max)
+        ]
+    }
+
+    private static long percentile(long[] counts, long count, double quantile, long max) {
+        if (!count) {
+            return 0
+        }
+        long rank = (long) Math.ceil(count * quantile)
+        long seen = 0
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i]
+            if (seen >= rank) {
+                return Math.min(bucketUpperBound(i), max)
+            }
+        }
+        return max
+    }
+
+    private static int bucketIndex(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros)
+        int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1)
+        return Math.min((exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket, BUCKETS - 1)
+    }
+
+    private static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index
+        }
+        int shift = (index >> SUB_BUCKET_BITS) - 1
+        long lowerBound = ((long) (SUB_BUCKETS + (index & (SUB_BUCKETS - 1)))) << shift
+        return lowerBound + (1L << shift) - 1
+    }
+
+    private static double toMillis(double micros) {
+        return Math.round(micros) / 1000d
+    }
+}
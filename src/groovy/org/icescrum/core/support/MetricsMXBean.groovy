@@ -0,0 +1,34 @@
+/*
+ * Copyright (c) 2020 Kagilum SAS.
+ *
+ * This file is part of iceScrum.
+ *
+ * iceScrum is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * iceScrum is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with iceScrum.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.icescrum.core.support
+
+// Registered as org.icescrum:type=Metrics, values are flattened so they can be graphed by any JMX client
+interface MetricsMXBean {
+
+    // "controller/action group.p99" -> milliseconds
+    Map<String, Double> getRequestLatencies()
+
+    // Counters and gauges of push, events, hooks, emails and caches, e.g. "hooks.delivery.failed"
+    Map<String, Double> getCounters()
+
+    String getMetricsJson()
+
+    void resetRequestMetrics()
+}
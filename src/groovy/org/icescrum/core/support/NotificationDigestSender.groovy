@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2020 Kagilum SAS.
+ *
+ * This file is part of iceScrum.
+ *
+ * iceScrum is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * iceScrum is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with iceScrum.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.icescrum.core.support
+
+import groovy.json.JsonSlurper
+import org.springframework.util.StringUtils
+
+/**
+ * Sending policy of the queued notification emails: how many recipients are served per poll (rate limit),
+ * how the emails of a recipient are coalesced into a digest and when a failed sending is retried.
+ * Rendering and transport are provided by the caller (GSP views and the mail plugin in NotificationEmailService),
+ * so it doesn't depend on Grails and can be used against any SMTP server, e.g. a local stub.
+ */
+class NotificationDigestSender {
+
+    final int budget
+    final int maxAttempts
+    final long retryDelay
+
+    private final Closure renderItem    // (String view, Map model, Locale locale) -> String
+    private final Closure digestSubject // (int count, Locale locale) -> String
+    private final Closure transport     // (Map options) -> void, same options as NotificationEmailService.send, throws if the email cannot be sent
+
+    // Durations in seconds, as in the configuration
+    NotificationDigestSender(long maxPerMinute, long pollInterval, int maxAttempts, long retryDelay, Closure renderItem, Closure digestSubject, Closure transport) {
+        this.budget = Math.max(1L, (maxPerMinute * pollInterval).intdiv(60L) as long) as int
+        this.maxAttempts = maxAttempts
+        this.retryDelay = retryDelay * 1000L
+        this.renderItem = renderItem
+        this.digestSubject = digestSubject
+        this.transport = transport
+    }
+
+    /**
+     * Sends the items ([locale, subject, view, model as JSON], oldest first) of a recipient synchronously so that failures can be retried:
+     * a single item is sent as is, several ones are rendered and sent as one digest in the locale of the latest one.
+     * Returns true if a digest has been sent.
+     */
+    boolean send(String email, List<Map> items) {
+        Locale locale = items.last().locale ? StringUtils.parseLocaleString(items.last().locale) : Locale.default
+        JsonSlurper slurper = new JsonSlurper()
+        if (items.size() == 1) {
+            Map item = items.first()
+            transport([to: email, subject: item.subject, view: item.view, model: slurper.parseText(item.model) + [locale: locale]])
+            return false
+        }
+        List<String> renderedItems = items.collect { Map item ->
+            renderItem(item.view, slurper.parseText(item.model) + [locale: locale], locale)
+        }
+        transport([to: email, subject: digestSubject(items.size(), locale), view: '/emails-templates/digest', model: [locale: locale, items: renderedItems]])
+        return true
+    }
+
+    // Exponential backoff after the given number of failed attempts, null if the emails must be dropped
+    Date getNextAttempt(int attempts, long now = System.currentTimeMillis()) {
+        if (attempts >= maxAttempts) {
+            return null
+        }
+        return new Date(now + retryDelay * (1L << (attempts - 1)))
+    }
+}
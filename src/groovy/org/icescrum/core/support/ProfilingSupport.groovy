@@ -27,84 +27,107 @@ import grails.util.Holders
 import org.apache.commons.logging.LogFactory
 
 import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentMap
+import java.util.concurrent.TimeUnit
 
+/**
+ * Measures the time spent by request (controller/action) and by group of operations between startProfiling and endProfiling.
+ * The durations of each request are recorded in latency histograms by action and group, exposed by MetricsService,
+ * unless icescrum.metrics.enable is false. When icescrum.profiling.enable is true, the details are also logged at the end of each request.
+ */
 class ProfilingSupport {
 
     private static final log = LogFactory.getLog(this)
-    private static profilingDataByThread = new ConcurrentHashMap<Long, HashMap<String, ProfilingData>>()
+    private static final ThreadLocal<ProfilingRequest> currentRequest = new ThreadLocal<ProfilingRequest>()
+    private static final ConcurrentMap<String, ConcurrentMap<String, LatencyHistogram>> histogramsByAction = new ConcurrentHashMap<String, ConcurrentMap<String, LatencyHistogram>>()
 
     static void enableProfiling(ajax, controllerName, actionName) {
-        if (!Holders.grailsApplication.config.icescrum.profiling.enable) {
+        def config = Holders.grailsApplication.config.icescrum
+        boolean logEnabled = config.profiling.enable ? true : false
+        boolean metricsEnabled = config.metrics.enable instanceof Boolean ? config.metrics.enable : true
+        if (!logEnabled && !metricsEnabled) {
+            currentRequest.remove()
             return
         }
-        def threadId = Thread.currentThread().getId()
-        log.info('***')
-        log.info("[Profiler-$threadId] Enable profiling for ${ajax ? 'ajax' : ''} request $controllerName/$actionName")
-        profilingDataByThread.putIfAbsent(threadId, new HashMap<String, ProfilingData>())
+        currentRequest.set(new ProfilingRequest(action: "$controllerName/$actionName", logEnabled: logEnabled, metricsEnabled: metricsEnabled))
+        if (logEnabled) {
+            def threadId = Thread.currentThread().getId()
+            log.info('***')
+            log.info("[Profiler-$threadId] Enable profiling for ${ajax ? 'ajax' : ''} request $controllerName/$actionName")
+        }
         startProfiling('total', 'total')
     }
 
     static void startProfiling(String name, String group) {
-        if (!Holders.grailsApplication.config.icescrum.profiling.enable) {
-            return
-        }
-        def threadId = Thread.currentThread().getId()
-        def threadData = profilingDataByThread.get(threadId)
-        if (threadData != null) {
+        ProfilingRequest request = currentRequest.get()
+        if (request != null) {
             def profilingId = group + '-' + name
-            def profilingData = threadData[profilingId]
+            def profilingData = request.data[profilingId]
             if (!profilingData) {
                 profilingData = new ProfilingData(group: group)
-                threadData[profilingId] = profilingData
-            } else if (profilingData.start) {
-                log.info("[Profiler-$threadId] [$profilingId]\t Error profiling already in progress on this ID, the values will not be accurate")
+                request.data[profilingId] = profilingData
+            } else if (profilingData.start != null && request.logEnabled) {
+                log.info("[Profiler-${Thread.currentThread().getId()}] [$profilingId]\t Error profiling already in progress on this ID, the values will not be accurate")
             }
-            profilingData.start = new Date().getTime()
+            profilingData.start = System.nanoTime()
         }
     }
 
     static void endProfiling(String name, String group) {
-        if (!Holders.grailsApplication.config.icescrum.profiling.enable) {
-            return
-        }
-        def threadId = Thread.currentThread().getId()
-        def threadData = profilingDataByThread.get(threadId)
-        if (threadData != null) {
+        ProfilingRequest request = currentRequest.get()
+        if (request != null) {
             def profilingId = group + '-' + name
-            def profilingData = threadData[profilingId]
-            if (profilingData && profilingData.start) {
-                profilingData.spent << (new Date().getTime()) - profilingData.start
+            def profilingData = request.data[profilingId]
+            if (profilingData && profilingData.start != null) {
+                profilingData.spent << System.nanoTime() - profilingData.start
                 profilingData.start = null
-            } else {
-                log.info("[Profiler-$threadId] [$profilingId]\t Error profiling not started on this ID")
+            } else if (request.logEnabled) {
+                log.info("[Profiler-${Thread.currentThread().getId()}] [$profilingId]\t Error profiling not started on this ID")
             }
         }
     }
 
     static void reportProfiling() {
-        if (!Holders.grailsApplication.config.icescrum.profiling.enable) {
+        ProfilingRequest request = currentRequest.get()
+        if (request == null) {
             return
         }
         endProfiling('total', 'total')
-        def threadId = Thread.currentThread().getId()
-        def threadData = profilingDataByThread.remove(threadId)
-        if (threadData != null) {
+        currentRequest.remove()
+        Map<String, List<ProfilingData>> dataByGroup = request.data.values().groupBy { it.group }
+        if (request.metricsEnabled) {
+            ConcurrentMap<String, LatencyHistogram> histograms = histogramsByAction.get(request.action)
+            if (histograms == null) {
+                histogramsByAction.putIfAbsent(request.action, new ConcurrentHashMap<String, LatencyHistogram>())
+                histograms = histogramsByAction.get(request.action)
+            }
+            dataByGroup.each { String group, List<ProfilingData> entries ->
+                LatencyHistogram histogram = histograms.get(group)
+                if (histogram == null) {
+                    histograms.putIfAbsent(group, new LatencyHistogram())
+                    histogram = histograms.get(group)
+                }
+                histogram.record((Long) entries.sum { it.totalSpent })
+            }
+        }
+        if (request.logEnabled) {
+            def threadId = Thread.currentThread().getId()
             log.info("* details ")
-            threadData.sort { it.value.totalSpent }.each { profilingId, profilingData ->
-                def totalSpent = profilingData.totalSpent
+            request.data.sort { it.value.totalSpent }.each { profilingId, profilingData ->
+                def totalSpent = toMillis(profilingData.totalSpent)
                 if (totalSpent > 5) {
                     log.info("[Profiler-$threadId] [$profilingId]\t ${totalSpent}ms")
                     if (profilingData.spent.size() > 1) {
                         profilingData.spent.each {
-                            log.info("[Profiler-$threadId] [$profilingId]\t --${it}ms")
+                            log.info("[Profiler-$threadId] [$profilingId]\t --${toMillis(it)}ms")
                         }
                     }
                 }
             }
             log.info('* by group *')
-            threadData.groupBy { it.value.group }?.collect { group, entries ->
-                [group: group, totalSpentByGroup: entries*.value.sum { it.totalSpent }, cycles: entries*.value.sum { it.spent.size() }]
-            }?.sort { it.totalSpentByGroup }?.each {
+            dataByGroup.collect { group, entries ->
+                [group: group, totalSpentByGroup: toMillis(entries.sum { it.totalSpent }), cycles: entries.sum { it.spent.size() }]
+            }.sort { it.totalSpentByGroup }.each {
                 if (it.totalSpentByGroup > 5) {
                     log.info("[Profiler-$threadId] [$it.group]\t ${it.cycles > 1 ? "(x$it.cycles)" : ''} ${it.totalSpentByGroup}ms")
                 }
@@ -113,8 +136,27 @@ class ProfilingSupport {
         }
     }
 
+    // Latency percentiles by action then by group, in milliseconds
+    static Map<String, Map<String, Map>> getRequestMetrics() {
+        return histogramsByAction.collectEntries { String action, Map<String, LatencyHistogram> histograms ->
+            [(action): histograms.collectEntries { String group, LatencyHistogram histogram -> [(group): histogram.snapshot] }]
+        }.sort()
+    }
+
     static void clearProfiling() {
-        profilingDataByThread.clear()
+        currentRequest.remove()
+        histogramsByAction.clear()
+    }
+
+    private static long toMillis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos)
+    }
+
+    private static class ProfilingRequest {
+        String action
+        boolean logEnabled
+        boolean metricsEnabled
+        Map<String, ProfilingData> data = [:]
     }
 
     private static class ProfilingData {
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2020 Kagilum.
+ *
+ * This file is part of iceScrum.
+ *
+ * iceScrum is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * iceScrum is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with iceScrum.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.icescrum.core.utils
+
+import org.icescrum.core.domain.Activity
+
+/**
+ * Merged activities of a story, its tasks and its acceptance tests, latest first, read lazily by pages from the activity indexes
+ * with keyset pagination (date then id of the last activity read) instead of loading all the children and their activities.
+ * Can be iterated several times, each iteration runs its own queries. Rendered as a JSON array by ActivityTimelineMarshaller.
+ */
+class ActivityTimeline implements Iterable<Activity> {
+
+    static final int PAGE_SIZE = 100
+
+    final Long storyId
+    final Activity after
+    final Integer limit
+
+    ActivityTimeline(Long storyId, Activity after = null, Integer limit = null) {
+        this.storyId = storyId
+        this.after = after
+        this.limit = limit
+    }
+
+    // Activities older than the given one, to get the next page of a paginated timeline
+    ActivityTimeline olderThan(Activity activity, Integer limit = this.limit) {
+        return new ActivityTimeline(storyId, activity, limit)
+    }
+
+    @Override
+    Iterator<Activity> iterator() {
+        return new Iterator<Activity>() {
+
+            private Iterator<Activity> page = Collections.emptyIterator()
+            private Activity last = after
+            private int read = 0
+            private boolean exhausted = false
+
+            @Override
+            boolean hasNext() {
+                if (limit != null && read >= limit) {
+                    return false
+                }
+                if (!page.hasNext() && !exhausted) {
+                    int max = limit != null ? Math.min(PAGE_SIZE, limit - read) : PAGE_SIZE
+                    List<Activity> activities = Activity.findAllInStoryTimeline(storyId, last, max)
+                    exhausted = activities.size() < max
+                    page = activities.iterator()
+                }
+                return page.hasNext()
+            }
+
+            @Override
+            Activity next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException()
+                }
+                last = page.next()
+                read++
+                return last
+            }
+
+            @Override
+            void remove() {
+                throw new UnsupportedOperationException()
+            }
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2020 Kagilum.
+ *
+ * This file is part of iceScrum.
+ *
+ * iceScrum is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * iceScrum is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with iceScrum.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.icescrum.core.utils
+
+import grails.converters.JSON
+import org.codehaus.groovy.grails.web.converters.exceptions.ConverterException
+import org.codehaus.groovy.grails.web.converters.marshaller.ObjectMarshaller
+import org.codehaus.groovy.grails.web.json.JSONWriter
+import org.icescrum.core.domain.Activity
+
+// Writes the activities of a timeline to the JSON writer as they are read, rendered ones are evicted from the session to keep it small
+class ActivityTimelineMarshaller implements ObjectMarshaller<JSON> {
+
+    @Override
+    boolean supports(Object object) {
+        return object instanceof ActivityTimeline
+    }
+
+    @Override
+    void marshalObject(Object object, JSON json) throws ConverterException {
+        JSONWriter writer = json.writer
+        writer.array()
+        Activity.withSession { session ->
+            ((ActivityTimeline) object).each { Activity activity ->
+                json.convertAnother(activity)
+                session.evict(activity)
+            }
+        }
+        writer.endArray()
+    }
+}
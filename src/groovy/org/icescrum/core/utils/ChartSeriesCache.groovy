@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2020 Kagilum.
+ *
+ * This file is part of iceScrum.
+ *
+ * iceScrum is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * iceScrum is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with iceScrum.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.icescrum.core.utils
+
+import com.google.common.cache.Cache
+import com.google.common.cache.CacheBuilder
+import com.google.common.cache.CacheStats
+import groovy.transform.EqualsAndHashCode
+
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Bounded cache of chart series (lists of points) by chart and timebox.
+ * Historical series are built from persisted cliches and only change when cliches are created or removed (sprint / release events),
+ * current series depend on the live stories and tasks of the project and are also evicted by story and task events.
+ * Current series are keyed by day so a new day starts a new series.
+ */
+class ChartSeriesCache {
+
+    private final Cache<SeriesKey, List> cache
+    private final AtomicLong generation = new AtomicLong()
+    private final AtomicLong invalidations = new AtomicLong()
+
+    ChartSeriesCache(long maximumSize, long expireAfterWriteMinutes) {
+        cache = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(expireAfterWriteMinutes, TimeUnit.MINUTES)
+                .recordStats()
+                .build()
+    }
+
+    List getHistorical(String chart, Long projectId, Long timeboxId, Closure<List> compute) {
+        return get(new SeriesKey(chart: chart, projectId: projectId, timeboxId: timeboxId, current: false), compute)
+    }
+
+    List getCurrent(String chart, Long projectId, Long timeboxId, Closure<List> compute) {
+        return get(new SeriesKey(chart: chart, projectId: projectId, timeboxId: timeboxId, current: true, day: new Date().clearTime().time), compute)
+    }
+
+    void invalidateProject(Long projectId, boolean currentOnly) {
+        generation.incrementAndGet()
+        invalidations.incrementAndGet()
+        Iterator<SeriesKey> keys = cache.asMap().keySet().iterator()
+        while (keys.hasNext()) {
+            SeriesKey key = keys.next()
+            if (key.projectId == projectId && (key.current || !currentOnly)) {
+                keys.remove()
+            }
+        }
+    }
+
+    void invalidateAll() {
+        generation.incrementAndGet()
+        invalidations.incrementAndGet()
+        cache.invalidateAll()
+    }
+
+    Map getStats() {
+        CacheStats stats = cache.stats()
+        return [
+                size         : cache.size(),
+                hits         : stats.hitCount(),
+                misses       : stats.missCount(),
+                hitRate      : stats.hitRate().round(4),
+                evictions    : stats.evictionCount(),
+                invalidations: invalidations.get()
+        ]
+    }
+
+    private List get(SeriesKey key, Closure<List> compute) {
+        List series = cache.getIfPresent(key)
+        if (series == null) {
+            long computedGeneration = generation.get()
+            series = copy(compute() ?: [])
+            if (generation.get() == computedGeneration) { // Don't store a series computed before a concurrent invalidation
+                cache.put(key, series.asImmutable())
+            }
+        }
+        return copy(series) // Callers are free to alter the points they get
+    }
+
+    private static List copy(List series) {
+        return series.collect { point -> point instanceof Map ? new LinkedHashMap(point) : point }
+    }
+
+    @EqualsAndHashCode
+    private static class SeriesKey {
+        String chart
+        Long projectId
+        Long timeboxId
+        boolean current
+        Long day
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2020 Kagilum.
+ *
+ * This file is part of iceScrum.
+ *
+ * iceScrum is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * iceScrum is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with iceScrum.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.icescrum.core.utils
+
+import grails.util.GrailsNameUtils
+import org.codehaus.groovy.grails.commons.GrailsClassUtils
+import org.codehaus.groovy.grails.commons.GrailsDomainClass
+import org.codehaus.groovy.grails.commons.GrailsDomainClassProperty
+import org.springframework.beans.BeanUtils
+
+import java.beans.PropertyDescriptor
+import java.lang.reflect.Method
+
+/**
+ * Everything JSONIceScrumDomainClassMarshaller needs to know to render a domain class with a given request config,
+ * computed once: the properties to render and how, the extra properties to include and their accessors.
+ * Immutable once built so it can be shared between threads.
+ */
+class DomainMarshallingPlan {
+
+    enum Kind {
+        ENUM, SIMPLE, CONVERT, SHORT, MANY
+    }
+
+    // The only request config entries a plan depends on
+    private static final List<String> REQUEST_CONFIG_FLAGS = ['excludeAll', 'overrideAll', 'overrideInclude', 'overrideWithIds', 'overrideTextile', 'overrideAsShort']
+    private static final List<String> REQUEST_CONFIG_NAMES = ['dontExclude', 'exclude', 'include', 'withIds', 'textile', 'asShort']
+
+    final GrailsDomainClass domainClass
+    final String className
+    final Map config
+    final List<PropertyPlan> properties
+    final List<String> includes
+    final List<String> withIds
+    final List<String> textiles
+    final List<String> asShort
+
+    private final Map<String, PropertyAccessor> accessors
+    private final Map<String, Object> security
+
+    DomainMarshallingPlan(GrailsDomainClass domainClass, Map config, Map requestConfig) {
+        this.domainClass = domainClass
+        this.className = GrailsNameUtils.getShortName(domainClass.clazz.name)
+        this.config = config
+        Class clazz = domainClass.clazz
+        List<GrailsDomainClassProperty> persistentProperties = domainClass.persistentProperties.toList()
+        if (requestConfig?.excludeAll) {
+            persistentProperties = requestConfig?.dontExclude ? persistentProperties.findAll { requestConfig.dontExclude.contains(it.name) } : []
+        } else {
+            def excludes = [] as Set
+            [config?.exclude, requestConfig?.exclude, config?.include, requestConfig?.include].each { // Includes are treated separately after the main loop
+                if (it) {
+                    excludes.addAll(it)
+                }
+            }
+            persistentProperties.removeAll { it.name in excludes }
+        }
+        Set<String> idsProperties = new HashSet<String>((config?.withIds ?: []) + (requestConfig?.withIds ?: []))
+        this.properties = persistentProperties.collect { GrailsDomainClassProperty property ->
+            new PropertyPlan(property, new PropertyAccessor(clazz, property.name), idsProperties.contains(property.name))
+        }.asImmutable()
+        Set<String> propertyNames = properties*.name as Set
+        boolean overrideAll = requestConfig?.overrideAll as boolean
+        this.includes = merge(config?.include, requestConfig?.include, requestConfig?.overrideInclude || overrideAll)
+        this.withIds = merge(config?.withIds, requestConfig?.withIds, requestConfig?.overrideWithIds || overrideAll).findAll { !propertyNames.contains(it) }.asImmutable()
+        this.textiles = merge(config?.textile, requestConfig?.textile, requestConfig?.overrideTextile || overrideAll)
+        this.asShort = merge(config?.asShort, requestConfig?.asShort, requestConfig?.overrideAsShort || overrideAll)
+        Map<String, PropertyAccessor> accessors = [:]
+        (includes + withIds + textiles + asShort).each { String name ->
+            if (!accessors.containsKey(name)) {
+                accessors[name] = new PropertyAccessor(clazz, name)
+            }
+        }
+        this.accessors = accessors.asImmutable()
+        Map<String, Object> security = [:]
+        accessors.keySet().each { String name ->
+            def granted = config?.security?."$name"
+            security[name] = granted != null ? granted : true
+        }
+        this.security = security.asImmutable()
+    }
+
+    // Equal for request configs that lead to the same plan, even if they are new maps with other entries (e.g. closures) for each request
+    static List getRequestConfigIdentity(Map requestConfig) {
+        if (requestConfig == null) {
+            return null
+        }
+        List identity = REQUEST_CONFIG_FLAGS.collect { String key -> requestConfig[key] as boolean }
+        REQUEST_CONFIG_NAMES.each { String key ->
+            def names = requestConfig[key]
+            identity << (names ? names.collect { it.toString() } : null)
+        }
+        return identity.asImmutable()
+    }
+
+    // Associations rendered as a count, which can be prefetched for a whole list of objects
+    List<PropertyPlan> getCountedProperties() {
+        return properties.findAll { it.kind == Kind.MANY && it.collection && !it.renderIds }
+    }
+
+    def getValue(Object object, String name) {
+        PropertyAccessor accessor = accessors[name]
+        return accessor ? accessor.get(object) : object."$name"
+    }
+
+    // Either a boolean or a Closure(value, grailsApplication, user)
+    def getSecurity(String name) {
+        return security.containsKey(name) ? security[name] : true
+    }
+
+    private static List<String> merge(configValues, requestConfigValues, boolean override) {
+        List<String> names = []
+        if (!override && configValues) {
+            names.addAll(configValues)
+        }
+        if (requestConfigValues) {
+            names.addAll(requestConfigValues)
+        }
+        return names.asImmutable()
+    }
+
+    static class PropertyPlan {
+
+        final String name
+        final Kind kind
+        final PropertyAccessor accessor
+        final GrailsDomainClass referencedDomainClass
+        final GrailsDomainClassProperty referencedIdProperty
+        final boolean renderIds
+        final boolean collection
+
+        PropertyPlan(GrailsDomainClassProperty property, PropertyAccessor accessor, boolean renderIds) {
+            this.name = property.name
+            this.accessor = accessor
+            this.renderIds = renderIds
+            this.collection = Collection.isAssignableFrom(property.type)
+            this.referencedDomainClass = property.isAssociation() ? property.referencedDomainClass : null
+            this.referencedIdProperty = referencedDomainClass?.identifier
+            if (property.type.isEnum()) {
+                kind = Kind.ENUM
+            } else if (!property.isAssociation()) {
+                kind = Kind.SIMPLE
+            } else if (referencedDomainClass == null || property.isEmbedded() || GrailsClassUtils.isJdk5Enum(property.type)) {
+                kind = Kind.CONVERT
+            } else if (property.isOneToOne() || property.isManyToOne()) {
+                kind = Kind.SHORT
+            } else {
+                kind = Kind.MANY
+            }
+        }
+    }
+
+    static class PropertyAccessor {
+
+        final String name
+        private final Method readMethod
+
+        PropertyAccessor(Class clazz, String name) {
+            this.name = name
+            PropertyDescriptor descriptor = BeanUtils.getPropertyDescriptor(clazz, name)
+            this.readMethod = descriptor?.readMethod
+            this.readMethod?.accessible = true
+        }
+
+        def get(Object object) {
+            return readMethod ? readMethod.invoke(object) : object."$name" // Fallback for properties added through the metaClass
+        }
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) 2020 Kagilum.
+ *
+ * This file is part of iceScrum.
+ *
+ * iceScrum is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * iceScrum is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with iceScrum.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.icescrum.core.utils
+
+import grails.converters.JSON
+import org.codehaus.groovy.grails.web.converters.exceptions.ConverterException
+import org.codehaus.groovy.grails.web.converters.marshaller.json.CollectionMarshaller
+
+// Prefetches the association counts of the domain objects of the collection before rendering them
+class JSONIceScrumCollectionMarshaller extends CollectionMarshaller {
+
+    private JSONIceScrumDomainClassMarshaller domainClassMarshaller
+
+    JSONIceScrumCollectionMarshaller(JSONIceScrumDomainClassMarshaller domainClassMarshaller) {
+        this.domainClassMarshaller = domainClassMarshaller
+    }
+
+    @Override
+    void marshalObject(Object object, JSON json) throws ConverterException {
+        boolean outermost = domainClassMarshaller.prefetchCounts((Collection) object)
+        try {
+            super.marshalObject(object, json)
+        } finally {
+            if (outermost) {
+                domainClassMarshaller.clearPrefetchedCounts()
+            }
+        }
+    }
+}
@@ -22,6 +22,8 @@
  */
 package org.icescrum.core.utils
 
+import com.google.common.cache.Cache
+import com.google.common.cache.CacheBuilder
 import grails.converters.JSON
 import grails.util.GrailsNameUtils
 import org.codehaus.groovy.grails.commons.*
@@ -31,16 +33,26 @@ import org.codehaus.groovy.grails.support.proxy.ProxyHandler
 import org.codehaus.groovy.grails.web.converters.exceptions.ConverterException
 import org.codehaus.groovy.grails.web.converters.marshaller.json.DomainClassMarshaller
 import org.codehaus.groovy.grails.web.json.JSONWriter
+import groovy.transform.EqualsAndHashCode
 import org.icescrum.core.domain.User
-import org.springframework.beans.BeanWrapper
-import org.springframework.beans.BeanWrapperImpl
 import org.springframework.web.context.request.RequestContextHolder
 
+import java.util.concurrent.ConcurrentHashMap
+
 public class JSONIceScrumDomainClassMarshaller extends DomainClassMarshaller {
 
+    private static final int MAX_PLANS = 500 // Distinct request configs are expected to be a handful, the least recently used plans are evicted if they are not
+    private static final int COUNT_BATCH_SIZE = 500
+    private static final String REQUEST_CONFIG_IDENTITIES = 'icescrumMarshallerConfigIdentities'
+
+    // Association counts prefetched for the collection being rendered: "class#property" -> (id -> count)
+    private static final ThreadLocal<Map<String, Map<Object, Number>>> prefetchedCounts = new ThreadLocal<Map<String, Map<Object, Number>>>()
+
     private ProxyHandler proxyHandler
     private Map propertiesMap
     private GrailsApplication grailsApplication
+    private final ConcurrentHashMap<Class, Boolean> supportedClasses = new ConcurrentHashMap<Class, Boolean>()
+    private final Cache<PlanKey, DomainMarshallingPlan> plans = CacheBuilder.newBuilder().maximumSize(MAX_PLANS).build()
 
     public JSONIceScrumDomainClassMarshaller(GrailsApplication grailsApplication, Map propertiesMap) {
         super(false, grailsApplication)
@@ -50,115 +62,84 @@ public class JSONIceScrumDomainClassMarshaller extends DomainClassMarshaller {
     }
 
     public boolean supports(Object object) {
-        def configName = GrailsNameUtils.getShortName(object.getClass()).toLowerCase()
-        return (DomainClassArtefactHandler.isDomainClass(object.getClass()) && propertiesMap."$configName" != null)
+        Class clazz = object.getClass()
+        Boolean supported = supportedClasses.get(clazz)
+        if (supported == null) {
+            def configName = GrailsNameUtils.getShortName(clazz).toLowerCase()
+            supported = DomainClassArtefactHandler.isDomainClass(clazz) && propertiesMap."$configName" != null
+            supportedClasses.put(clazz, supported)
+        }
+        return supported
     }
 
     public void marshalObject(Object value, JSON json) throws ConverterException {
         JSONWriter writer = json.writer
         value = proxyHandler.unwrapIfProxy(value)
-        Class<?> clazz = value.getClass()
-        GrailsDomainClass domainClass = grailsApplication.getDomainClass(clazz.name)
-        BeanWrapper beanWrapper = new BeanWrapperImpl(value)
-        def configName = GrailsNameUtils.getShortName(clazz).toLowerCase()
-        def config = propertiesMap."$configName"
-        def requestConfig = getRequestConfig(configName)
+        DomainMarshallingPlan plan = getPlan(value.getClass())
+        GrailsDomainClass domainClass = plan.domainClass
 
         def idValue = extractValue(value, domainClass.identifier)
-        def classValue = GrailsNameUtils.getShortName(domainClass.clazz.name)
 
         writer.object()
-        writer.key('class').value(classValue)
+        writer.key('class').value(plan.className)
         json.property('id', idValue)
 
-        List<GrailsDomainClassProperty> properties = domainClass.persistentProperties.toList()
-        if (requestConfig?.excludeAll) {
-            properties = requestConfig?.dontExclude ? properties.findAll { requestConfig.dontExclude.contains(it.name) } : []
-        } else {
-            def excludes = []
-            if (config.exclude) {
-                excludes.addAll(config.exclude)
-            }
-            if (requestConfig?.exclude) {
-                excludes.addAll(requestConfig.exclude)
-            }
-            if (config.include) { // Treated separately after the main loop
-                excludes.addAll(config.include)
-            }
-            if (requestConfig?.include) {
-                excludes.addAll(requestConfig.include)
-            }
-            properties.removeAll { it.name in excludes }
+        plan.properties.each { DomainMarshallingPlan.PropertyPlan property ->
+            marshallProperty(property, value, idValue, writer, json, domainClass)
         }
-        properties.each { GrailsDomainClassProperty property ->
-            marshallProperty(property, beanWrapper, writer, json, domainClass, config, requestConfig)
+        plan.includes.each {
+            propertyInclude(json, writer, value, plan, it)
         }
-
-        if (!requestConfig?.overrideInclude && !requestConfig?.overrideAll) {
-            config.include?.each {
-                propertyInclude(json, writer, value, config, it)
-            }
-        }
-        requestConfig?.include?.each {
-            propertyInclude(json, writer, value, config, it)
-        }
-        if (!requestConfig?.overrideWithIds && !requestConfig?.overrideAll) {
-            config.withIds?.each {
-                propertyWithIds(writer, properties, value, config, it)
-            }
+        plan.withIds.each {
+            propertyWithIds(writer, value, plan, it)
         }
-        requestConfig?.withIds?.each {
-            propertyWithIds(writer, properties, value, config, it)
-        }
-        if (!requestConfig?.overrideTextile && !requestConfig?.overrideAll) {
-            config.textile?.each {
-                propertyTextile(writer, value, it)
-            }
-        }
-        requestConfig?.textile?.each {
-            propertyTextile(writer, value, it)
+        plan.textiles.each {
+            propertyTextile(writer, value, plan, it)
         }
 
         writer.endObject()
     }
 
-    private void marshallProperty(property, beanWrapper, writer, json, domainClass, config, requestConfig) {
-        Object propertyValue = beanWrapper.getPropertyValue(property.name)
-        if (property.type.isEnum()) {
-            writer.key(property.name)
-            json.convertAnother(propertyValue.toString())
-        } else if (!property.isAssociation()) {
-            writer.key(property.name)
-            json.convertAnother(propertyValue)
-        } else if (propertyValue == null) {
-            writer.key(property.name)
-            json.value(null)
-        } else {
-            GrailsDomainClass referencedDomainClass = property.referencedDomainClass
-            if (referencedDomainClass == null || property.isEmbedded() || GrailsClassUtils.isJdk5Enum(property.type)) {
+    private void marshallProperty(DomainMarshallingPlan.PropertyPlan property, value, idValue, writer, json, domainClass) {
+        Object propertyValue = property.accessor.get(value)
+        switch (property.kind) {
+            case DomainMarshallingPlan.Kind.ENUM:
                 writer.key(property.name)
-                json.convertAnother(propertyValue)
-            } else if (property.isOneToOne() || property.isManyToOne() || property.isEmbedded()) {
+                json.convertAnother(propertyValue.toString())
+                break
+            case DomainMarshallingPlan.Kind.SIMPLE:
                 writer.key(property.name)
-                asShortObject(propertyValue, json, referencedDomainClass.identifier, referencedDomainClass)
-            } else {
-                GrailsDomainClassProperty referencedIdProperty = referencedDomainClass.identifier
-                if (propertyValue instanceof Collection) {
+                json.convertAnother(propertyValue)
+                break
+            default:
+                if (propertyValue == null) {
+                    writer.key(property.name)
+                    json.value(null)
+                } else if (property.kind == DomainMarshallingPlan.Kind.CONVERT) {
+                    writer.key(property.name)
+                    json.convertAnother(propertyValue)
+                } else if (property.kind == DomainMarshallingPlan.Kind.SHORT) {
+                    writer.key(property.name)
+                    asShortObject(propertyValue, json, property.referencedIdProperty, property.referencedDomainClass)
+                } else if (propertyValue instanceof Collection) {
                     Collection o = (Collection) propertyValue
-                    if (config.withIds?.contains(property.name) || requestConfig?.withIds?.contains(property.name)) {
+                    if (property.renderIds) {
                         writer.key(property.name + '_ids')
                         writer.array()
                         for (Object el : o) {
                             writer.object()
-                            writer.key('id').value(extractValue(el, referencedIdProperty))
+                            writer.key('id').value(extractValue(el, property.referencedIdProperty))
                             writer.endObject()
                         }
                         writer.endArray()
                     } else if (!propertyValue.hasProperty(property.name + '_count')) {
-                        int count = domainClass.clazz.withSession { session ->
-                            session.createFilter(propertyValue, 'select count(*)').uniqueResult()
+                        Number count = prefetchedCounts.get()?.get(getCountKey(domainClass.clazz, property.name))?.get(idValue)
+                        if (count == null) {
+                            count = domainClass.clazz.withSession { session ->
+                                session.createFilter(propertyValue, 'select count(*)').uniqueResult()
+                            }
                         }
-                        writer.key(property.name + '_count').value(count)
+                        writer.key(property.name + '_count').value(count.intValue())
                     }
                 } else if (propertyValue instanceof Map) {
                     writer.key(property.name)
@@ -168,25 +149,21 @@ public class JSONIceScrumDomainClassMarshaller extends DomainClassMarshaller {
                         Object o = entry.value
                         writer.object()
                         writer.key(key)
-                        asShortObject(o, json, referencedIdProperty, referencedDomainClass)
+                        asShortObject(o, json, property.referencedIdProperty, property.referencedDomainClass)
                         writer.endObject()
                     }
                 }
-            }
         }
     }
 
-    private static void propertyTextile(def writer, def value, def it) {
-        def val = value.properties."$it"
+    private static void propertyTextile(def writer, def value, DomainMarshallingPlan plan, def it) {
+        def val = plan.getValue(value, it)
         writer.key(it + '_html').value(ServicesUtils.textileToHtml(val))
     }
 
-    private void propertyInclude(def json, def writer, def value, def config, def it) {
-        def granted = config.security?."$it" != null ? config.security?."$it" : true
-        User user = (User) grailsApplication.mainContext.springSecurityService.currentUser
-        granted = granted instanceof Closure ? granted(value, grailsApplication, user) : granted
-        if (granted) {
-            def val = value.properties."$it"
+    private void propertyInclude(def json, def writer, def value, DomainMarshallingPlan plan, def it) {
+        if (isGranted(value, plan, it)) {
+            def val = plan.getValue(value, it)
             if (val != null) {
                 writer.key(it);
                 json.convertAnother(val);
@@ -194,27 +171,31 @@ public class JSONIceScrumDomainClassMarshaller extends DomainClassMarshaller {
         }
     }
 
-    private void propertyWithIds(def writer, def properties, def value, def config, def it) {
-        if (!properties.collect { it.name }.contains(it)) {
-            def granted = config.security?."$it" != null ? config.security?."$it" : true
-            User user = (User) grailsApplication.mainContext.springSecurityService.currentUser
-            granted = granted instanceof Closure ? granted(value, grailsApplication, user) : granted
-            if (granted) {
-                def val = value.properties."$it"
-                if (val instanceof Collection) {
-                    writer.key(it + '_ids')
-                    writer.array()
-                    for (Object el : val) {
-                        writer.object()
-                        writer.key('id').value(el.id)
-                        writer.endObject()
-                    }
-                    writer.endArray()
+    private void propertyWithIds(def writer, def value, DomainMarshallingPlan plan, def it) {
+        if (isGranted(value, plan, it)) {
+            def val = plan.getValue(value, it)
+            if (val instanceof Collection) {
+                writer.key(it + '_ids')
+                writer.array()
+                for (Object el : val) {
+                    writer.object()
+                    writer.key('id').value(el.id)
+                    writer.endObject()
                 }
+                writer.endArray()
             }
         }
     }
 
+    private boolean isGranted(def value, DomainMarshallingPlan plan, def it) {
+        def granted = plan.getSecurity(it)
+        if (granted instanceof Closure) {
+            User user = (User) grailsApplication.mainContext.springSecurityService.currentUser
+            granted = granted(value, grailsApplication, user)
+        }
+        return granted
+    }
+
     @Override
     protected void asShortObject(Object refObj, JSON json, GrailsDomainClassProperty idProperty, GrailsDomainClass referencedDomainClass) throws ConverterException {
         Object idValue
@@ -231,24 +212,101 @@ public class JSONIceScrumDomainClassMarshaller extends DomainClassMarshaller {
         writer.key('class').value(GrailsNameUtils.getShortName(referencedDomainClass.name))
         writer.key('id').value(idValue)
 
-        def configName = GrailsNameUtils.getShortName(referencedDomainClass.name).toLowerCase()
-        def config = propertiesMap."$configName"
-        def requestConfig = getRequestConfig(configName)
-
-        if (!requestConfig?.overrideAsShort && !requestConfig?.overrideAll) {
-            config?.asShort?.each {
-                propertyInclude(json, writer, refObj, config, it)
+        DomainMarshallingPlan plan = getPlan(referencedDomainClass.clazz)
+        if (plan.asShort) {
+            refObj = proxyHandler.unwrapIfProxy(refObj)
+            plan.asShort.each {
+                propertyInclude(json, writer, refObj, plan, it)
             }
         }
-        requestConfig?.asShort?.each {
-            propertyInclude(json, writer, refObj, config, it)
-        }
 
         writer.endObject()
     }
 
-    private getRequestConfig(configName) {
+    /**
+     * Fetches with one grouped query per association the counts that will be rendered for the objects of the collection,
+     * instead of one query per object and association. Counts are kept until clearPrefetchedCounts is called,
+     * returns true if the caller is the outermost one and must clear them.
+     */
+    boolean prefetchCounts(Collection objects) {
+        Map<String, Map<Object, Number>> counts = prefetchedCounts.get()
+        boolean outermost = counts == null
+        if (outermost) {
+            counts = [:]
+            prefetchedCounts.set(counts)
+        }
+        if (objects.size() > 1) {
+            objects.findAll { it != null && supports(it) }.groupBy { it.getClass() }.each { Class clazz, List sameClassObjects ->
+                if (sameClassObjects.size() > 1) {
+                    List ids = sameClassObjects*.id.findAll { it != null }
+                    getPlan(clazz).countedProperties.each { DomainMarshallingPlan.PropertyPlan property ->
+                        String key = getCountKey(clazz, property.name)
+                        Map<Object, Number> propertyCounts = counts.get(key)
+                        if (propertyCounts == null) {
+                            propertyCounts = [:]
+                            counts.put(key, propertyCounts)
+                        }
+                        ids.findAll { !propertyCounts.containsKey(it) }.collate(COUNT_BATCH_SIZE).each { List batch ->
+                            batch.each { propertyCounts.put(it, 0) }
+                            clazz.executeQuery("""SELECT o.id, count(e)
+                                                 FROM ${clazz.name} o
+                                                 INNER JOIN o.${property.name} e
+                                                 WHERE o.id IN (:ids)
+                                                 GROUP BY o.id""", [ids: batch]).each { row ->
+                                propertyCounts.put(row[0], (Number) row[1])
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return outermost
+    }
+
+    void clearPrefetchedCounts() {
+        prefetchedCounts.remove()
+    }
+
+    private static String getCountKey(Class clazz, String propertyName) {
+        return clazz.name + '#' + propertyName
+    }
+
+    // The plan depends on the domain class and on the entries of the marshaller config of the current request that shape it, if any
+    private DomainMarshallingPlan getPlan(Class clazz) {
+        def configName = GrailsNameUtils.getShortName(clazz).toLowerCase()
         def request = RequestContextHolder.requestAttributes?.currentRequest
-        return request?.restAPI ? request?.restMarshaller?."$configName" : request?.marshaller?."$configName"
+        def requestConfig = request?.restAPI ? request?.restMarshaller?."$configName" : request?.marshaller?."$configName"
+        List requestConfigIdentity = null
+        if (requestConfig != null) { // Computed once per request config rather than for each rendered object
+            Map<Object, List> identities = (Map<Object, List>) request.getAttribute(REQUEST_CONFIG_IDENTITIES)
+            if (identities == null) {
+                identities = new IdentityHashMap<Object, List>()
+                request.setAttribute(REQUEST_CONFIG_IDENTITIES, identities)
+            }
+            requestConfigIdentity = identities.get(requestConfig)
+            if (requestConfigIdentity == null) {
+                requestConfigIdentity = DomainMarshallingPlan.getRequestConfigIdentity(requestConfig)
+                identities.put(requestConfig, requestConfigIdentity)
+            }
+        }
+        PlanKey key = new PlanKey(clazz, requestConfigIdentity)
+        DomainMarshallingPlan plan = plans.getIfPresent(key)
+        if (plan == null) {
+            GrailsDomainClass domainClass = grailsApplication.getDomainClass(clazz.name)
+            plan = new DomainMarshallingPlan(domainClass, propertiesMap."$configName", requestConfig)
+            plans.put(key, plan)
+        }
+        return plan
+    }
+
+    @EqualsAndHashCode
+    private static class PlanKey {
+        final Class clazz
+        final List requestConfigIdentity
+
+        PlanKey(Class clazz, List requestConfigIdentity) {
+            this.clazz = clazz
+            this.requestConfigIdentity = requestConfigIdentity
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2020 Kagilum.
+ *
+ * This file is part of iceScrum.
+ *
+ * iceScrum is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * iceScrum is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with iceScrum.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.icescrum.core.utils
+
+/**
+ * Rewrites the dense ranks of a list of elements.
+ * Small changes are saved one element at a time, like any change, so the version is checked and the second-level cache is updated entry by entry.
+ * Large shifts (e.g. all the stories after one inserted at the top of a big backlog) use set-based UPDATE VERSIONED statements instead:
+ * one per distinct delta and batch of ids, each incrementing the version, then the loaded entities are synchronized without being made dirty.
+ * A bulk statement evicts the whole cache region of the domain class, which is only worth it when many rows move.
+ * Elements that are new or have other pending changes are always saved the usual way so these changes are not lost.
+ */
+class RankUtils {
+
+    private static final int BATCH_SIZE = 500
+    private static final int BULK_THRESHOLD = 50
+
+    /**
+     * @param elements the loaded domain objects (same domain class) whose rank may change
+     * @param newRank closure returning the expected rank of an element
+     * @return the [element, previous rank] pairs of the elements whose rank has changed
+     */
+    static List<List> updateRanks(Class domainClass, Collection elements, Closure<Integer> newRank) {
+        List<List> changes = []
+        Map<Integer, List> shiftedByDelta = [:]
+        int shiftedCount = 0
+        elements.each { element ->
+            Integer rank = newRank(element)
+            if (rank == null || element.rank == rank) {
+                return
+            }
+            changes << [element, element.rank]
+            if (!element.id || element.isDirty() || element.rank == null) {
+                element.rank = rank
+                element.save()
+            } else {
+                int delta = rank - element.rank
+                if (!shiftedByDelta.containsKey(delta)) {
+                    shiftedByDelta[delta] = []
+                }
+                shiftedByDelta[delta] << element
+                shiftedCount++
+            }
+        }
+        if (shiftedCount < BULK_THRESHOLD) {
+            shiftedByDelta.each { Integer delta, List shifted ->
+                shifted.each { element ->
+                    element.rank += delta
+                    element.save()
+                }
+            }
+        } else {
+            Date now = new Date()
+            domainClass.withSession { session ->
+                shiftedByDelta.each { Integer delta, List shifted ->
+                    shifted*.id.collate(BATCH_SIZE).each { List<Long> ids ->
+                        domainClass.executeUpdate("UPDATE VERSIONED ${domainClass.name} e SET e.rank = e.rank + :delta, e.lastUpdated = :now WHERE e.id IN (:ids)", [delta: delta, now: now, ids: ids])
+                    }
+                    shifted.each { element ->
+                        session.setReadOnly(element, true) // The loaded state is replaced by the current one when made modifiable again
+                        element.rank += delta
+                        element.lastUpdated = now
+                        element.version = element.version + 1
+                        session.setReadOnly(element, false)
+                    }
+                }
+            }
+        }
+        return changes
+    }
+}
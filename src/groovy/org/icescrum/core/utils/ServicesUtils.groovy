@@ -1,10 +1,6 @@
 package org.icescrum.core.utils
 
 
-import org.eclipse.mylyn.wikitext.core.parser.MarkupParser
-import org.eclipse.mylyn.wikitext.core.parser.builder.HtmlDocumentBuilder
-import org.eclipse.mylyn.wikitext.textile.core.TextileLanguage
-
 /*
  * Copyright (c) 2015 Kagilum SAS
  *
@@ -56,22 +52,6 @@ class ServicesUtils {
     }
 
     static String textileToHtml(String text) {
-        if (text) {
-            def out = new StringWriter()
-            def htmlDocumentBuilder = new HtmlDocumentBuilder(out)
-            htmlDocumentBuilder.defaultAbsoluteLinkTarget = '_blank'
-            htmlDocumentBuilder.emitAsDocument = false
-            def markupParser = new MarkupParser(markupLanguage: new TextileLanguage())
-            markupParser.setBuilder(htmlDocumentBuilder)
-            markupParser.parse(text)
-            String html = out.toString()
-            if (html) {
-                html = html.replaceAll('\\[ *\\]', '<i class="fa fa-square-o" markitup-checkbox="options" tabindex="0"></i>');
-                html = html.replaceAll('\\[ *[xX] *\\]', '<i class="fa fa-check-square-o" markitup-checkbox="options" tabindex="0"></i>');
-            }
-            return html
-        } else {
-            return ''
-        }
+        return TextileRenderer.render(text)
     }
 }
\ No newline at end of file
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2020 Kagilum SAS
+ *
+ * This file is part of iceScrum.
+ *
+ * iceScrum is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * iceScrum is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with iceScrum.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.icescrum.core.utils
+
+import com.google.common.base.Charsets
+import com.google.common.cache.Cache
+import com.google.common.cache.CacheBuilder
+import com.google.common.cache.CacheStats
+import com.google.common.cache.Weigher
+import com.google.common.hash.Hashing
+import grails.util.Holders
+import org.eclipse.mylyn.wikitext.core.parser.MarkupParser
+import org.eclipse.mylyn.wikitext.core.parser.builder.HtmlDocumentBuilder
+import org.eclipse.mylyn.wikitext.textile.core.TextileLanguage
+
+import java.util.concurrent.ArrayBlockingQueue
+
+/**
+ * Renders textile to HTML through a pool of reusable parsers and caches the result by content hash,
+ * so that the same description is not parsed again each time it is rendered (JSON, push messages, hooks, emails).
+ * The cache is bounded by the total size of the cached HTML.
+ */
+class TextileRenderer {
+
+    private static final int DEFAULT_MAXIMUM_WEIGHT = 16 * 1024 * 1024 // In chars
+    private static final int POOL_SIZE = 16
+
+    private static final ArrayBlockingQueue<MarkupParser> parsers = new ArrayBlockingQueue<MarkupParser>(POOL_SIZE)
+    private static volatile Cache<String, String> cache
+
+    static String render(String text) {
+        if (!text) {
+            return ''
+        }
+        Cache<String, String> htmlCache = getCache()
+        String key = Hashing.sha256().hashString(text, Charsets.UTF_8).toString()
+        String html = htmlCache.getIfPresent(key)
+        if (html == null) {
+            html = parse(text)
+            htmlCache.put(key, html)
+        }
+        return html
+    }
+
+    static Map getStats() {
+        Cache<String, String> htmlCache = getCache()
+        CacheStats stats = htmlCache.stats()
+        return [
+                size     : htmlCache.size(),
+                hits     : stats.hitCount(),
+                misses   : stats.missCount(),
+                hitRate  : stats.hitRate().round(4),
+                evictions: stats.evictionCount(),
+                parsers  : parsers.size()
+        ]
+    }
+
+    static void clear() {
+        getCache().invalidateAll()
+    }
+
+    private static String parse(String text) {
+        MarkupParser markupParser = parsers.poll() ?: new MarkupParser(new TextileLanguage())
+        try {
+            def out = new StringWriter()
+            def htmlDocumentBuilder = new HtmlDocumentBuilder(out)
+            htmlDocumentBuilder.defaultAbsoluteLinkTarget = '_blank'
+            htmlDocumentBuilder.emitAsDocument = false
+            markupParser.setBuilder(htmlDocumentBuilder)
+            markupParser.parse(text)
+            String html = out.toString()
+            if (html) {
+                html = html.replaceAll('\\[ *\\]', '<i class="fa fa-square-o" markitup-checkbox="options" tabindex="0"></i>');
+                html = html.replaceAll('\\[ *[xX] *\\]', '<i class="fa fa-check-square-o" markitup-checkbox="options" tabindex="0"></i>');
+            }
+            return html
+        } finally {
+            markupParser.setBuilder(null) // Don't keep the last document alive
+            parsers.offer(markupParser) // Dropped if the pool is full
+        }
+    }
+
+    private static Cache<String, String> getCache() {
+        if (cache == null) {
+            synchronized (TextileRenderer) {
+                if (cache == null) {
+                    def maximumWeight = Holders.grailsApplication?.config?.icescrum?.textile?.cache?.maximumWeight
+                    cache = CacheBuilder.newBuilder()
+                            .maximumWeight(maximumWeight ? maximumWeight as long : DEFAULT_MAXIMUM_WEIGHT)
+                            .weigher({ String key, String html -> key.length() + html.length() } as Weigher<String, String>)
+                            .recordStats()
+                            .build()
+                }
+            }
+        }
+        return cache
+    }
+}
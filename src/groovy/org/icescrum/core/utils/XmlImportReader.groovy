@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2020 Kagilum SAS.
+ *
+ * This file is part of iceScrum.
+ *
+ * iceScrum is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * iceScrum is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with iceScrum.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.icescrum.core.utils
+
+import groovy.util.slurpersupport.GPathResult
+import org.apache.commons.io.input.CountingInputStream
+
+import javax.xml.namespace.QName
+import javax.xml.stream.XMLEventReader
+import javax.xml.stream.XMLEventWriter
+import javax.xml.stream.XMLInputFactory
+import javax.xml.stream.XMLOutputFactory
+import javax.xml.stream.events.XMLEvent
+
+/**
+ * Reads an export file with StAX so it is never loaded entirely in memory: each element found at a given path
+ * is parsed on its own into a small GPathResult, which is what the unMarshall methods of the services expect.
+ * Each read is a new pass over the file. Characters that are invalid in XML are replaced by spaces, like ServicesUtils.cleanXml.
+ */
+class XmlImportReader {
+
+    private static final XMLInputFactory inputFactory = XMLInputFactory.newInstance()
+    private static final XMLOutputFactory outputFactory = XMLOutputFactory.newInstance()
+
+    static {
+        inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false)
+        inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false)
+    }
+
+    private final File file
+    private volatile CountingInputStream input
+
+    XmlImportReader(File file) {
+        this.file = file
+    }
+
+    String getRootAttribute(String name) {
+        String value = null
+        withEventReader { XMLEventReader reader ->
+            while (reader.hasNext() && value == null) {
+                XMLEvent event = reader.nextEvent()
+                if (event.startElement) {
+                    value = event.asStartElement().getAttributeByName(new QName(name))?.value ?: ''
+                }
+            }
+        }
+        return value
+    }
+
+    // First element found at path, without its children named in skippedChildren (they can be read afterwards with eachElement)
+    GPathResult readElement(List<String> path, Collection<String> skippedChildren = []) {
+        GPathResult element = null
+        read(path, skippedChildren, true) { GPathResult result ->
+            element = result
+        }
+        return element
+    }
+
+    // Calls the closure with each element found at path, returns the number of elements read
+    int eachElement(List<String> path, Closure closure) {
+        return read(path, [], false, closure)
+    }
+
+    // Part of the file read by the current pass, between 0 and 1
+    float getProgress() {
+        CountingInputStream currentInput = input
+        return currentInput && file.length() ? Math.min(1f, currentInput.byteCount / (float) file.length()) : 0f
+    }
+
+    private int read(List<String> path, Collection<String> skippedChildren, boolean firstOnly, Closure closure) {
+        int count = 0
+        withEventReader { XMLEventReader reader ->
+            List<String> current = []
+            boolean done = false
+            while (reader.hasNext() && !done) {
+                XMLEvent event = reader.nextEvent()
+                if (event.startElement) {
+                    current << event.asStartElement().name.localPart
+                    if (current == path) {
+                        closure(new XmlSlurper().parseText(copyElement(event, reader, skippedChildren)))
+                        current.remove(current.size() - 1)
+                        count++
+                        done = firstOnly
+                    } else if (current.size() >= path.size() || current != path.subList(0, current.size())) {
+                        skipElement(reader)
+                        current.remove(current.size() - 1)
+                    }
+                } else if (event.endElement) {
+                    current.remove(current.size() - 1)
+                }
+            }
+        }
+        return count
+    }
+
+    // Serializes the element that has just started, until its end (included)
+    private static String copyElement(XMLEvent startEvent, XMLEventReader reader, Collection<String> skippedChildren) {
+        StringWriter out = new StringWriter()
+        XMLEventWriter writer = outputFactory.createXMLEventWriter(out)
+        writer.add(startEvent)
+        int depth = 1
+        while (depth > 0) {
+            XMLEvent event = reader.nextEvent()
+            if (event.startElement) {
+                if (depth == 1 && event.asStartElement().name.localPart in skippedChildren) {
+                    skipElement(reader)
+                    continue
+                }
+                depth++
+            } else if (event.endElement) {
+                depth--
+            }
+            writer.add(event)
+        }
+        writer.close()
+        return out.toString()
+    }
+
+    // Skips the element that has just started, until its end (included)
+    private static void skipElement(XMLEventReader reader) {
+        int depth = 1
+        while (depth > 0) {
+            XMLEvent event = reader.nextEvent()
+            if (event.startElement) {
+                depth++
+            } else if (event.endElement) {
+                depth--
+            }
+        }
+    }
+
+    private void withEventReader(Closure closure) {
+        input = new CountingInputStream(new BufferedInputStream(new FileInputStream(file)))
+        Reader cleanReader = new CleanXmlReader(new InputStreamReader(input, 'UTF-8'))
+        XMLEventReader reader = inputFactory.createXMLEventReader(cleanReader)
+        try {
+            closure(reader)
+        } finally {
+            reader.close()
+            cleanReader.close()
+            input = null
+        }
+    }
+
+    private static class CleanXmlReader extends FilterReader {
+
+        CleanXmlReader(Reader reader) {
+            super(reader)
+        }
+
+        @Override
+        int read() throws IOException {
+            int c = super.read()
+            return c < 0 || isValid(c) ? c : (int) (' ' as char)
+        }
+
+        @Override
+        int read(char[] buffer, int offset, int length) throws IOException {
+            int count = super.read(buffer, offset, length)
+            for (int i = offset; i < offset + count; i++) {
+                if (!isValid((int) buffer[i])) {
+                    buffer[i] = ' ' as char
+                }
+            }
+            return count
+        }
+
+        // Surrogates are kept, the pairs they form are valid code points
+        private static boolean isValid(int c) {
+            return c == 0x9 || c == 0xA || c == 0xD || c >= 0x20 && c <= 0xD7FF || c >= 0xD800 && c <= 0xDFFF || c >= 0xE000 && c <= 0xFFFD
+        }
+    }
+}
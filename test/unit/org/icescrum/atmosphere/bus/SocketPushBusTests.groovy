@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2020 Kagilum SAS.
+ *
+ * This file is part of iceScrum.
+ *
+ * iceScrum is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * iceScrum is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with iceScrum.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.icescrum.atmosphere.bus
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+
+// Two buses on the loopback interface, as two iceScrum nodes would be
+class SocketPushBusTests extends GroovyTestCase {
+
+    private static final String SECRET = 'test-secret'
+
+    private List<PushBus> buses = []
+
+    void tearDown() {
+        buses*.stop()
+    }
+
+    void testMessagePublishedByANodeIsReceivedByItsPeer() {
+        int portA = freePort()
+        int portB = freePort()
+        LinkedBlockingQueue<PushBusMessage> receivedByB = new LinkedBlockingQueue<PushBusMessage>()
+        startBus('A', portA, portB, SECRET, null)
+        startBus('B', portB, portA, SECRET, { receivedByB.put(it) } as PushBusListener)
+
+        buses[0].publish(new PushBusMessage(nodeId: 'A', sentAt: System.currentTimeMillis(), channel: 'project-1', messageId: 'm1', usernames: ['john', 'jane'], payload: '{"story":"é"}'))
+
+        PushBusMessage message = receivedByB.poll(5, TimeUnit.SECONDS)
+        assertNotNull(message)
+        assertEquals('A', message.nodeId)
+        assertEquals('project-1', message.channel)
+        assertEquals('m1', message.messageId)
+        assertEquals(['john', 'jane'], message.usernames)
+        assertEquals('{"story":"é"}', message.payload)
+    }
+
+    void testMessageSignedWithAnotherSecretIsRejected() {
+        int portA = freePort()
+        int portB = freePort()
+        LinkedBlockingQueue<PushBusMessage> receivedByB = new LinkedBlockingQueue<PushBusMessage>()
+        startBus('A', portA, portB, 'another-secret', null)
+        SocketPushBus busB = startBus('B', portB, portA, SECRET, { receivedByB.put(it) } as PushBusListener)
+
+        buses[0].publish(new PushBusMessage(nodeId: 'A', sentAt: System.currentTimeMillis(), channel: 'project-1', messageId: 'm1', payload: '{}'))
+
+        assertNull(receivedByB.poll(1, TimeUnit.SECONDS))
+        assertTrue(waitFor { busB.rejectedFrames.get() > 0 })
+    }
+
+    void testOversizedFrameClosesTheConnectionWithoutAllocatingIt() {
+        int portB = freePort()
+        CountDownLatch received = new CountDownLatch(1)
+        SocketPushBus busB = startBus('B', portB, freePort(), SECRET, { received.countDown() } as PushBusListener)
+
+        Socket socket = new Socket('127.0.0.1', portB)
+        socket.soTimeout = 5000
+        DataOutputStream output = new DataOutputStream(socket.outputStream)
+        output.writeInt(Integer.MAX_VALUE)
+        output.flush()
+
+        assertEquals(-1, socket.inputStream.read()) // Closed by the bus
+        socket.close()
+        assertFalse(received.await(100, TimeUnit.MILLISECONDS))
+        assertEquals(1L, busB.rejectedFrames.get())
+    }
+
+    void testConnectionsFromOtherAddressesThanPeersAreRejected() {
+        int portB = freePort()
+        SocketPushBus busB = startBus('B', portB, freePort(), SECRET, null, '10.255.255.1')
+
+        Socket socket = new Socket('127.0.0.1', portB)
+        socket.soTimeout = 5000
+        assertEquals(-1, socket.inputStream.read())
+        socket.close()
+        assertEquals(1L, busB.rejectedConnections.get())
+    }
+
+    void testSecretIsRequired() {
+        shouldFail(IllegalArgumentException) {
+            new SocketPushBus('A', '127.0.0.1', freePort(), ['127.0.0.1:' + freePort()], '')
+        }
+    }
+
+    private SocketPushBus startBus(String nodeId, int port, int peerPort, String secret, PushBusListener listener, String peerHost = '127.0.0.1') {
+        SocketPushBus bus = new SocketPushBus(nodeId, '127.0.0.1', port, [peerHost + ':' + peerPort], secret)
+        bus.start(listener ?: ({} as PushBusListener))
+        buses << bus
+        return bus
+    }
+
+    private static int freePort() {
+        ServerSocket socket = new ServerSocket(0)
+        try {
+            return socket.localPort
+        } finally {
+            socket.close()
+        }
+    }
+
+    private static boolean waitFor(Closure<Boolean> condition) {
+        long end = System.currentTimeMillis() + 5000
+        while (!condition() && System.currentTimeMillis() < end) {
+            Thread.sleep(20)
+        }
+        return condition()
+    }
+}
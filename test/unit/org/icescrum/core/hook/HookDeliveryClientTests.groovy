@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2020 Kagilum SAS.
+ *
+ * This file is part of iceScrum.
+ *
+ * iceScrum is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * iceScrum is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with iceScrum.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.icescrum.core.hook
+
+import com.sun.net.httpserver.HttpExchange
+import com.sun.net.httpserver.HttpHandler
+import com.sun.net.httpserver.HttpServer
+
+// Local HTTP stub standing for the hook endpoint
+class HookDeliveryClientTests extends GroovyTestCase {
+
+    private HttpServer server
+    private HookDeliveryClient client
+    private Map received
+
+    void setUp() {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.loopbackAddress, 0), 0)
+        server.createContext('/', { HttpExchange exchange ->
+            received = [
+                    method   : exchange.requestMethod,
+                    event    : exchange.requestHeaders.getFirst('x-icescrum-event'),
+                    signature: exchange.requestHeaders.getFirst('x-icescrum-signature'),
+                    type     : exchange.requestHeaders.getFirst('Content-Type'),
+                    body     : exchange.requestBody.getText('UTF-8')
+            ]
+            int status = exchange.requestURI.path.substring(1).toInteger()
+            byte[] body = "status $status".getBytes('UTF-8')
+            if (status == 302) {
+                exchange.responseHeaders.add('Location', '/200')
+            }
+            exchange.sendResponseHeaders(status, body.length)
+            exchange.responseBody.write(body)
+            exchange.close()
+        } as HttpHandler)
+        server.start()
+        client = new HookDeliveryClient(4, 2, 5000, 5000)
+    }
+
+    void tearDown() {
+        client?.shutdown()
+        server?.stop(0)
+    }
+
+    void testDeliveryIsPostedWithItsHeaders() {
+        HookDeliveryClient.Response response = client.post(url(200), false, ['x-icescrum-event': 'story.create', 'x-icescrum-signature': 'abc'], '{"name":"é"}')
+        assertTrue(response.success)
+        assertEquals(200, response.status)
+        assertEquals('status 200', response.body)
+        assertEquals('POST', received.method)
+        assertEquals('story.create', received.event)
+        assertEquals('abc', received.signature)
+        assertTrue(received.type.startsWith('application/json'))
+        assertEquals('{"name":"é"}', received.body)
+    }
+
+    void testRedirectIsASuccess() {
+        HookDeliveryClient.Response response = client.post(url(302), false, [:], '{}')
+        assertEquals(302, response.status)
+        assertTrue(response.success)
+    }
+
+    void testServerErrorIsAFailure() {
+        HookDeliveryClient.Response response = client.post(url(500), false, [:], '{}')
+        assertEquals(500, response.status)
+        assertFalse(response.success)
+        assertEquals('status 500', response.body)
+    }
+
+    void testGoneIsReported() {
+        HookDeliveryClient.Response response = client.post(url(410), false, [:], '{}')
+        assertEquals(410, response.status)
+        assertFalse(response.success)
+    }
+
+    void testConnectionsAreReusedBetweenDeliveries() {
+        10.times {
+            assertTrue(client.post(url(200), false, [:], '{}').success)
+        }
+    }
+
+    void testInvalidUrlThrows() {
+        shouldFail(Exception) {
+            client.post('not a url', false, [:], '{}')
+        }
+    }
+
+    private String url(int status) {
+        return "http://127.0.0.1:${server.address.port}/$status"
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2020 Kagilum SAS.
+ *
+ * This file is part of iceScrum.
+ *
+ * iceScrum is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * iceScrum is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with iceScrum.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package org.icescrum.core.support
+
+import javax.mail.Message
+import javax.mail.MessagingException
+import javax.mail.Session
+import javax.mail.Transport
+import javax.mail.internet.InternetAddress
+import javax.mail.internet.MimeMessage
+
+// Local SMTP stub standing for the mail server, emails are sent with JavaMail like the mail plugin does
+class NotificationDigestSenderTests extends GroovyTestCase {
+
+    private ServerSocket server
+    private List<Map> received
+    private String dataReply
+    private List<Locale> renderedLocales
+
+    void setUp() {
+        received = Collections.synchronizedList([])
+        dataReply = '250 OK'
+        renderedLocales = []
+        server = new ServerSocket(0, 50, InetAddress.loopbackAddress)
+        Thread.startDaemon {
+            while (!server.closed) {
+                try {
+                    Socket socket = server.accept()
+                    Thread.startDaemon { converse(socket) }
+                } catch (IOException e) {
+                    // Closed by tearDown
+                }
+            }
+        }
+    }
+
+    void tearDown() {
+        server?.close()
+    }
+
+    void testSingleItemIsSentAsIs() {
+        boolean digest = createSender().send('bob@example.com', [item('Story created', 'en')])
+        assertFalse(digest)
+        assertEquals(1, received.size())
+        assertEquals(['<bob@example.com>'], received[0].recipients)
+        assertTrue(received[0].data.contains('Subject: Story created'))
+        assertTrue(received[0].data.contains('/emails-templates/storyCreated'))
+        assertTrue(renderedLocales.isEmpty())
+    }
+
+    void testItemsOfARecipientAreCoalescedInADigest() {
+        boolean digest = createSender().send('bob@example.com', [item('First', 'en'), item('Second', 'en'), item('Third', 'fr')])
+        assertTrue(digest)
+        assertEquals(1, received.size())
+        assertEquals(['<bob@example.com>'], received[0].recipients)
+        assertTrue(received[0].data.contains('Subject: 3 notifications'))
+        ['First', 'Second', 'Third'].each {
+            assertTrue(received[0].data.contains("rendered $it"))
+        }
+        assertEquals([Locale.FRENCH] * 3, renderedLocales) // Locale of the latest item
+    }
+
+    void testRejectedEmailFailsSoItCanBeRetried() {
+        dataReply = '451 Try again later'
+        shouldFail(MessagingException) {
+            createSender().send('bob@example.com', [item('First', 'en'), item('Second', 'en')])
+        }
+        dataReply = '250 OK'
+        assertTrue(createSender().send('bob@example.com', [item('First', 'en'), item('Second', 'en')]))
+        assertEquals(2, received.size()) // The rejected one reached the server but hasn't been accepted
+    }
+
+    void testRetriesBackOffExponentiallyThenDrop() {
+        NotificationDigestSender sender = createSender()
+        assertEquals(60000L, sender.getNextAttempt(1, 0L).time)
+        assertEquals(120000L, sender.getNextAttempt(2, 0L).time)
+        assertEquals(480000L, sender.getNextAttempt(4, 0L).time)
+        assertNull(sender.getNextAttempt(5, 0L))
+    }
+
+    void testRecipientsPerPollFollowTheRateLimit() {
+        assertEquals(30, createSender(60, 30).budget)
+        assertEquals(120, createSender(120, 60).budget)
+        assertEquals(1, createSender(1, 30).budget) // At least one recipient per poll
+    }
+
+    private NotificationDigestSender createSender(long maxPerMinute = 60, long pollInterval = 30) {
+        return new NotificationDigestSender(maxPerMinute, pollInterval, 5, 60,
+                { String view, Map model, Locale locale ->
+                    renderedLocales << locale
+                    return "rendered $model.name"
+                },
+                { int count, Locale locale ->
+                    "$count notifications"
+                },
+                { Map options ->
+                    Properties properties = new Properties()
+                    properties.setProperty('mail.smtp.host', '127.0.0.1')
+                    properties.setProperty('mail.smtp.port', server.localPort.toString())
+                    MimeMessage message = new MimeMessage(Session.getInstance(properties))
+                    message.setFrom(new InternetAddress('icescrum@example.com'))
+                    message.setRecipients(Message.RecipientType.TO, (String) options.to)
+                    message.setSubject((String) options.subject)
+                    message.setText("$options.view\n${options.model.items ? options.model.items.join('\n') : options.model.name}")
+                    Transport.send(message)
+                })
+    }
+
+    private static Map item(String name, String locale) {
+        return [locale: locale, subject: name, view: '/emails-templates/storyCreated', model: "{\"name\":\"$name\"}"]
+    }
+
+    // Minimal SMTP dialog: every command is accepted, the reply to the end of the data can be changed by the tests
+    private void converse(Socket socket) {
+        socket.withStreams { InputStream input, OutputStream output ->
+            BufferedReader reader = new BufferedReader(new InputStreamReader(input, 'UTF-8'))
+            Writer writer = new OutputStreamWriter(output, 'UTF-8')
+            Closure reply = { String line ->
+                writer.write(line + '\r\n')
+                writer.flush()
+            }
+            reply('220 localhost SMTP stub')
+            List<String> recipients = []
+            String line
+            while ((line = reader.readLine()) != null) {
+                String command = line.toUpperCase()
+                if (command.startsWith('RCPT TO:')) {
+                    recipients << line.substring(8).trim()
+                    reply('250 OK')
+                } else if (command == 'DATA') {
+                    reply('354 End data with <CR><LF>.<CR><LF>')
+                    StringBuilder data = new StringBuilder()
+                    while ((line = reader.readLine()) != null && line != '.') {
+                        data.append(line).append('\n')
+                    }
+                    received << [recipients: recipients, data: data.toString()]
+                    recipients = []
+                    reply(dataReply)
+                } else if (command == 'QUIT') {
+                    reply('221 Bye')
+                    break
+                } else { // EHLO, MAIL FROM, RSET, NOOP...
+                    reply('250 OK')
+                }
+            }
+        }
+    }
+}